@@ -0,0 +1,113 @@
+package org.badvision.pifaceintegrator.benchmark;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.badvision.pifaceintegrator.piface.PifaceConnection;
+import org.badvision.pifaceintegrator.piface.ResponseCodec;
+import org.badvision.pifaceintegrator.piface.RestServer.RestResponse;
+
+/**
+ * Compares ResponseCodec against the reflective Gson path it replaced, for the
+ * most common exchange: the eight pin list returned by /inputs and
+ * /outputPwm. Each side is timed encoding a response entity and writing it
+ * out, and decoding it again, reporting time and heap allocated per
+ * operation (allocation needs a HotSpot JVM, otherwise it is shown as -1).
+ *
+ * Usage: CodecBenchmark [iterations, default 200000]
+ *
+ * @author blurry
+ */
+public class CodecBenchmark {
+
+    interface Operation {
+
+        void run() throws IOException;
+    }
+
+    static final Gson gson = new Gson();
+    static final Type PIN_LIST = new TypeToken<Collection<RestResponse>>() {
+    }.getType();
+    static final OutputStream SINK = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+    static volatile Object result;
+
+    public static void main(String... args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        List<RestResponse> pins = new ArrayList<>();
+        for (int i = 0; i < PifaceConnection.PIN_COUNT; i++) {
+            RestResponse pin = new RestResponse();
+            pin.setPin(i);
+            pin.setValue(i * 13);
+            pin.setState(i % 3 == 0);
+            pins.add(pin);
+        }
+        byte[] body = ResponseCodec.encode(pins);
+        System.out.println("Codec benchmark, " + iterations + " iterations, " + body.length + " byte body");
+
+        measure("encode gson ", iterations, () -> {
+            Map<String, Object> wrapper = new HashMap<>();
+            wrapper.put(ResponseCodec.RESPONSE, new ArrayList<>(pins));
+            HttpEntity entity = new StringEntity(gson.toJson(wrapper));
+            entity.writeTo(SINK);
+        });
+        measure("encode codec", iterations, () -> {
+            HttpEntity entity = ResponseCodec.encodeEntity(pins);
+            entity.writeTo(SINK);
+        });
+        measure("decode gson ", iterations, () -> {
+            InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(body));
+            JsonObject parsed = gson.fromJson(reader, JsonObject.class);
+            JsonArray list = parsed.get(ResponseCodec.RESPONSE).getAsJsonArray();
+            result = gson.fromJson(list, PIN_LIST);
+        });
+        measure("decode codec", iterations, () -> {
+            result = ResponseCodec.decodePinList(new ByteArrayInputStream(body));
+        });
+    }
+
+    static void measure(String name, int iterations, Operation operation) throws IOException {
+        // Warm up so both paths are compiled before being timed
+        for (int i = 0; i < iterations / 4; i++) {
+            operation.run();
+        }
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = getAllocatedBytes();
+        long allocated = allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore) / iterations;
+        System.out.printf("%s: %8.0f ns/op %8d bytes/op%n", name, (double) elapsed / iterations, allocated);
+    }
+
+    static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
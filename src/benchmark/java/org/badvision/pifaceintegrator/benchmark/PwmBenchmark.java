@@ -0,0 +1,248 @@
+package org.badvision.pifaceintegrator.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import org.badvision.pifaceintegrator.piface.LocalConnection;
+import org.badvision.pifaceintegrator.piface.PifaceConnection;
+
+/**
+ * Measures how well the LocalConnection PWM engine keeps time, without any
+ * hardware: the connection drives a RecordingPort and every PWM tick is
+ * timestamped. For 1, 4 and 8 active pins this reports tick interval
+ * percentiles, missed ticks, CPU time per tick, port writes per tick and the
+ * effective duty cycle of each pin against the requested value. It then runs
+ * PWM on all 8 pins of 2, 4 and 8 boards at once, since every board's ticks
+ * share the same LocalConnection.IO_THREADS threads, and reports the same
+ * tick figures for the worst board.
+ *
+ * Usage: PwmBenchmark [seconds per scenario, default 5]
+ *
+ * @author blurry
+ */
+public class PwmBenchmark {
+
+    static final int[] SCENARIOS = {1, 4, 8};
+    static final int[] BOARD_SCENARIOS = {2, 4, 8};
+    static final long WARMUP_MS = 500;
+
+    public static void main(String... args) throws IOException, InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        System.out.println("PWM benchmark, nominal tick " + LocalConnection.PWM_UNIT + "us, "
+                + seconds + "s per scenario");
+        for (int activePins : SCENARIOS) {
+            run(activePins, seconds);
+        }
+        for (int boards : BOARD_SCENARIOS) {
+            runBoards(boards, seconds);
+        }
+    }
+
+    static int requestedDuty(int pin) {
+        return 5 + pin * 12;
+    }
+
+    static void run(int activePins, int seconds) throws IOException, InterruptedException {
+        long nominalTicks = TimeUnit.SECONDS.toMicros(seconds) / LocalConnection.PWM_UNIT;
+        RecordingPort port = new RecordingPort((int) nominalTicks * 2);
+        TickRecorder ticks = new TickRecorder((int) nominalTicks * 2);
+        LocalConnection connection = new LocalConnection(port);
+        connection.setPwmTickObserver(ticks);
+
+        int mask = (1 << activePins) - 1;
+        int[] values = new int[PifaceConnection.PIN_COUNT];
+        for (int pin = 0; pin < activePins; pin++) {
+            values[pin] = requestedDuty(pin);
+        }
+        connection.setOutputPort(mask, values);
+        Thread.sleep(WARMUP_MS);
+
+        port.reset();
+        ticks.arm();
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        long end = System.nanoTime();
+        ticks.disarm();
+        int writes = port.getWriteCount();
+        double[] duty = port.getEffectiveDuty(start, end);
+        long requestedWrites = connection.getRequestedWrites();
+        long issuedWrites = connection.getIssuedWrites();
+
+        connection.setOutputPort(mask, new int[PifaceConnection.PIN_COUNT]);
+        connection.setPwmTickObserver(null);
+
+        report(activePins, start, end, ticks, writes, values, duty);
+        System.out.printf("connection writes (whole run): %d requested, %d issued%n", requestedWrites, issuedWrites);
+    }
+
+    /**
+     * Runs PWM on every pin of several boards together, each with its own
+     * port and tick recorder.
+     */
+    static void runBoards(int boardCount, int seconds) throws IOException, InterruptedException {
+        long nominalTicks = TimeUnit.SECONDS.toMicros(seconds) / LocalConnection.PWM_UNIT;
+        RecordingPort[] ports = new RecordingPort[boardCount];
+        TickRecorder[] ticks = new TickRecorder[boardCount];
+        LocalConnection[] connections = new LocalConnection[boardCount];
+        int[] values = new int[PifaceConnection.PIN_COUNT];
+        for (int pin = 0; pin < PifaceConnection.PIN_COUNT; pin++) {
+            values[pin] = requestedDuty(pin);
+        }
+        for (int board = 0; board < boardCount; board++) {
+            ports[board] = new RecordingPort((int) nominalTicks * 2);
+            ticks[board] = new TickRecorder((int) nominalTicks * 2);
+            connections[board] = new LocalConnection(ports[board]);
+            connections[board].setPwmTickObserver(ticks[board]);
+            connections[board].setOutputPort(PifaceConnection.PORT_MASK, values);
+        }
+        Thread.sleep(WARMUP_MS);
+
+        for (int board = 0; board < boardCount; board++) {
+            ports[board].reset();
+            ticks[board].arm();
+        }
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        long end = System.nanoTime();
+        for (TickRecorder recorder : ticks) {
+            recorder.disarm();
+        }
+        for (LocalConnection connection : connections) {
+            connection.setOutputPort(PifaceConnection.PORT_MASK, new int[PifaceConnection.PIN_COUNT]);
+            connection.setPwmTickObserver(null);
+        }
+
+        // The board that kept time worst, by p99 tick interval
+        int worst = 0;
+        double worstP99 = -1;
+        for (int board = 0; board < boardCount; board++) {
+            long[] intervals = ticks[board].getIntervals();
+            Arrays.sort(intervals);
+            double p99 = intervals.length > 0 ? percentile(intervals, 0.99) : Double.MAX_VALUE;
+            if (p99 > worstP99) {
+                worst = board;
+                worstP99 = p99;
+            }
+        }
+        System.out.println();
+        System.out.println("== " + boardCount + " boards, all pins active, worst is board " + worst + " ==");
+        report(PifaceConnection.PIN_COUNT, start, end, ticks[worst], ports[worst].getWriteCount(),
+                values, ports[worst].getEffectiveDuty(start, end));
+    }
+
+    static void report(int activePins, long start, long end, TickRecorder ticks, int writes, int[] requested, double[] duty) {
+        int tickCount = ticks.getCount();
+        long expectedTicks = TimeUnit.NANOSECONDS.toMicros(end - start) / LocalConnection.PWM_UNIT;
+        long[] intervals = ticks.getIntervals();
+        Arrays.sort(intervals);
+        long lateThreshold = TimeUnit.MICROSECONDS.toNanos(LocalConnection.PWM_UNIT) * 2;
+        long late = Arrays.stream(intervals).filter(i -> i > lateThreshold).count();
+        // scheduleAtFixedRate runs late ticks back to back to catch up
+        long bunchedThreshold = lateThreshold / 4;
+        long bunched = Arrays.stream(intervals).filter(i -> i < bunchedThreshold).count();
+
+        System.out.println();
+        System.out.println("== " + activePins + " active pin(s) ==");
+        System.out.printf("ticks: %d of %d expected, %d missed, %d intervals over %dus%n",
+                tickCount, expectedTicks, Math.max(0, expectedTicks - tickCount), late,
+                TimeUnit.NANOSECONDS.toMicros(lateThreshold));
+        System.out.printf("catch-up ticks: %d intervals under %dus%n",
+                bunched, TimeUnit.NANOSECONDS.toMicros(bunchedThreshold));
+        if (intervals.length > 0) {
+            System.out.printf("tick interval (us): p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+                    percentile(intervals, 0.50), percentile(intervals, 0.90), percentile(intervals, 0.99),
+                    percentile(intervals, 0.999), intervals[intervals.length - 1] / 1000.0);
+        }
+        if (ticks.getCpuTicks() > 0) {
+            System.out.printf("cpu per tick: %.2fus%n", ticks.getCpuNanos() / 1000.0 / ticks.getCpuTicks());
+        } else {
+            System.out.println("cpu per tick: not available");
+        }
+        System.out.printf("port writes: %d (%.2f per tick)%n", writes, tickCount > 0 ? (double) writes / tickCount : 0.0);
+        for (int pin = 0; pin < activePins; pin++) {
+            System.out.printf("pin %d duty: requested %d%%, effective %.1f%%%n",
+                    pin, requested[pin], duty[pin] * 100.0);
+        }
+    }
+
+    static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.min(sorted.length - 1, Math.round(fraction * (sorted.length - 1)));
+        return sorted[index] / 1000.0;
+    }
+
+    /**
+     * Records the timestamp of each PWM tick into preallocated storage, and
+     * samples the PWM thread CPU time every 1024 ticks.
+     */
+    static class TickRecorder implements LongConsumer {
+
+        static final int CPU_SAMPLE_INTERVAL = 1024;
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long[] times;
+        volatile boolean armed = false;
+        int count = 0;
+        long firstCpu = -1;
+        long lastCpu = -1;
+        int lastCpuTick = 0;
+
+        TickRecorder(int capacity) {
+            times = new long[capacity];
+        }
+
+        synchronized void arm() {
+            count = 0;
+            firstCpu = -1;
+            lastCpu = -1;
+            lastCpuTick = 0;
+            armed = true;
+        }
+
+        synchronized void disarm() {
+            armed = false;
+        }
+
+        @Override
+        public synchronized void accept(long time) {
+            if (!armed) {
+                return;
+            }
+            if (count < times.length) {
+                times[count] = time;
+            }
+            if (count % CPU_SAMPLE_INTERVAL == 0 && threads.isCurrentThreadCpuTimeSupported()) {
+                long cpu = threads.getCurrentThreadCpuTime();
+                if (firstCpu < 0) {
+                    firstCpu = cpu;
+                } else {
+                    lastCpu = cpu;
+                    lastCpuTick = count;
+                }
+            }
+            count++;
+        }
+
+        synchronized int getCount() {
+            return count;
+        }
+
+        synchronized long[] getIntervals() {
+            int stored = Math.min(count, times.length);
+            long[] intervals = new long[Math.max(0, stored - 1)];
+            for (int i = 1; i < stored; i++) {
+                intervals[i - 1] = times[i] - times[i - 1];
+            }
+            return intervals;
+        }
+
+        synchronized long getCpuNanos() {
+            return lastCpu < 0 ? 0 : lastCpu - firstCpu;
+        }
+
+        synchronized int getCpuTicks() {
+            return lastCpu < 0 ? 0 : lastCpuTick;
+        }
+    }
+}
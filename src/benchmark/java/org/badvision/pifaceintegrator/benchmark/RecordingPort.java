@@ -0,0 +1,115 @@
+package org.badvision.pifaceintegrator.benchmark;
+
+import java.util.function.Consumer;
+import org.badvision.pifaceintegrator.piface.PifacePort;
+
+/**
+ * Stand-in for PiFace hardware which records every output port write with its
+ * System.nanoTime timestamp. Storage is preallocated so that recording does not
+ * disturb the timing being measured; writes past capacity are counted but not
+ * stored.
+ *
+ * @author blurry
+ */
+public class RecordingPort implements PifacePort {
+
+    private final long[] writeTimes;
+    private final int[] writeValues;
+    private volatile int writeCount = 0;
+
+    public RecordingPort(int capacity) {
+        writeTimes = new long[capacity];
+        writeValues = new int[capacity];
+    }
+
+    @Override
+    public int readInputPort() {
+        return 0;
+    }
+
+    @Override
+    public synchronized void writeOutputPort(int value) {
+        int index = writeCount;
+        if (index < writeTimes.length) {
+            writeTimes[index] = System.nanoTime();
+            writeValues[index] = value;
+        }
+        writeCount = index + 1;
+    }
+
+    @Override
+    public boolean isInputActive(int pin) {
+        return false;
+    }
+
+    @Override
+    public void addInputListener(int pin, Consumer<Boolean> listener) {
+        // No inputs on the stand-in device
+    }
+
+    public synchronized void reset() {
+        writeCount = 0;
+    }
+
+    /**
+     * @return Number of writes seen, including any that did not fit
+     */
+    public int getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * @return Number of writes actually stored
+     */
+    public synchronized int getRecordedCount() {
+        return Math.min(writeCount, writeTimes.length);
+    }
+
+    public long getWriteTime(int index) {
+        return writeTimes[index];
+    }
+
+    public int getWriteValue(int index) {
+        return writeValues[index];
+    }
+
+    /**
+     * Works out how long each output was high between two instants, based on
+     * the recorded port writes.
+     *
+     * @param start Start of the measurement window (System.nanoTime)
+     * @param end End of the measurement window (System.nanoTime)
+     * @return Fraction of the window (0-1) each pin spent high, indexed by pin
+     */
+    public synchronized double[] getEffectiveDuty(long start, long end) {
+        double[] duty = new double[8];
+        long[] highTime = new long[8];
+        int count = getRecordedCount();
+        int value = 0;
+        long last = start;
+        for (int i = 0; i < count; i++) {
+            long time = writeTimes[i];
+            if (time > end) {
+                break;
+            }
+            if (time > start) {
+                addHighTime(highTime, value, time - last);
+                last = time;
+            }
+            value = writeValues[i];
+        }
+        addHighTime(highTime, value, end - last);
+        for (int pin = 0; pin < 8; pin++) {
+            duty[pin] = (double) highTime[pin] / (end - start);
+        }
+        return duty;
+    }
+
+    private void addHighTime(long[] highTime, int value, long duration) {
+        for (int pin = 0; pin < 8; pin++) {
+            if ((value & (1 << pin)) != 0) {
+                highTime[pin] += duration;
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.badvision.pifaceintegrator.benchmark;
+
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Optional;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicRequestLine;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerMapper;
+import org.apache.http.protocol.UriHttpRequestHandlerMapper;
+import org.badvision.pifaceintegrator.piface.PifaceConnection;
+import org.badvision.pifaceintegrator.piface.RequestParameters;
+import org.badvision.pifaceintegrator.piface.RequestRouter;
+import org.badvision.pifaceintegrator.piface.RestServer;
+
+/**
+ * Compares RequestRouter and RequestParameters against the
+ * UriHttpRequestHandlerMapper and URIBuilder path they replaced, for the work
+ * RestServer does on every request before touching the device: finding the
+ * handler and reading its parameters. Requests cycle through a typical mix of
+ * endpoints, the heaviest being an eight pin /outputPwm. Reports requests per
+ * second and heap allocated per request (allocation needs a HotSpot JVM,
+ * otherwise it is shown as -1).
+ *
+ * Usage: RoutingBenchmark [iterations, default 1000000]
+ *
+ * @author blurry
+ */
+public class RoutingBenchmark {
+
+    static final String[] PATHS = {
+        RestServer.GET_INPUT, RestServer.GET_INPUTS, RestServer.GET_OUTPUTS, RestServer.SET_OUTPUT,
+        RestServer.SET_OUTPUT_PWM, RestServer.GET_INPUT_EDGES, RestServer.INPUT_STREAM,
+        RestServer.GET_PROTOCOLS, RestServer.GET_STATE, RestServer.BATCH};
+    static final HttpRequest[] REQUESTS = {
+        request("/outputPwm?pin0=10&pin1=20&pin2=30&pin3=40&pin4=50&pin5=60&pin6=70&pin7=80"),
+        request("/output?pin=3&state=true"),
+        request("/input?pin=5"),
+        request("/inputEdges?pin=2&since=1234567"),
+        request("/state?since=1450000000000"),
+        request("/inputs?")};
+    static final HttpRequestHandler HANDLER = (request, response, context) -> {
+    };
+    static volatile long result;
+
+    // As the server's parser builds them, with the request line already made
+    static HttpRequest request(String uri) {
+        return new BasicHttpRequest(new BasicRequestLine("GET", uri, HttpVersion.HTTP_1_1));
+    }
+
+    public static void main(String... args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        System.out.println("Routing benchmark, " + iterations + " requests");
+
+        UriHttpRequestHandlerMapper patterns = new UriHttpRequestHandlerMapper();
+        RequestRouter<HttpRequestHandler> router = new RequestRouter<>();
+        for (String path : PATHS) {
+            patterns.register(path, HANDLER);
+            router.register(path, HANDLER);
+        }
+        HttpRequestHandlerMapper routed = RequestRouter.asHandlerMapper(router);
+
+        measure("uribuilder", iterations, request -> {
+            if (patterns.lookup(request) == null) {
+                throw new IllegalStateException("No route");
+            }
+            List<NameValuePair> params = new URIBuilder(request.getRequestLine().getUri()).getQueryParams();
+            long sum = getInt(params, RestServer.PARAM_PIN, 0) + getLong(params, RestServer.PARAM_SINCE, 0);
+            sum += Boolean.parseBoolean(getParamValue(params, RestServer.PARAM_STATE).orElse(null)) ? 1 : 0;
+            for (int i = 0; i < PifaceConnection.PIN_COUNT; i++) {
+                sum += getInt(params, RestServer.PARAM_PIN + i, -1);
+            }
+            return sum;
+        });
+        measure("router    ", iterations, request -> {
+            if (routed.lookup(request) == null) {
+                throw new IllegalStateException("No route");
+            }
+            RequestParameters params = RequestParameters.parse(request.getRequestLine().getUri());
+            long sum = params.getInt(RequestParameters.PIN, 0) + params.getLong(RequestParameters.SINCE, 0);
+            sum += params.has(RequestParameters.STATE) && params.getRequiredBoolean(RequestParameters.STATE) ? 1 : 0;
+            int given = params.getPinMask();
+            for (int i = 0; i < PifaceConnection.PIN_COUNT; i++) {
+                sum += (given & (1 << i)) != 0 ? params.getPinValue(i) : -1;
+            }
+            return sum;
+        });
+    }
+
+    interface Route {
+
+        long run(HttpRequest request) throws URISyntaxException;
+    }
+
+    static void measure(String name, int iterations, Route route) {
+        try {
+            // Warm up so both paths are compiled before being timed
+            for (int i = 0; i < iterations / 4; i++) {
+                result += route.run(REQUESTS[i % REQUESTS.length]);
+            }
+            long allocatedBefore = CodecBenchmark.getAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                result += route.run(REQUESTS[i % REQUESTS.length]);
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocatedAfter = CodecBenchmark.getAllocatedBytes();
+            long allocated = allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore) / iterations;
+            System.out.printf("%s: %10.0f requests/s %8.0f ns/request %8d bytes/request%n",
+                    name, iterations * 1e9 / elapsed, (double) elapsed / iterations, allocated);
+        } catch (URISyntaxException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // The lookups RestServer used to do, kept here for comparison
+    static Optional<String> getParamValue(List<NameValuePair> params, String name) {
+        Optional<NameValuePair> found = params.stream().filter(nvp -> nvp.getName().equals(name)).findFirst();
+        if (found.isPresent()) {
+            return Optional.of(found.get().getValue());
+        } else {
+            return Optional.empty();
+        }
+    }
+
+    static int getInt(List<NameValuePair> params, String name, int defaultValue) {
+        String str = getParamValue(params, name).orElse(null);
+        if (str == null || str.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Integer.parseInt(str);
+    }
+
+    static long getLong(List<NameValuePair> params, String name, long defaultValue) {
+        String str = getParamValue(params, name).orElse(null);
+        if (str == null || str.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Long.parseLong(str);
+    }
+}
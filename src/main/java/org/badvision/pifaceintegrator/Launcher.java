@@ -5,14 +5,21 @@
  */
 package org.badvision.pifaceintegrator;
 
+import com.pi4j.io.spi.SpiChannel;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javafx.application.Application;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
+import org.badvision.pifaceintegrator.piface.BroadcastConnection;
+import org.badvision.pifaceintegrator.piface.CachedInputConnection;
+import org.badvision.pifaceintegrator.piface.CompositeConnection;
 import org.badvision.pifaceintegrator.piface.LocalConnection;
 import org.badvision.pifaceintegrator.piface.MockConnection;
 import org.badvision.pifaceintegrator.piface.PifaceConnection;
@@ -31,7 +38,7 @@ public class Launcher {
     public static void main(String... args) throws IOException {
         OptionParser parser = new OptionParser("m:p:r:h?");
         parser.accepts("m", "mesh host:port, implies --mesh").withRequiredArg().ofType(String.class);
-        parser.accepts("r", "remote piface server host:port, implies --client").withRequiredArg().ofType(String.class);
+        parser.accepts("r", "remote piface server host:port[/board], implies --client").withRequiredArg().ofType(String.class);
         parser.accepts("p", "server port, implies --server").withRequiredArg().ofType(Integer.class);
         parser.acceptsAll(Arrays.asList(new String[]{"?", "h"}), "Show help (this message)");
         parser.accepts("gui", "Operate in GUI mode (default)");
@@ -42,6 +49,15 @@ public class Launcher {
         parser.accepts("mock", "Connect to mock (fake) piface used for testing");
         parser.accepts("nomesh", "Do not connect to mesh");
         parser.accepts("mesh", "Connect to mesh (default), assumes localhost:42001 unless otherwise specified with -m");
+        parser.accepts("staleness", "Answer input reads from a cache kept current by input change events, refreshing entries older than this many milliseconds").withRequiredArg().ofType(Long.class);
+        parser.accepts("binary", "Also serve the binary protocol, assumes port " + RestServer.DEFAULT_BINARY_PORT + " unless otherwise specified").withOptionalArg().ofType(Integer.class);
+        parser.accepts("nio", "Serve HTTP from a few event-driven threads instead of a thread per connection");
+        parser.accepts("boards", "Drive several local boards, listed as address:chipselect (for example 0:0,1:0,0:1); with --mock, one mock per entry")
+                .withRequiredArg().ofType(String.class).withValuesSeparatedBy(',');
+        parser.accepts("broadcast", "Also publish board state as UDP datagrams to a multicast group or unicast addresses, listed as host:port")
+                .withRequiredArg().ofType(String.class).withValuesSeparatedBy(',');
+        parser.accepts("watch", "Watch a board read-only through the datagrams sent with --broadcast, given as group:port[/board]")
+                .withRequiredArg().ofType(String.class);
         OptionSet options = parser.parse(args);
         if (offerHelp(options)) {
             System.out.println("PiFace Integrator");
@@ -87,11 +103,54 @@ public class Launcher {
     }
 
     private static PifaceConnection buildPifaceConnection(OptionSet options) throws IOException {
+        if (options.hasArgument("watch")) {
+            return buildWatchPifaceConnection(options);
+        }
+        if (options.has("boards") && !options.has("client") && !options.hasArgument("r")) {
+            return buildMultiBoardConnection(options);
+        }
         // First determine if this is local, client or mock
         PifaceConnection piface = buildClientPifaceConnection(options).orElse(
                 buildMockPifaceConnection(options).orElse(null));
         if (piface == null) {
-            return buildLocalPifaceConnection(options);
+            piface = buildLocalPifaceConnection(options);
+        }
+        return buildCachedPifaceConnection(options, piface);
+    }
+
+    private static PifaceConnection buildMultiBoardConnection(OptionSet options) throws IOException {
+        List<PifaceConnection> boards = new ArrayList<>();
+        for (Object board : options.valuesOf("boards")) {
+            PifaceConnection piface;
+            if (options.has("mock")) {
+                piface = new MockConnection();
+            } else {
+                String[] parts = String.valueOf(board).split(":");
+                byte address = Byte.parseByte(parts[0]);
+                SpiChannel channel = parts.length > 1 ? SpiChannel.getByNumber(Integer.parseInt(parts[1])) : SpiChannel.CS0;
+                if (channel == null) {
+                    throw new IOException("Unknown chip select in " + board);
+                }
+                log.log(Level.INFO, "using local board at address {0}, chip select {1}", new Object[]{address, channel});
+                piface = new LocalConnection(address, channel);
+            }
+            boards.add(buildCachedPifaceConnection(options, piface));
+        }
+        return boards.size() == 1 ? boards.get(0) : new CompositeConnection(boards);
+    }
+
+    private static PifaceConnection buildWatchPifaceConnection(OptionSet options) throws IOException {
+        String[] parts = String.valueOf(options.valueOf("watch")).split("[:/]");
+        int board = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+        log.log(Level.INFO, "watching board {0} broadcast to {1}, port {2}", new Object[]{board, parts[0], parts[1]});
+        return new BroadcastConnection(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])), board);
+    }
+
+    private static PifaceConnection buildCachedPifaceConnection(OptionSet options, PifaceConnection piface) throws IOException {
+        if (options.hasArgument("staleness")) {
+            long staleness = (Long) options.valueOf("staleness");
+            log.log(Level.INFO, "caching input reads for up to {0}ms", staleness);
+            return new CachedInputConnection(piface, staleness);
         }
         return piface;
     }
@@ -104,13 +163,17 @@ public class Launcher {
         if (options.has("client") || options.hasArgument("r")) {
             String host = "localhost";
             int port = RestServer.DEFAULT_PORT;
+            int board = -1;
             if (options.hasArgument("r")) {
-                String[] parts = String.valueOf(options.valueOf("r")).split(":");
+                String[] parts = String.valueOf(options.valueOf("r")).split("[:/]");
                 host = parts[0];
                 port = Integer.parseInt(parts[1]);
+                if (parts.length > 2) {
+                    board = Integer.parseInt(parts[2]);
+                }
             }
             log.log(Level.INFO, "using client connection to {0}, port {1}", new Object[]{host, port});
-            return Optional.of(new RestClient(host, port));
+            return Optional.of(board < 0 ? new RestClient(host, port) : new RestClient(host, port, board));
         } else {
             return Optional.empty();
         }
@@ -125,14 +188,36 @@ public class Launcher {
         }
     }
 
-    private static Optional<RestServer> buildServerConnection(OptionSet options, PifaceConnection piface) throws IOException {
+    private static Optional<RestServer> buildServerConnection(OptionSet options, PifaceController piface) throws IOException {
         if (options.has("server") || options.hasArgument("p")) {
             int port = RestServer.DEFAULT_PORT;
             if (options.hasArgument("p")) {
                 port = (Integer) options.valueOf("p");
             }
-            log.log(Level.INFO, "hosting on port {0}", port);
-            return Optional.of(new RestServer(port, piface));
+            List<PifaceConnection> boards = new ArrayList<>();
+            for (int board = 0; board < piface.getBoardCount(); board++) {
+                boards.add(piface.getBoard(board));
+            }
+            log.log(Level.INFO, "hosting {0} board(s) on port {1}", new Object[]{boards.size(), port});
+            RestServer server = new RestServer(port, boards, options.has("nio"));
+            if (options.has("binary")) {
+                int binaryPort = RestServer.DEFAULT_BINARY_PORT;
+                if (options.hasArgument("binary")) {
+                    binaryPort = (Integer) options.valueOf("binary");
+                }
+                log.log(Level.INFO, "binary protocol on port {0}", binaryPort);
+                server.enableBinaryProtocol(binaryPort);
+            }
+            if (options.hasArgument("broadcast")) {
+                List<InetSocketAddress> targets = new ArrayList<>();
+                for (Object target : options.valuesOf("broadcast")) {
+                    String[] parts = String.valueOf(target).split(":");
+                    targets.add(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])));
+                }
+                log.log(Level.INFO, "broadcasting state to {0}", targets);
+                server.enableStateBroadcast(targets);
+            }
+            return Optional.of(server);
         } else {
             return Optional.empty();
         }
@@ -13,6 +13,8 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import org.badvision.pifaceintegrator.UserInterface.SystemStatus;
@@ -117,9 +119,22 @@ public class MeshController extends RemoteSensor {
                 odd = 100;
         }
         if (even >= 0) {
-            for (int i=0; i < 8; i+=2) {
-                updateSensorIntValue("pwm"+i, even);
-                updateSensorIntValue("pwm"+(i+1), odd);
+            int ports = piface == null ? 1 : piface.getPinCount() / PifaceConnection.PIN_COUNT;
+            int[] masks = new int[ports];
+            int[][] values = new int[ports][PifaceConnection.PIN_COUNT];
+            for (int port = 0; port < ports; port++) {
+                masks[port] = PifaceConnection.PORT_MASK;
+                for (int i=0; i < PifaceConnection.PIN_COUNT; i+=2) {
+                    int pin = port * PifaceConnection.PIN_COUNT + i;
+                    values[port][i] = even;
+                    values[port][i+1] = odd;
+                    storeSensorIntValue("pwm"+pin, even);
+                    storeSensorIntValue("pwm"+(pin+1), odd);
+                }
+            }
+            if (piface != null) {
+                // One scatter-gather write so every board switches together
+                piface.async().setOutputPorts(masks, values).whenComplete(this::logFailure);
             }
         }
     }
@@ -161,36 +176,48 @@ public class MeshController extends RemoteSensor {
         ui.updateMeshVariable(name, value);
     }
 
-    private void updateSensorIntValue(String name, int value) {
+    private void storeSensorIntValue(String name, int value) {
         allIntVariables.put(name, value);
         ui.updateMeshVariable(name, String.valueOf(value));
-        if (name.matches("out[0-7]")) {
-            int pin = name.charAt(3) - '0';
-            if (piface != null) {
-                try {
-                    piface.setOutputState(pin, value > 0);
-                } catch (IOException ex) {
-                    Logger.getLogger(MeshController.class.getName()).log(Level.SEVERE, null, ex);
-                }
+    }
+
+    // Sensor names address pins across every board, e.g. out12 is board 1 pin 4
+    private static final Pattern OUTPUT_SENSOR = Pattern.compile("out(\\d{1,3})");
+    private static final Pattern PWM_SENSOR = Pattern.compile("pwm(\\d{1,3})");
+
+    private void updateSensorIntValue(String name, int value) {
+        storeSensorIntValue(name, value);
+        if (piface == null) {
+            return;
+        }
+        Matcher output = OUTPUT_SENSOR.matcher(name);
+        Matcher pwm = PWM_SENSOR.matcher(name);
+        if (output.matches()) {
+            int pin = Integer.parseInt(output.group(1));
+            if (pin < piface.getPinCount()) {
+                piface.async().setOutputState(pin, value > 0).whenComplete(this::logFailure);
             }
-        } else if (name.matches("pwm[0-7]")) {
-            int pin = name.charAt(3) - '0';
-            if (piface != null) {
-                try {
-                    piface.setOutputPWM(pin, Math.min(Math.max(value, 0), 100));
-                } catch (IOException ex) {
-                    Logger.getLogger(MeshController.class.getName()).log(Level.SEVERE, null, ex);
-                }
+        } else if (pwm.matches()) {
+            int pin = Integer.parseInt(pwm.group(1));
+            if (pin < piface.getPinCount()) {
+                piface.async().setOutputPWM(pin, Math.min(Math.max(value, 0), 100)).whenComplete(this::logFailure);
             }
 
         }
     }
 
+    // Output writes are asynchronous so the Scratch reader never waits on the PiFace
+    private void logFailure(Object result, Throwable error) {
+        if (error != null) {
+            Logger.getLogger(MeshController.class.getName()).log(Level.SEVERE, null, error);
+        }
+    }
+
     PifaceConnection piface;
 
     void connectToPiface(PifaceConnection piface) throws IOException {
         this.piface = piface;
-        for (int i = 0; i < 8; i++) {
+        for (int i = 0; i < piface.getPinCount(); i++) {
             final int pin = i;
             piface.addListener(i, state -> {
                 try {
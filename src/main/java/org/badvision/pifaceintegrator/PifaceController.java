@@ -1,7 +1,12 @@
 package org.badvision.pifaceintegrator;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
+import org.badvision.pifaceintegrator.piface.AsyncPifaceConnection;
+import org.badvision.pifaceintegrator.piface.CompositeConnection;
+import org.badvision.pifaceintegrator.piface.InputEdge;
 import org.badvision.pifaceintegrator.piface.PifaceConnection;
 
 /**
@@ -23,7 +28,7 @@ public class PifaceController implements PifaceConnection {
 
     private void init() throws IOException {
         isConnected();
-        for (int i=0; i < 8; i++) {
+        for (int i=0; i < piface.getPinCount(); i++) {
             final int pin = i;
             piface.addListener(i, state->pinChanged(pin, state));
         }
@@ -62,9 +67,251 @@ public class PifaceController implements PifaceConnection {
         return piface.getOutputState(pin);
     }
 
+    @Override
+    public List<InputEdge> getInputEdges(int pin, int count) throws IOException {
+        return piface.getInputEdges(pin, count);
+    }
+
+    @Override
+    public List<InputEdge> getInputEdgesSince(int pin, long sequence) throws IOException {
+        return piface.getInputEdgesSince(pin, sequence);
+    }
+
+    @Override
+    public int getInputPort() throws IOException {
+        return piface.getInputPort();
+    }
+
+    @Override
+    public void setOutputPort(int mask, int[] values) throws IOException {
+        validatePort(mask, values);
+        for (int pin = 0; pin < PIN_COUNT; pin++) {
+            if (isPinInMask(mask, pin)) {
+                controller.setPifaceValue(pin, values[pin]);
+            }
+        }
+        piface.setOutputPort(mask, values);
+    }
+
+    @Override
+    public int getPinCount() {
+        return piface.getPinCount();
+    }
+
+    @Override
+    public int[] getInputPorts() throws IOException {
+        return piface.getInputPorts();
+    }
+
+    @Override
+    public void setOutputPorts(int[] masks, int[][] values) throws IOException {
+        validatePorts(masks, values);
+        showOutputPorts(masks, values);
+        piface.setOutputPorts(masks, values);
+    }
+
+    private void showOutputPorts(int[] masks, int[][] values) {
+        for (int port = 0; port < masks.length; port++) {
+            for (int pin = 0; pin < PIN_COUNT; pin++) {
+                if (isPinInMask(masks[port], pin)) {
+                    controller.setPifaceValue(port * PIN_COUNT + pin, values[port][pin]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return One board of the connection to serve on its own, with its
+     * output changes still shown on the UI
+     */
+    public PifaceConnection getBoard(int board) {
+        if (piface instanceof CompositeConnection) {
+            return new BoardView(board, ((CompositeConnection) piface).getBoard(board));
+        }
+        if (board != 0) {
+            throw new IllegalArgumentException("Only one board is connected");
+        }
+        return this;
+    }
+
+    public int getBoardCount() {
+        return piface.getPinCount() / PIN_COUNT;
+    }
+
+    private class BoardView implements PifaceConnection {
+
+        final int offset;
+        final PifaceConnection board;
+
+        BoardView(int index, PifaceConnection board) {
+            offset = index * PIN_COUNT;
+            this.board = board;
+        }
+
+        @Override
+        public boolean getInputState(int pin) throws IOException {
+            return board.getInputState(pin);
+        }
+
+        @Override
+        public void addListener(int pin, Consumer<Boolean> listener) throws IOException {
+            board.addListener(pin, listener);
+        }
+
+        @Override
+        public void setOutputState(int pin, boolean state) throws IOException {
+            validateRange(pin);
+            controller.setPifaceValue(offset + pin, state ? 100 : 0);
+            board.setOutputState(pin, state);
+        }
+
+        @Override
+        public void setOutputPWM(int pin, int value) throws IOException {
+            validateRange(pin);
+            controller.setPifaceValue(offset + pin, value);
+            board.setOutputPWM(pin, value);
+        }
+
+        @Override
+        public int getOutputState(int pin) throws IOException {
+            return board.getOutputState(pin);
+        }
+
+        @Override
+        public int getInputPort() throws IOException {
+            return board.getInputPort();
+        }
+
+        @Override
+        public void setOutputPort(int mask, int[] values) throws IOException {
+            validatePort(mask, values);
+            for (int pin = 0; pin < PIN_COUNT; pin++) {
+                if (isPinInMask(mask, pin)) {
+                    controller.setPifaceValue(offset + pin, values[pin]);
+                }
+            }
+            board.setOutputPort(mask, values);
+        }
+
+        @Override
+        public List<InputEdge> getInputEdges(int pin, int count) throws IOException {
+            return board.getInputEdges(pin, count);
+        }
+
+        @Override
+        public List<InputEdge> getInputEdgesSince(int pin, long sequence) throws IOException {
+            return board.getInputEdgesSince(pin, sequence);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return board.isConnected();
+        }
+    }
+
     @Override
     public boolean isConnected() {
-        controller.setPifaceStatus(piface.isConnected() ? UserInterface.SystemStatus.active : UserInterface.SystemStatus.error);
-        return piface.isConnected();
+        boolean connected = piface.isConnected();
+        controller.setPifaceStatus(connected ? UserInterface.SystemStatus.active : UserInterface.SystemStatus.error);
+        return connected;
+    }
+
+    /**
+     * Same UI updates as the blocking calls, then hands off to the underlying
+     * connection's own async view.
+     */
+    @Override
+    public AsyncPifaceConnection async() {
+        return asyncView;
     }
+
+    private final AsyncPifaceConnection asyncView = new AsyncPifaceConnection() {
+        @Override
+        public CompletableFuture<Boolean> getInputState(int pin) {
+            return piface.async().getInputState(pin);
+        }
+
+        @Override
+        public CompletableFuture<Integer> getInputPort() {
+            return piface.async().getInputPort();
+        }
+
+        @Override
+        public CompletableFuture<Integer> getOutputState(int pin) {
+            return piface.async().getOutputState(pin);
+        }
+
+        @Override
+        public CompletableFuture<Void> setOutputState(int pin, boolean state) {
+            controller.setPifaceValue(pin, state ? 100 : 0);
+            return piface.async().setOutputState(pin, state);
+        }
+
+        @Override
+        public CompletableFuture<Void> setOutputPWM(int pin, int value) {
+            controller.setPifaceValue(pin, value);
+            return piface.async().setOutputPWM(pin, value);
+        }
+
+        @Override
+        public CompletableFuture<Void> setOutputPort(int mask, int[] values) {
+            try {
+                validatePort(mask, values);
+            } catch (IOException ex) {
+                return AsyncPifaceConnection.failedFuture(ex);
+            }
+            for (int pin = 0; pin < PIN_COUNT; pin++) {
+                if (isPinInMask(mask, pin)) {
+                    controller.setPifaceValue(pin, values[pin]);
+                }
+            }
+            return piface.async().setOutputPort(mask, values);
+        }
+
+        @Override
+        public int getPinCount() {
+            return piface.getPinCount();
+        }
+
+        @Override
+        public CompletableFuture<int[]> getInputPorts() {
+            return piface.async().getInputPorts();
+        }
+
+        @Override
+        public CompletableFuture<Void> setOutputPorts(int[] masks, int[][] values) {
+            try {
+                validatePorts(masks, values);
+            } catch (IOException ex) {
+                return AsyncPifaceConnection.failedFuture(ex);
+            }
+            showOutputPorts(masks, values);
+            return piface.async().setOutputPorts(masks, values);
+        }
+
+        @Override
+        public CompletableFuture<List<InputEdge>> getInputEdges(int pin, int count) {
+            return piface.async().getInputEdges(pin, count);
+        }
+
+        @Override
+        public CompletableFuture<List<InputEdge>> getInputEdgesSince(int pin, long sequence) {
+            return piface.async().getInputEdgesSince(pin, sequence);
+        }
+
+        @Override
+        public CompletableFuture<Void> addListener(int pin, Consumer<Boolean> listener) {
+            return piface.async().addListener(pin, listener);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> isConnected() {
+            return piface.async().isConnected();
+        }
+
+        @Override
+        public PifaceConnection blocking() {
+            return PifaceController.this;
+        }
+    };
 }
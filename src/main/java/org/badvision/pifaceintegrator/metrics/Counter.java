@@ -0,0 +1,29 @@
+package org.badvision.pifaceintegrator.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic count. Increments from many threads do not contend with each
+ * other, the cost is paid only when the value is read.
+ *
+ * @author blurry
+ */
+public class Counter {
+
+    private final LongAdder count = new LongAdder();
+
+    Counter() {
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+}
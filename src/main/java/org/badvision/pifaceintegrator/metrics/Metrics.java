@@ -0,0 +1,176 @@
+package org.badvision.pifaceintegrator.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Process wide registry of counters, gauges and histograms, written out in
+ * the Prometheus text exposition format.
+ *
+ * Metrics are looked up once, usually into a static field, and then updated
+ * directly; registering the same name and labels again returns the metric
+ * already there. Histograms hold nanoseconds and are exposed as summaries in
+ * seconds with quantiles over the life of the process.
+ *
+ * @author blurry
+ */
+public class Metrics {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private enum Type {
+        counter, gauge, summary
+    }
+
+    private static class Family {
+
+        final String help;
+        final Type type;
+        // Keyed by the rendered labels, so output is in a stable order
+        final Map<String, Object> members = new ConcurrentSkipListMap<>();
+
+        Family(String help, Type type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final Map<String, Family> families = new ConcurrentSkipListMap<>();
+    private static final Map<String, Object> lookup = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @param labels Label names and values, alternating
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, Type.counter, labels, Counter::new);
+    }
+
+    /**
+     * @param value Read each time the metrics are written out
+     * @param labels Label names and values, alternating
+     */
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        register(name, help, Type.gauge, labels, () -> value);
+    }
+
+    /**
+     * @param name Name of the metric in seconds, such as x_seconds, though
+     * values are recorded in nanoseconds
+     * @param labels Label names and values, alternating
+     */
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) register(name, help, Type.summary, labels, Histogram::new);
+    }
+
+    /**
+     * Stops exposing a metric, for labels that will not be seen again such
+     * as a client that has gone away. Registering it again starts afresh.
+     *
+     * @param labels Label names and values, alternating
+     */
+    public static void remove(String name, String... labels) {
+        String key = formatLabels(labels, null, null);
+        lookup.computeIfPresent(name + key, (k, metric) -> {
+            families.get(name).members.remove(key, metric);
+            return null;
+        });
+    }
+
+    private interface Factory {
+
+        Object create();
+    }
+
+    private static Object register(String name, String help, Type type, String[] labels, Factory factory) {
+        String key = formatLabels(labels, null, null);
+        return lookup.computeIfAbsent(name + key, k -> {
+            Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+            if (family.type != type) {
+                throw new IllegalArgumentException("Metric " + name + " is already a " + family.type);
+            }
+            Object metric = factory.create();
+            family.members.put(key, metric);
+            return metric;
+        });
+    }
+
+    private static String formatLabels(String[] labels, String extraName, String extraValue) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        if (labels.length == 0 && extraName == null) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            appendLabel(out, labels[i], labels[i + 1]);
+        }
+        if (extraName != null) {
+            appendLabel(out, extraName, extraValue);
+        }
+        out.setCharAt(out.length() - 1, '}');
+        return out.toString();
+    }
+
+    private static void appendLabel(StringBuilder out, String name, String value) {
+        out.append(name).append("=\"");
+        for (char c : value.toCharArray()) {
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append("\",");
+    }
+
+    // Inserts another label into an already rendered label set
+    private static String withLabel(String labels, String name, String value) {
+        String extra = formatLabels(new String[0], name, value);
+        return labels.isEmpty() ? extra : labels.substring(0, labels.length() - 1) + "," + extra.substring(1);
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * @return Every metric in the Prometheus text format
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder();
+        families.forEach((name, family) -> {
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            family.members.forEach((labels, metric) -> {
+                switch (family.type) {
+                    case counter:
+                        out.append(name).append(labels).append(' ').append(((Counter) metric).get()).append('\n');
+                        break;
+                    case gauge:
+                        out.append(name).append(labels).append(' ').append(((LongSupplier) metric).getAsLong()).append('\n');
+                        break;
+                    case summary:
+                        Histogram histogram = (Histogram) metric;
+                        for (double quantile : QUANTILES) {
+                            out.append(name).append(withLabel(labels, "quantile", Double.toString(quantile)))
+                                    .append(' ').append(seconds(histogram.getQuantile(quantile))).append('\n');
+                        }
+                        out.append(name).append("_sum").append(labels).append(' ').append(seconds(histogram.getSum())).append('\n');
+                        out.append(name).append("_count").append(labels).append(' ').append(histogram.getCount()).append('\n');
+                        break;
+                }
+            });
+        });
+        return out.toString();
+    }
+}
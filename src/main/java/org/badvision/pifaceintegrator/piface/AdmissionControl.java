@@ -0,0 +1,394 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.HttpStatus;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.badvision.pifaceintegrator.metrics.Counter;
+import org.badvision.pifaceintegrator.metrics.Metrics;
+
+/**
+ * Decides which requests RestServer lets through to the device, so that one
+ * client hammering the server cannot starve the others or grow everyone's
+ * latency without bound.
+ *
+ * Each client address gets a token bucket of BURST requests refilled at RATE
+ * per second; past that it is answered 429 at once. Requests within their
+ * rate share DEVICE_SLOTS places at the device. When those are taken they
+ * wait in a queue per client, and the queues are served in turn, one request
+ * each, so a client with many requests waiting cannot get ahead of one with
+ * a single request. Waiting is bounded in every direction: MAX_QUEUE
+ * requests in total, MAX_QUEUE_PER_CLIENT from any one client and MAX_WAIT
+ * for each; a request that cannot be queued or served in time is answered
+ * 503. Both answers carry Retry-After. A request waits either by blocking in
+ * enter or, for callers with few threads to spare, on the future from admit.
+ *
+ * Requests are counted by client and result in
+ * piface_admission_requests_total. A client's counts are dropped once it
+ * has been idle for CLIENT_IDLE and is forgotten, and while MAX_CLIENTS are
+ * being tracked any new ones are counted together as OTHER_CLIENTS.
+ *
+ * @author blurry
+ */
+public class AdmissionControl {
+
+    // Requests per second each client may make, and how many it may save up
+    public static final double RATE = 50;
+    public static final int BURST = 100;
+    // Requests working on the device at the same time
+    public static final int DEVICE_SLOTS = 2;
+    public static final int MAX_QUEUE = 64;
+    public static final int MAX_QUEUE_PER_CLIENT = 8;
+    // Milliseconds a request may wait for the device
+    public static final long MAX_WAIT = 250;
+    // Clients tracked before idle ones are forgotten, and what counts as idle
+    public static final int MAX_CLIENTS = 256;
+    public static final long CLIENT_IDLE = 60000;
+    // Metrics label shared by clients beyond MAX_CLIENTS, so the metrics stay bounded
+    public static final String OTHER_CLIENTS = "other";
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * A request turned away, with the status and Retry-After to answer it.
+     */
+    public static class RejectedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+        private final int status;
+        private final long retryAfter;
+
+        RejectedException(String message, int status, long retryAfter) {
+            super(message);
+            this.status = status;
+            this.retryAfter = retryAfter;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return Seconds the client should wait before trying again
+         */
+        public long getRetryAfter() {
+            return retryAfter;
+        }
+
+        // Rejections are routine under load, they should cost next to nothing
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private class Client {
+
+        final String address;
+        // Address, or OTHER_CLIENTS if the metrics are shared
+        final String label;
+        double tokens = BURST;
+        long refilled = System.nanoTime();
+        volatile long lastSeen = System.currentTimeMillis();
+        final ArrayDeque<Waiter> waiting = new ArrayDeque<>();
+        final Counter admitted;
+        final Counter throttled;
+        final Counter rejected;
+
+        Client(String address, String label) {
+            this.address = address;
+            this.label = label;
+            admitted = Metrics.counter(REQUESTS_METRIC, REQUESTS_HELP, getLabels(label, "admitted"));
+            throttled = Metrics.counter(REQUESTS_METRIC, REQUESTS_HELP, getLabels(label, "throttled"));
+            rejected = Metrics.counter(REQUESTS_METRIC, REQUESTS_HELP, getLabels(label, "rejected"));
+        }
+
+        /**
+         * Stops exposing the client's own counters once it is forgotten.
+         */
+        void removeMetrics() {
+            if (!OTHER_CLIENTS.equals(label)) {
+                for (String result : new String[]{"admitted", "throttled", "rejected"}) {
+                    Metrics.remove(REQUESTS_METRIC, getLabels(label, result));
+                }
+            }
+        }
+
+        /**
+         * @return 0 if a token was taken, otherwise nanoseconds until one
+         * will be available
+         */
+        synchronized long takeToken() {
+            long now = System.nanoTime();
+            tokens = Math.min(BURST, tokens + (now - refilled) * RATE / TimeUnit.SECONDS.toNanos(1));
+            refilled = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return (long) ((1 - tokens) / RATE * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    // Completed with the place at the device, or failed when turned away
+    private static class Waiter extends CompletableFuture<Void> {
+
+        final Client client;
+        boolean admitted = false;
+        ScheduledFuture<?> timeout;
+
+        Waiter(Client client) {
+            this.client = client;
+        }
+    }
+
+    private static final String REQUESTS_METRIC = "piface_admission_requests_total";
+    private static final String REQUESTS_HELP = "REST requests by client and admission result";
+    // Turns away requests that have waited MAX_WAIT, for every board
+    private static final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "Admission timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final String board;
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // Changed under the lock, volatile only so the gauges can read them
+    private volatile int running = 0;
+    private volatile int queued = 0;
+    // Clients with requests waiting, in the order they will be served
+    private final ArrayDeque<Client> turns = new ArrayDeque<>();
+
+    /**
+     * @param board Board whose device this guards, to label its metrics
+     */
+    public AdmissionControl(int board) {
+        this.board = String.valueOf(board);
+        Metrics.gauge("piface_admission_running", "REST requests working on the device", () -> running, "board", String.valueOf(board));
+        Metrics.gauge("piface_admission_queued", "REST requests waiting for the device", () -> queued, "board", String.valueOf(board));
+    }
+
+    /**
+     * @return Address of the client that sent the request being handled
+     */
+    public static String getClientAddress(HttpContext context) {
+        Object address = context.getAttribute(NioHttpServer.REMOTE_ADDRESS);
+        if (address == null) {
+            HttpConnection connection = HttpCoreContext.adapt(context).getConnection();
+            if (connection instanceof HttpInetConnection) {
+                address = ((HttpInetConnection) connection).getRemoteAddress();
+            }
+        }
+        return address instanceof InetAddress ? ((InetAddress) address).getHostAddress() : "unknown";
+    }
+
+    private String[] getLabels(String client, String result) {
+        return new String[]{"board", board, "client", client, "result", result};
+    }
+
+    private Client getClient(String address) {
+        Client client = clients.get(address);
+        if (client == null) {
+            if (clients.size() >= MAX_CLIENTS) {
+                forgetIdleClients();
+            }
+            String label = clients.size() < MAX_CLIENTS ? address : OTHER_CLIENTS;
+            client = clients.computeIfAbsent(address, key -> new Client(key, label));
+        }
+        client.lastSeen = System.currentTimeMillis();
+        return client;
+    }
+
+    private void forgetIdleClients() {
+        long idleSince = System.currentTimeMillis() - CLIENT_IDLE;
+        lock.lock();
+        try {
+            clients.values().removeIf(client -> {
+                if (client.lastSeen >= idleSince || !client.waiting.isEmpty()) {
+                    return false;
+                }
+                client.removeMetrics();
+                return true;
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the client's turn at the device. Every call that returns
+     * must be matched by a call to leave.
+     *
+     * @param address Client address, see getClientAddress
+     * @throws RejectedException If the request should be refused
+     */
+    public void enter(String address) throws RejectedException {
+        CompletableFuture<Void> admitted = admit(address);
+        try {
+            admitted.get();
+        } catch (ExecutionException ex) {
+            throw (RejectedException) ex.getCause();
+        } catch (InterruptedException ex) {
+            abandon((Waiter) admitted);
+            Thread.currentThread().interrupt();
+            throw new RejectedException("Interrupted waiting for the device", HttpStatus.SC_SERVICE_UNAVAILABLE, toRetryAfter(MAX_WAIT));
+        }
+    }
+
+    /**
+     * Asks for the client's turn at the device without waiting for it, for
+     * callers that must not block. Every future that completes normally must
+     * be matched by a call to leave.
+     *
+     * @param address Client address, see getClientAddress
+     * @return Completes once the request may go to the device, or
+     * exceptionally with a RejectedException if it should be refused
+     */
+    public CompletableFuture<Void> admit(String address) {
+        Client client = getClient(address);
+        Waiter waiter = new Waiter(client);
+        long tokenWait = client.takeToken();
+        if (tokenWait > 0) {
+            client.throttled.increment();
+            waiter.completeExceptionally(new RejectedException("Rate limit of " + RATE + " requests per second exceeded",
+                    SC_TOO_MANY_REQUESTS, toRetryAfter(TimeUnit.NANOSECONDS.toMillis(tokenWait))));
+            return waiter;
+        }
+        lock.lock();
+        try {
+            if (running < DEVICE_SLOTS && queued == 0) {
+                running++;
+                waiter.admitted = true;
+            } else if (queued >= MAX_QUEUE || client.waiting.size() >= MAX_QUEUE_PER_CLIENT) {
+                client.rejected.increment();
+                waiter.completeExceptionally(new RejectedException("Server busy", HttpStatus.SC_SERVICE_UNAVAILABLE, toRetryAfter(MAX_WAIT)));
+                return waiter;
+            } else {
+                if (client.waiting.isEmpty()) {
+                    turns.add(client);
+                }
+                client.waiting.add(waiter);
+                queued++;
+                waiter.timeout = timeouts.schedule(() -> expire(waiter), MAX_WAIT, TimeUnit.MILLISECONDS);
+                return waiter;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Completed outside the lock, whatever depends on it may run right here
+        client.admitted.increment();
+        waiter.complete(null);
+        return waiter;
+    }
+
+    private void expire(Waiter waiter) {
+        lock.lock();
+        try {
+            if (!withdrawLocked(waiter)) {
+                // Admitted or abandoned meanwhile
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        waiter.client.rejected.increment();
+        waiter.completeExceptionally(new RejectedException("Timed out waiting for the device",
+                HttpStatus.SC_SERVICE_UNAVAILABLE, toRetryAfter(MAX_WAIT)));
+    }
+
+    /**
+     * Gives up on a request nobody will go on with, whether or not it has
+     * been handed a place yet.
+     */
+    private void abandon(Waiter waiter) {
+        Waiter next = null;
+        boolean withdrawn;
+        lock.lock();
+        try {
+            if (waiter.admitted) {
+                next = leaveLocked();
+            }
+            withdrawn = withdrawLocked(waiter);
+        } finally {
+            lock.unlock();
+        }
+        if (withdrawn) {
+            waiter.client.rejected.increment();
+        }
+        admitNext(next);
+    }
+
+    /**
+     * @return Whether the waiter was still in the queue
+     */
+    private boolean withdrawLocked(Waiter waiter) {
+        Client client = waiter.client;
+        if (!client.waiting.remove(waiter)) {
+            return false;
+        }
+        queued--;
+        if (client.waiting.isEmpty()) {
+            turns.remove(client);
+        }
+        waiter.timeout.cancel(false);
+        return true;
+    }
+
+    /**
+     * Gives up a place at the device, handing it to the next client in turn.
+     */
+    public void leave() {
+        Waiter next;
+        lock.lock();
+        try {
+            next = leaveLocked();
+        } finally {
+            lock.unlock();
+        }
+        admitNext(next);
+    }
+
+    /**
+     * @return Waiter the place has passed to, to be completed once the lock
+     * is released, or null if the place is free
+     */
+    private Waiter leaveLocked() {
+        Client next = turns.poll();
+        if (next == null) {
+            running--;
+            return null;
+        }
+        Waiter waiter = next.waiting.poll();
+        queued--;
+        if (!next.waiting.isEmpty()) {
+            turns.add(next);
+        }
+        // The place passes straight to the waiter, so running stays the same
+        waiter.admitted = true;
+        waiter.timeout.cancel(false);
+        return waiter;
+    }
+
+    private static void admitNext(Waiter waiter) {
+        if (waiter != null) {
+            waiter.client.admitted.increment();
+            waiter.complete(null);
+        }
+    }
+
+    private static long toRetryAfter(long millis) {
+        return Math.max(1, (millis + 999) / 1000);
+    }
+}
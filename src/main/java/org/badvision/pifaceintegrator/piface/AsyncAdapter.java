@@ -0,0 +1,233 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Presents a blocking PifaceConnection as an AsyncPifaceConnection by running
+ * each call on an executor. Unless told otherwise the calls of one adapter run
+ * one at a time, in the order they were made, on the SHARED pool, so writes
+ * land in the order they were issued. Connections whose calls never wait on
+ * anything slow can use DIRECT, which runs them on the caller's thread and
+ * hands back futures that are already complete.
+ *
+ * @author blurry
+ */
+public class AsyncAdapter implements AsyncPifaceConnection {
+
+    public static final int POOL_SIZE = 4;
+    public static final Executor DIRECT = Runnable::run;
+    public static final ExecutorService SHARED = Executors.newFixedThreadPool(POOL_SIZE, task -> {
+        Thread thread = new Thread(task, "PiFace async");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    interface IOCall<T> {
+
+        T call() throws Exception;
+    }
+
+    interface IOTask {
+
+        void run() throws Exception;
+    }
+
+    // Default views, so that every caller of a connection shares one queue
+    private static final Map<PifaceConnection, WeakReference<AsyncAdapter>> views = new WeakHashMap<>();
+
+    private final PifaceConnection connection;
+    private final Executor executor;
+
+    /**
+     * Adapter running the calls in order on the SHARED pool.
+     */
+    public AsyncAdapter(PifaceConnection connection) {
+        this.connection = connection;
+        this.executor = new SerialExecutor(SHARED);
+    }
+
+    public AsyncAdapter(PifaceConnection connection, Executor executor) {
+        this.connection = connection;
+        this.executor = executor;
+    }
+
+    /**
+     * @return The adapter behind the default PifaceConnection.async(), created
+     * on first use and kept as long as anyone holds it or it has work queued
+     */
+    static synchronized AsyncAdapter of(PifaceConnection connection) {
+        WeakReference<AsyncAdapter> ref = views.get(connection);
+        AsyncAdapter view = ref == null ? null : ref.get();
+        if (view == null) {
+            view = new AsyncAdapter(connection);
+            views.put(connection, new WeakReference<>(view));
+        }
+        return view;
+    }
+
+    /**
+     * Runs tasks one at a time, in the order they were handed over, on another
+     * executor. Only a thread draining the queue is held on the executor, so
+     * many of these can share a small pool. Not static: a queue being drained
+     * keeps its adapter reachable, so a cached view is never replaced by a
+     * second queue while the first still has work.
+     */
+    class SerialExecutor implements Executor {
+
+        private final Executor executor;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean draining = false;
+
+        SerialExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (tasks) {
+                tasks.add(task);
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException ex) {
+                synchronized (tasks) {
+                    tasks.remove(task);
+                    draining = false;
+                }
+                throw ex;
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Runs a blocking call on an executor.
+     *
+     * @return Future for the result of the call
+     */
+    static <T> CompletableFuture<T> submit(Executor executor, IOCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    static CompletableFuture<Void> run(Executor executor, IOTask task) {
+        return submit(executor, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> getInputState(int pin) {
+        return submit(executor, () -> connection.getInputState(pin));
+    }
+
+    @Override
+    public CompletableFuture<Integer> getInputPort() {
+        return submit(executor, connection::getInputPort);
+    }
+
+    @Override
+    public CompletableFuture<Integer> getOutputState(int pin) {
+        return submit(executor, () -> connection.getOutputState(pin));
+    }
+
+    @Override
+    public CompletableFuture<Void> setOutputState(int pin, boolean state) {
+        return run(executor, () -> connection.setOutputState(pin, state));
+    }
+
+    @Override
+    public CompletableFuture<Void> setOutputPWM(int pin, int value) {
+        return run(executor, () -> connection.setOutputPWM(pin, value));
+    }
+
+    @Override
+    public CompletableFuture<Void> setOutputPort(int mask, int[] values) {
+        int[] copy = values == null ? null : values.clone();
+        return run(executor, () -> connection.setOutputPort(mask, copy));
+    }
+
+    @Override
+    public int getPinCount() {
+        return connection.getPinCount();
+    }
+
+    @Override
+    public CompletableFuture<int[]> getInputPorts() {
+        return submit(executor, connection::getInputPorts);
+    }
+
+    @Override
+    public CompletableFuture<Void> setOutputPorts(int[] masks, int[][] values) {
+        int[][] copy = values == null ? null : new int[values.length][];
+        for (int port = 0; copy != null && port < copy.length; port++) {
+            copy[port] = values[port] == null ? null : values[port].clone();
+        }
+        return run(executor, () -> connection.setOutputPorts(masks == null ? null : masks.clone(), copy));
+    }
+
+    @Override
+    public CompletableFuture<List<InputEdge>> getInputEdges(int pin, int count) {
+        return submit(executor, () -> connection.getInputEdges(pin, count));
+    }
+
+    @Override
+    public CompletableFuture<List<InputEdge>> getInputEdgesSince(int pin, long sequence) {
+        return submit(executor, () -> connection.getInputEdgesSince(pin, sequence));
+    }
+
+    @Override
+    public CompletableFuture<Void> addListener(int pin, Consumer<Boolean> listener) {
+        return run(executor, () -> connection.addListener(pin, listener));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> isConnected() {
+        return submit(executor, connection::isConnected);
+    }
+
+    @Override
+    public PifaceConnection blocking() {
+        return connection;
+    }
+}
@@ -0,0 +1,80 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking counterpart of PifaceConnection. Every operation returns at
+ * once and its future completes when the operation has been carried out, or
+ * completes exceptionally with the IOException the blocking call would have
+ * thrown. Obtain one from PifaceConnection.async(); blocking() goes the other
+ * way.
+ *
+ * @author blurry
+ */
+public interface AsyncPifaceConnection {
+
+    public CompletableFuture<Boolean> getInputState(int pin);
+
+    public CompletableFuture<Integer> getInputPort();
+
+    public CompletableFuture<Integer> getOutputState(int pin);
+
+    public CompletableFuture<Void> setOutputState(int pin, boolean state);
+
+    public CompletableFuture<Void> setOutputPWM(int pin, int value);
+
+    /**
+     * @param mask Outputs to change, bit N selects output N
+     * @param values PWM value indexed by pin, copied before this returns so
+     * the caller may reuse the array
+     */
+    public CompletableFuture<Void> setOutputPort(int mask, int[] values);
+
+    /**
+     * @see PifaceConnection#getPinCount()
+     */
+    default int getPinCount() {
+        return PifaceConnection.PIN_COUNT;
+    }
+
+    /**
+     * @see PifaceConnection#getInputPorts()
+     */
+    default CompletableFuture<int[]> getInputPorts() {
+        return getInputPort().thenApply(port -> new int[]{port});
+    }
+
+    /**
+     * @see PifaceConnection#setOutputPorts(int[], int[][])
+     */
+    default CompletableFuture<Void> setOutputPorts(int[] masks, int[][] values) {
+        if (masks == null || values == null || masks.length != 1 || values.length != 1) {
+            return failedFuture(new IOException("Expected masks and values for 1 port(s)"));
+        }
+        return setOutputPort(masks[0], values[0]);
+    }
+
+    public CompletableFuture<List<InputEdge>> getInputEdges(int pin, int count);
+
+    public CompletableFuture<List<InputEdge>> getInputEdgesSince(int pin, long sequence);
+
+    public CompletableFuture<Void> addListener(int pin, Consumer<Boolean> listener);
+
+    public CompletableFuture<Boolean> isConnected();
+
+    /**
+     * @return A blocking view of this connection
+     */
+    default PifaceConnection blocking() {
+        return new BlockingConnection(this);
+    }
+
+    static <T> CompletableFuture<T> failedFuture(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+}
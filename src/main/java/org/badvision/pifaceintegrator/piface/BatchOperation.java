@@ -0,0 +1,66 @@
+package org.badvision.pifaceintegrator.piface;
+
+/**
+ * One step of a request to the batch endpoint. Writes name a pin and either
+ * an on/off state or a PWM value; reads only name a pin.
+ *
+ * @author blurry
+ */
+public class BatchOperation {
+
+    public static final String SET_OUTPUT = "setOutput";
+    public static final String SET_PWM = "setPwm";
+    public static final String READ_INPUT = "input";
+    public static final String READ_OUTPUT = "output";
+
+    String op;
+    int pin;
+    int value;
+    boolean state;
+
+    public BatchOperation() {
+    }
+
+    public BatchOperation(String op, int pin, int value, boolean state) {
+        this.op = op;
+        this.pin = pin;
+        this.value = value;
+        this.state = state;
+    }
+
+    public static BatchOperation setOutput(int pin, boolean state) {
+        return new BatchOperation(SET_OUTPUT, pin, 0, state);
+    }
+
+    public static BatchOperation setPwm(int pin, int value) {
+        return new BatchOperation(SET_PWM, pin, value, false);
+    }
+
+    public static BatchOperation readInput(int pin) {
+        return new BatchOperation(READ_INPUT, pin, 0, false);
+    }
+
+    public static BatchOperation readOutput(int pin) {
+        return new BatchOperation(READ_OUTPUT, pin, 0, false);
+    }
+
+    public String getOp() {
+        return op;
+    }
+
+    public int getPin() {
+        return pin;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public boolean getState() {
+        return state;
+    }
+
+    public boolean isWrite() {
+        return SET_OUTPUT.equals(op) || SET_PWM.equals(op);
+    }
+}
@@ -0,0 +1,114 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Presents an AsyncPifaceConnection as a blocking PifaceConnection by waiting
+ * on each future.
+ *
+ * @author blurry
+ */
+public class BlockingConnection implements PifaceConnection {
+
+    private final AsyncPifaceConnection connection;
+
+    public BlockingConnection(AsyncPifaceConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Waits for a result, unwrapping the IOException an operation failed with.
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for PiFace", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    @Override
+    public boolean getInputState(int pin) throws IOException {
+        return await(connection.getInputState(pin));
+    }
+
+    @Override
+    public void addListener(int pin, Consumer<Boolean> listener) throws IOException {
+        await(connection.addListener(pin, listener));
+    }
+
+    @Override
+    public void setOutputState(int pin, boolean state) throws IOException {
+        await(connection.setOutputState(pin, state));
+    }
+
+    @Override
+    public void setOutputPWM(int pin, int value) throws IOException {
+        await(connection.setOutputPWM(pin, value));
+    }
+
+    @Override
+    public int getOutputState(int pin) throws IOException {
+        return await(connection.getOutputState(pin));
+    }
+
+    @Override
+    public int getInputPort() throws IOException {
+        return await(connection.getInputPort());
+    }
+
+    @Override
+    public void setOutputPort(int mask, int[] values) throws IOException {
+        await(connection.setOutputPort(mask, values));
+    }
+
+    @Override
+    public int getPinCount() {
+        return connection.getPinCount();
+    }
+
+    @Override
+    public int[] getInputPorts() throws IOException {
+        return await(connection.getInputPorts());
+    }
+
+    @Override
+    public void setOutputPorts(int[] masks, int[][] values) throws IOException {
+        await(connection.setOutputPorts(masks, values));
+    }
+
+    @Override
+    public List<InputEdge> getInputEdges(int pin, int count) throws IOException {
+        return await(connection.getInputEdges(pin, count));
+    }
+
+    @Override
+    public List<InputEdge> getInputEdgesSince(int pin, long sequence) throws IOException {
+        return await(connection.getInputEdgesSince(pin, sequence));
+    }
+
+    @Override
+    public boolean isConnected() {
+        try {
+            return await(connection.isConnected());
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public AsyncPifaceConnection async() {
+        return connection;
+    }
+}
@@ -0,0 +1,139 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Versioned model of a board's inputs and outputs, kept by RestServer for the
+ * state endpoint. Input changes are recorded as their events arrive and
+ * output writes made through the server as they are made (see
+ * TrackedConnection), so the state is answered from memory. Outputs can also
+ * be changed by anything else holding the connection, so they are compared
+ * against the device at most every REFRESH_INTERVAL, without holding the
+ * model while the device is read. Each change takes the next version number
+ * and stamps its pin, so the changes after any version are simply the pins
+ * stamped later.
+ *
+ * Versions count up from a random starting point, so that a restarted server
+ * does not hand out numbers a client still holds from before.
+ *
+ * @author blurry
+ */
+class BoardState {
+
+    // Milliseconds between checks for outputs written around the server
+    public static final int REFRESH_INTERVAL = 250;
+
+    private final PifaceConnection device;
+    // Below 2^52 so versions survive being read as JSON numbers
+    private final long firstVersion = ThreadLocalRandom.current().nextLong(1, 1L << 52);
+    private long version = firstVersion;
+    private int inputs = 0;
+    private final int[] outputs = new int[PifaceConnection.PIN_COUNT];
+    private final long[] pinVersions = new long[PifaceConnection.PIN_COUNT];
+    private boolean listening = false;
+    private long lastRefresh = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(REFRESH_INTERVAL);
+
+    BoardState(PifaceConnection device) {
+        this.device = device;
+    }
+
+    private void startListening() throws IOException {
+        synchronized (this) {
+            if (listening) {
+                return;
+            }
+            listening = true;
+        }
+        for (int i = 0; i < PifaceConnection.PIN_COUNT; i++) {
+            final int pin = i;
+            device.addListener(pin, state -> setInput(pin, state));
+        }
+        // Events only report changes, so start from what the inputs are now
+        int current = device.getInputPort();
+        synchronized (this) {
+            for (int pin = 0; pin < PifaceConnection.PIN_COUNT; pin++) {
+                if (pinVersions[pin] == 0 && ((inputs ^ current) & (1 << pin)) != 0) {
+                    inputs ^= 1 << pin;
+                    pinVersions[pin] = ++version;
+                }
+            }
+        }
+    }
+
+    private synchronized void setInput(int pin, boolean state) {
+        int bit = 1 << pin;
+        inputs = state ? inputs | bit : inputs & ~bit;
+        // Stamped even if unchanged, a pulse shorter than a poll still shows
+        pinVersions[pin] = ++version;
+    }
+
+    /**
+     * Records output values written to the device.
+     *
+     * @param mask Pins written
+     * @param values Values indexed by pin
+     */
+    synchronized void outputsWritten(int mask, int[] values) {
+        for (int pin = 0; pin < PifaceConnection.PIN_COUNT; pin++) {
+            if ((mask & (1 << pin)) != 0 && outputs[pin] != values[pin]) {
+                outputs[pin] = values[pin];
+                pinVersions[pin] = ++version;
+            }
+        }
+    }
+
+    /**
+     * Reads the outputs from the device, if they are due to be checked, and
+     * records any that differ. A pin stamped while the device was being read
+     * is left alone, its new value is more recent than what was read.
+     */
+    private void refreshOutputs() throws IOException {
+        long started;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (now - lastRefresh < TimeUnit.MILLISECONDS.toNanos(REFRESH_INTERVAL)) {
+                return;
+            }
+            lastRefresh = now;
+            started = version;
+        }
+        int[] current = new int[PifaceConnection.PIN_COUNT];
+        for (int pin = 0; pin < PifaceConnection.PIN_COUNT; pin++) {
+            current[pin] = device.getOutputState(pin);
+        }
+        synchronized (this) {
+            for (int pin = 0; pin < PifaceConnection.PIN_COUNT; pin++) {
+                if (pinVersions[pin] <= started && outputs[pin] != current[pin]) {
+                    outputs[pin] = current[pin];
+                    pinVersions[pin] = ++version;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param since Version the caller already has, or anything below 1 for a
+     * full snapshot
+     * @return Pins changed after that version, or null if there are none
+     * @throws IOException If the device could not be read
+     */
+    StateDelta getChanges(long since) throws IOException {
+        startListening();
+        refreshOutputs();
+        synchronized (this) {
+            boolean full = since < firstVersion || since > version;
+            if (!full && since == version) {
+                return null;
+            }
+            StateDelta delta = new StateDelta(version, full);
+            for (int pin = 0; pin < PifaceConnection.PIN_COUNT; pin++) {
+                if (full || pinVersions[pin] > since) {
+                    delta.pins.add(new PinState(pin, (inputs & (1 << pin)) != 0, outputs[pin]));
+                }
+            }
+            return delta;
+        }
+    }
+}
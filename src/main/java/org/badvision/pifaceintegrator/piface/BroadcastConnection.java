@@ -0,0 +1,194 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read-only connection fed by the datagrams of a StateBroadcaster. Any number
+ * of these can watch a board without adding any load to the server; they
+ * cannot change its outputs.
+ *
+ * State is answered from the last datagram received, so it is at most one
+ * keyframe interval old if packets are lost. Packets from an older sequence
+ * than the one already applied are dropped; a new session means the
+ * broadcaster restarted and its sequence starts over.
+ *
+ * @author blurry
+ */
+public class BroadcastConnection implements PifaceConnection {
+
+    static final Logger log = Logger.getLogger(BroadcastConnection.class.getName());
+    // Considered disconnected after this many keyframes go missing
+    public static final int MISSED_KEYFRAMES = 3;
+
+    Map<Integer, Set<Consumer<Boolean>>> inputListeners = new ConcurrentHashMap<>();
+    InputEdgeHistory inputHistory = new InputEdgeHistory();
+    private final int board;
+    private final DatagramSocket socket;
+    private final Thread receiver;
+    private volatile boolean running = true;
+    // Written only by the receiver thread
+    private int session = -1;
+    private int sequence;
+    private volatile int inputs;
+    // Replaced whole on each packet, so readers see one packet's duties
+    private volatile int[] duties = new int[PIN_COUNT];
+    private volatile long lastReceived = 0;
+
+    /**
+     * @param address Multicast group to join, or the local address and port
+     * unicast datagrams are sent to
+     * @param board Board id to watch, others sharing the address are ignored
+     * @throws IOException If the socket could not be opened
+     */
+    public BroadcastConnection(InetSocketAddress address, int board) throws IOException {
+        this.board = board;
+        if (address.getAddress() != null && address.getAddress().isMulticastAddress()) {
+            MulticastSocket multicast = new MulticastSocket(address.getPort());
+            multicast.joinGroup(address.getAddress());
+            socket = multicast;
+        } else {
+            socket = new DatagramSocket(address);
+        }
+        receiver = new Thread(this::receive, "Broadcast watcher " + address);
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[StateBroadcaster.PACKET_SIZE + 1];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (running) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                if (StateBroadcaster.isValid(buffer, packet.getLength())
+                        && (buffer[StateBroadcaster.BOARD] & 0x0ff) == board) {
+                    apply(buffer);
+                }
+            } catch (SocketException ex) {
+                if (running) {
+                    log.log(Level.WARNING, "Broadcast socket closed unexpectedly", ex);
+                }
+                return;
+            } catch (IOException | RuntimeException ex) {
+                log.log(Level.WARNING, "Error receiving state broadcast", ex);
+            }
+        }
+    }
+
+    private void apply(byte[] packet) {
+        int packetSession = StateBroadcaster.getSession(packet);
+        int packetSequence = StateBroadcaster.getSequence(packet);
+        if (packetSession == session && packetSequence - sequence <= 0) {
+            return;
+        }
+        boolean first = session == -1;
+        session = packetSession;
+        sequence = packetSequence;
+        int[] packetDuties = new int[PIN_COUNT];
+        for (int pin = 0; pin < PIN_COUNT; pin++) {
+            packetDuties[pin] = packet[StateBroadcaster.DUTIES + pin] & 0x0ff;
+        }
+        duties = packetDuties;
+        int previous = inputs;
+        int current = packet[StateBroadcaster.INPUTS] & 0x0ff;
+        inputs = current;
+        lastReceived = System.currentTimeMillis();
+        if (first) {
+            return;
+        }
+        long timestamp = System.nanoTime();
+        for (int pin = 0; pin < PIN_COUNT; pin++) {
+            if (isPinInMask(previous ^ current, pin)) {
+                boolean state = isPinInMask(current, pin);
+                inputHistory.record(pin, state, timestamp);
+                Set<Consumer<Boolean>> listeners = inputListeners.get(pin);
+                if (listeners != null) {
+                    listeners.forEach(listener -> listener.accept(state));
+                }
+            }
+        }
+    }
+
+    private void checkReceived() throws IOException {
+        if (lastReceived == 0) {
+            throw new IOException("No state received yet for board " + board);
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return System.currentTimeMillis() - lastReceived < MISSED_KEYFRAMES * StateBroadcaster.KEYFRAME_INTERVAL;
+    }
+
+    @Override
+    public boolean getInputState(int pin) throws IOException {
+        validateRange(pin);
+        checkReceived();
+        return isPinInMask(inputs, pin);
+    }
+
+    @Override
+    public int getInputPort() throws IOException {
+        checkReceived();
+        return inputs;
+    }
+
+    @Override
+    public void addListener(int pin, Consumer<Boolean> listener) throws IOException {
+        validateRange(pin);
+        inputListeners.computeIfAbsent(pin, p -> new CopyOnWriteArraySet<>()).add(listener);
+    }
+
+    @Override
+    public int getOutputState(int pin) throws IOException {
+        validateRange(pin);
+        checkReceived();
+        return duties[pin];
+    }
+
+    @Override
+    public void setOutputState(int pin, boolean state) throws IOException {
+        throw new IOException("Broadcast connections are read-only");
+    }
+
+    @Override
+    public void setOutputPWM(int pin, int value) throws IOException {
+        throw new IOException("Broadcast connections are read-only");
+    }
+
+    @Override
+    public void setOutputPort(int mask, int[] values) throws IOException {
+        throw new IOException("Broadcast connections are read-only");
+    }
+
+    @Override
+    public List<InputEdge> getInputEdges(int pin, int count) throws IOException {
+        validateRange(pin);
+        return inputHistory.getLast(pin, count);
+    }
+
+    @Override
+    public List<InputEdge> getInputEdgesSince(int pin, long sequence) throws IOException {
+        validateRange(pin);
+        return inputHistory.getSince(pin, sequence);
+    }
+
+    public void close() {
+        running = false;
+        socket.close();
+    }
+}
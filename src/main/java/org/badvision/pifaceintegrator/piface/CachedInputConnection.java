@@ -0,0 +1,182 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * Wraps any PifaceConnection and answers input reads from memory. The last
+ * known state of every input is kept up to date by the change events of the
+ * wrapped connection, and a cached value is used as long as it is younger than
+ * the staleness bound; older values are refreshed with a real read. All other
+ * operations go straight through.
+ *
+ * @author blurry
+ */
+public class CachedInputConnection implements PifaceConnection {
+
+    private final PifaceConnection piface;
+    private final long stalenessNanos;
+    /*
+     * Per input, when it was last confirmed and its state in one word, so the
+     * two always change together: the System.nanoTime of the confirmation
+     * with its lowest bit replaced by the state. UNKNOWN until first seen.
+     */
+    private static final long UNKNOWN = Long.MIN_VALUE;
+    private final AtomicLongArray entries = new AtomicLongArray(PIN_COUNT);
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * @param piface Connection to cache
+     * @param staleness Maximum age of a cached input in milliseconds
+     * @throws IOException If the input listeners could not be registered
+     */
+    public CachedInputConnection(PifaceConnection piface, long staleness) throws IOException {
+        this.piface = piface;
+        this.stalenessNanos = staleness * 1000000L;
+        for (int pin = 0; pin < PIN_COUNT; pin++) {
+            entries.set(pin, UNKNOWN);
+            final int inputPin = pin;
+            piface.addListener(pin, state -> store(inputPin, state, System.nanoTime()));
+        }
+    }
+
+    public PifaceConnection getConnection() {
+        return piface;
+    }
+
+    /**
+     * @return Input reads answered from the cache
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return Input reads that went to the wrapped connection
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    private static long entry(boolean state, long time) {
+        return (time & ~1L) | (state ? 1 : 0);
+    }
+
+    private static boolean isActive(long entry) {
+        return (entry & 1) != 0;
+    }
+
+    /**
+     * Stores a state confirmed at the given time, unless one confirmed later
+     * is already stored. Change events are stamped when they arrive and real
+     * reads when they started, so a read that raced with an event can never
+     * overwrite it, nor move the confirmation time backwards.
+     */
+    private void store(int pin, boolean state, long time) {
+        long update = entry(state, time);
+        long current;
+        do {
+            current = entries.get(pin);
+            if (current != UNKNOWN && current - update > 0) {
+                return;
+            }
+        } while (!entries.compareAndSet(pin, current, update));
+    }
+
+    private boolean isFresh(long entry, long now) {
+        return entry != UNKNOWN && now - entry < stalenessNanos;
+    }
+
+    @Override
+    public boolean getInputState(int pin) throws IOException {
+        validateRange(pin);
+        long entry = entries.get(pin);
+        if (isFresh(entry, System.nanoTime())) {
+            cacheHits.incrementAndGet();
+            return isActive(entry);
+        }
+        cacheMisses.incrementAndGet();
+        long readStarted = System.nanoTime();
+        boolean state = piface.getInputState(pin);
+        store(pin, state, readStarted);
+        return state;
+    }
+
+    @Override
+    public int getInputPort() throws IOException {
+        long now = System.nanoTime();
+        int cached = 0;
+        boolean fresh = true;
+        for (int pin = 0; pin < PIN_COUNT && fresh; pin++) {
+            long entry = entries.get(pin);
+            fresh = isFresh(entry, now);
+            if (isActive(entry)) {
+                cached |= 1 << pin;
+            }
+        }
+        if (fresh) {
+            cacheHits.incrementAndGet();
+            return cached;
+        }
+        cacheMisses.incrementAndGet();
+        long readStarted = System.nanoTime();
+        int port = piface.getInputPort();
+        for (int pin = 0; pin < PIN_COUNT; pin++) {
+            store(pin, isPinInMask(port, pin), readStarted);
+        }
+        return port;
+    }
+
+    @Override
+    public void addListener(int pin, Consumer<Boolean> listener) throws IOException {
+        piface.addListener(pin, listener);
+    }
+
+    @Override
+    public void setOutputState(int pin, boolean state) throws IOException {
+        piface.setOutputState(pin, state);
+    }
+
+    @Override
+    public void setOutputPWM(int pin, int value) throws IOException {
+        piface.setOutputPWM(pin, value);
+    }
+
+    @Override
+    public int getOutputState(int pin) throws IOException {
+        return piface.getOutputState(pin);
+    }
+
+    @Override
+    public void setOutputPort(int mask, int[] values) throws IOException {
+        piface.setOutputPort(mask, values);
+    }
+
+    @Override
+    public List<InputEdge> getInputEdges(int pin, int count) throws IOException {
+        return piface.getInputEdges(pin, count);
+    }
+
+    @Override
+    public List<InputEdge> getInputEdgesSince(int pin, long sequence) throws IOException {
+        return piface.getInputEdgesSince(pin, sequence);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return piface.isConnected();
+    }
+
+    /**
+     * Hands out the wrapped connection's own view, so calls keep whatever
+     * ordering it gives them. Input reads made through it are not cached.
+     */
+    @Override
+    public AsyncPifaceConnection async() {
+        return piface.async();
+    }
+}
@@ -0,0 +1,176 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops sending requests to a server that keeps failing. After
+ * failureThreshold failures in a row the breaker opens and every request is
+ * refused at once instead of waiting out its timeouts. While open, a
+ * background probe checks the server, at growing intervals, and the breaker
+ * closes again as soon as a probe succeeds; callers are never used as probes.
+ *
+ * @author blurry
+ */
+public class CircuitBreaker {
+
+    static final Logger log = Logger.getLogger(CircuitBreaker.class.getName());
+
+    public enum State {
+        CLOSED, OPEN, PROBING
+    }
+
+    /**
+     * Checks whether the server is healthy again.
+     */
+    public interface Probe {
+
+        boolean check() throws Exception;
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long probeInterval;
+    private final long maxProbeInterval;
+    private final Probe probe;
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long nextProbeDelay;
+    private ScheduledExecutorService prober;
+    private volatile Consumer<State> transitionListener;
+    private final AtomicLong openCount = new AtomicLong();
+    private final AtomicLong closeCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param name Used in log messages and the probe thread name
+     * @param failureThreshold Consecutive failures that open the breaker
+     * @param probeInterval First probe delay after opening, in milliseconds;
+     * doubles after each failed probe up to maxProbeInterval
+     * @param maxProbeInterval Longest probe delay, in milliseconds
+     * @param probe Health check run in the background while open
+     */
+    public CircuitBreaker(String name, int failureThreshold, long probeInterval, long maxProbeInterval, Probe probe) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.probeInterval = probeInterval;
+        this.maxProbeInterval = maxProbeInterval;
+        this.probe = probe;
+    }
+
+    /**
+     * @return False if the request should fail straight away
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        if (state == State.CLOSED && ++consecutiveFailures >= failureThreshold) {
+            transition(State.OPEN);
+            openCount.incrementAndGet();
+            log.log(Level.WARNING, "{0} failed {1} times in a row, refusing requests until it recovers",
+                    new Object[]{name, consecutiveFailures});
+            nextProbeDelay = probeInterval;
+            scheduleProbe();
+        }
+    }
+
+    private void scheduleProbe() {
+        if (prober == null) {
+            prober = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "Circuit probe " + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        prober.schedule(this::runProbe, nextProbeDelay, TimeUnit.MILLISECONDS);
+        nextProbeDelay = Math.min(maxProbeInterval, nextProbeDelay * 2);
+    }
+
+    private void runProbe() {
+        synchronized (this) {
+            transition(State.PROBING);
+        }
+        boolean healthy;
+        try {
+            healthy = probe.check();
+        } catch (Exception ex) {
+            healthy = false;
+        }
+        synchronized (this) {
+            if (healthy) {
+                consecutiveFailures = 0;
+                transition(State.CLOSED);
+                closeCount.incrementAndGet();
+                log.log(Level.INFO, "{0} recovered, accepting requests again", name);
+            } else {
+                transition(State.OPEN);
+                scheduleProbe();
+            }
+        }
+    }
+
+    private void transition(State newState) {
+        state = newState;
+        Consumer<State> listener = transitionListener;
+        if (listener != null) {
+            listener.accept(newState);
+        }
+    }
+
+    /**
+     * @param listener Told every new state, for metrics
+     */
+    public void setTransitionListener(Consumer<State> listener) {
+        transitionListener = listener;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return Times the breaker has opened
+     */
+    public long getOpenCount() {
+        return openCount.get();
+    }
+
+    /**
+     * @return Times the breaker has closed again after opening
+     */
+    public long getCloseCount() {
+        return closeCount.get();
+    }
+
+    /**
+     * @return Requests refused while open
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Stops background probing.
+     */
+    public synchronized void shutdown() {
+        if (prober != null) {
+            prober.shutdownNow();
+            prober = null;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Presents several boards as one device. Board B provides port B, so its pin
+ * P is global pin B * PIN_COUNT + P. Single-pin operations go to the board
+ * owning the pin; whole-device operations are issued to every board at once
+ * through their async views and the results gathered, so a slow or remote
+ * board only costs its own round trip rather than adding to everyone else's.
+ *
+ * getInputPort and setOutputPort address the first board, as port 0; use
+ * getInputPorts and setOutputPorts for the whole device.
+ *
+ * @author blurry
+ */
+public class CompositeConnection implements PifaceConnection {
+
+    private final List<PifaceConnection> boards;
+    private final AsyncView asyncView = new AsyncView();
+
+    public CompositeConnection(List<PifaceConnection> boards) {
+        if (boards == null || boards.isEmpty()) {
+            throw new IllegalArgumentException("At least one board is required");
+        }
+        this.boards = Collections.unmodifiableList(new ArrayList<>(boards));
+    }
+
+    public int getBoardCount() {
+        return boards.size();
+    }
+
+    public PifaceConnection getBoard(int board) {
+        return boards.get(board);
+    }
+
+    @Override
+    public int getPinCount() {
+        return boards.size() * PIN_COUNT;
+    }
+
+    private PifaceConnection getBoardForPin(int pin) throws IOException {
+        validateRange(pin);
+        return boards.get(pin / PIN_COUNT);
+    }
+
+    private static int getLocalPin(int pin) {
+        return pin % PIN_COUNT;
+    }
+
+    /**
+     * Starts an operation on every board and collects the results in board
+     * order. Waits for all of them even when one fails, so a failure never
+     * leaves operations running unobserved.
+     *
+     * @param operation Starts the operation for the given board index, or
+     * returns null if that board has nothing to do
+     */
+    private <T> CompletableFuture<List<T>> gather(IntFunction<CompletableFuture<T>> operation) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(boards.size());
+        for (int board = 0; board < boards.size(); board++) {
+            final int index = board;
+            CompletableFuture<T> future;
+            try {
+                future = operation.apply(board);
+                if (future == null) {
+                    continue;
+                }
+            } catch (RuntimeException ex) {
+                future = AsyncPifaceConnection.failedFuture(ex);
+            }
+            // Name the board in any failure
+            futures.add(future.handle((result, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    throw new CompletionException(new IOException("Board " + index + ": " + cause.getMessage(), cause));
+                }
+                return result;
+            }));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+            List<T> results = new ArrayList<>(futures.size());
+            IOException failure = null;
+            for (CompletableFuture<T> future : futures) {
+                try {
+                    results.add(future.join());
+                } catch (CompletionException ex) {
+                    IOException cause = (IOException) ex.getCause();
+                    if (failure == null) {
+                        failure = cause;
+                    } else {
+                        failure.addSuppressed(cause);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw new CompletionException(failure);
+            }
+            return results;
+        });
+    }
+
+    @Override
+    public boolean getInputState(int pin) throws IOException {
+        return getBoardForPin(pin).getInputState(getLocalPin(pin));
+    }
+
+    @Override
+    public void addListener(int pin, Consumer<Boolean> listener) throws IOException {
+        getBoardForPin(pin).addListener(getLocalPin(pin), listener);
+    }
+
+    @Override
+    public void setOutputState(int pin, boolean state) throws IOException {
+        getBoardForPin(pin).setOutputState(getLocalPin(pin), state);
+    }
+
+    @Override
+    public void setOutputPWM(int pin, int value) throws IOException {
+        getBoardForPin(pin).setOutputPWM(getLocalPin(pin), value);
+    }
+
+    @Override
+    public int getOutputState(int pin) throws IOException {
+        return getBoardForPin(pin).getOutputState(getLocalPin(pin));
+    }
+
+    @Override
+    public int getInputPort() throws IOException {
+        return boards.get(0).getInputPort();
+    }
+
+    @Override
+    public void setOutputPort(int mask, int[] values) throws IOException {
+        boards.get(0).setOutputPort(mask, values);
+    }
+
+    @Override
+    public int[] getInputPorts() throws IOException {
+        return BlockingConnection.await(asyncView.getInputPorts());
+    }
+
+    @Override
+    public void setOutputPorts(int[] masks, int[][] values) throws IOException {
+        BlockingConnection.await(asyncView.setOutputPorts(masks, values));
+    }
+
+    @Override
+    public List<InputEdge> getInputEdges(int pin, int count) throws IOException {
+        return toGlobal(pin, getBoardForPin(pin).getInputEdges(getLocalPin(pin), count));
+    }
+
+    @Override
+    public List<InputEdge> getInputEdgesSince(int pin, long sequence) throws IOException {
+        return toGlobal(pin, getBoardForPin(pin).getInputEdgesSince(getLocalPin(pin), sequence));
+    }
+
+    private static List<InputEdge> toGlobal(int pin, List<InputEdge> edges) {
+        List<InputEdge> global = new ArrayList<>(edges.size());
+        edges.forEach(edge -> global.add(new InputEdge(pin, edge.getSequence(), edge.getTimestamp(), edge.getState())));
+        return global;
+    }
+
+    /**
+     * @return True only if every board is connected
+     */
+    @Override
+    public boolean isConnected() {
+        try {
+            return BlockingConnection.await(asyncView.isConnected());
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public AsyncPifaceConnection async() {
+        return asyncView;
+    }
+
+    private class AsyncView implements AsyncPifaceConnection {
+
+        private <T> CompletableFuture<T> onBoard(int pin, Function<AsyncPifaceConnection, CompletableFuture<T>> operation) {
+            try {
+                return operation.apply(getBoardForPin(pin).async());
+            } catch (IOException ex) {
+                return AsyncPifaceConnection.failedFuture(ex);
+            }
+        }
+
+        @Override
+        public int getPinCount() {
+            return CompositeConnection.this.getPinCount();
+        }
+
+        @Override
+        public CompletableFuture<Boolean> getInputState(int pin) {
+            return onBoard(pin, board -> board.getInputState(getLocalPin(pin)));
+        }
+
+        @Override
+        public CompletableFuture<Integer> getInputPort() {
+            return boards.get(0).async().getInputPort();
+        }
+
+        @Override
+        public CompletableFuture<Integer> getOutputState(int pin) {
+            return onBoard(pin, board -> board.getOutputState(getLocalPin(pin)));
+        }
+
+        @Override
+        public CompletableFuture<Void> setOutputState(int pin, boolean state) {
+            return onBoard(pin, board -> board.setOutputState(getLocalPin(pin), state));
+        }
+
+        @Override
+        public CompletableFuture<Void> setOutputPWM(int pin, int value) {
+            return onBoard(pin, board -> board.setOutputPWM(getLocalPin(pin), value));
+        }
+
+        @Override
+        public CompletableFuture<Void> setOutputPort(int mask, int[] values) {
+            return boards.get(0).async().setOutputPort(mask, values);
+        }
+
+        @Override
+        public CompletableFuture<int[]> getInputPorts() {
+            return gather(board -> boards.get(board).async().getInputPort()).thenApply(ports -> {
+                int[] result = new int[ports.size()];
+                for (int port = 0; port < result.length; port++) {
+                    result[port] = ports.get(port);
+                }
+                return result;
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> setOutputPorts(int[] masks, int[][] values) {
+            try {
+                validatePorts(masks, values);
+            } catch (IOException ex) {
+                return AsyncPifaceConnection.failedFuture(ex);
+            }
+            return gather(board -> masks[board] == 0 ? null
+                    : boards.get(board).async().setOutputPort(masks[board], values[board])
+            ).thenApply(results -> null);
+        }
+
+        @Override
+        public CompletableFuture<List<InputEdge>> getInputEdges(int pin, int count) {
+            return onBoard(pin, board -> board.getInputEdges(getLocalPin(pin), count))
+                    .thenApply(edges -> toGlobal(pin, edges));
+        }
+
+        @Override
+        public CompletableFuture<List<InputEdge>> getInputEdgesSince(int pin, long sequence) {
+            return onBoard(pin, board -> board.getInputEdgesSince(getLocalPin(pin), sequence))
+                    .thenApply(edges -> toGlobal(pin, edges));
+        }
+
+        @Override
+        public CompletableFuture<Void> addListener(int pin, Consumer<Boolean> listener) {
+            return onBoard(pin, board -> board.addListener(getLocalPin(pin), listener));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> isConnected() {
+            return gather(board -> boards.get(board).async().isConnected())
+                    .thenApply(results -> results.stream().allMatch(Boolean::booleanValue));
+        }
+
+        @Override
+        public PifaceConnection blocking() {
+            return CompositeConnection.this;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Pushes input changes to any number of HTTP clients as server-sent events.
+ * Each change is encoded once and queued for every subscriber; a subscriber
+ * whose queue fills up is too slow to keep up and gets disconnected, so it can
+ * reconnect and start again from a fresh snapshot. Idle streams only carry a
+ * short keep-alive comment every HEARTBEAT seconds.
+ *
+ * @author blurry
+ */
+class InputChangeFeed {
+
+    static final Logger log = Logger.getLogger(InputChangeFeed.class.getName());
+    public static final String CONTENT_TYPE = "text/event-stream";
+    public static final int QUEUE_SIZE = 256;
+    public static final int HEARTBEAT = 5;
+    static final byte[] KEEP_ALIVE = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final PifaceConnection device;
+    private final Set<Sink> subscribers = new CopyOnWriteArraySet<>();
+    private boolean listening = false;
+
+    InputChangeFeed(PifaceConnection device) {
+        this.device = device;
+    }
+
+    private synchronized void startListening() throws IOException {
+        if (listening) {
+            return;
+        }
+        for (int i = 0; i < PifaceConnection.PIN_COUNT; i++) {
+            final int pin = i;
+            device.addListener(pin, state -> publish(pin, state));
+        }
+        listening = true;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Receives the encoded events for one subscriber.
+     */
+    interface Sink {
+
+        void offer(int pin, boolean state, byte[] event);
+    }
+
+    void publish(int pin, boolean state) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        byte[] event = encode(pin, state);
+        subscribers.forEach(subscriber -> subscriber.offer(pin, state, event));
+    }
+
+    private byte[] encode(int pin, boolean state) {
+        return ResponseCodec.encodeEvent(pin, state);
+    }
+
+    /**
+     * Creates the response entity for a new subscriber. The entity starts with
+     * the current state of every input and then streams changes until the
+     * client goes away or the server shuts down.
+     *
+     * @return Streaming entity to send as the response
+     * @throws IOException If the device could not be read
+     */
+    AbstractHttpEntity subscribe() throws IOException {
+        Subscriber subscriber = new Subscriber();
+        subscriber.registration = addSubscriber(subscriber);
+        return subscriber;
+    }
+
+    /**
+     * Pushes the current state of every input to the sink, then every change,
+     * until the returned task is run. For servers that write the stream
+     * themselves rather than through a blocking entity; they also take care of
+     * heartbeats and of dropping clients that fall behind.
+     *
+     * @param sink Takes each encoded event, on whichever thread produced it
+     * @return Unsubscribes the sink
+     * @throws IOException If the device could not be read
+     */
+    Runnable subscribe(Consumer<byte[]> sink) throws IOException {
+        Sink registration = addSubscriber((pin, state, event) -> sink.accept(event));
+        return () -> subscribers.remove(registration);
+    }
+
+    /**
+     * @return What was registered in subscribers on the subscriber's behalf
+     */
+    private Sink addSubscriber(Sink subscriber) throws IOException {
+        startListening();
+        // Registered before reading the snapshot so that no change can fall between them
+        Joining joining = new Joining(subscriber);
+        subscribers.add(joining);
+        try {
+            joining.joined(device.getInputPort());
+        } catch (IOException ex) {
+            subscribers.remove(joining);
+            throw ex;
+        }
+        return joining;
+    }
+
+    private static class HeldEvent {
+
+        final int pin;
+        final boolean state;
+        final byte[] event;
+
+        HeldEvent(int pin, boolean state, byte[] event) {
+            this.pin = pin;
+            this.state = state;
+            this.event = event;
+        }
+    }
+
+    /**
+     * Stands in for a subscriber. Events published while its snapshot is
+     * being read are held back until the snapshot has been queued, so a
+     * snapshot can never land after a newer event.
+     */
+    private class Joining implements Sink {
+
+        final Sink subscriber;
+        // Null once the snapshot is queued
+        private List<HeldEvent> held = new ArrayList<>();
+
+        Joining(Sink subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public synchronized void offer(int pin, boolean state, byte[] event) {
+            if (held != null) {
+                held.add(new HeldEvent(pin, state, event));
+            } else {
+                subscriber.offer(pin, state, event);
+            }
+        }
+
+        /**
+         * Queues the snapshot, then the held events. The first events for a
+         * pin that agree with the snapshot may already be part of it, so
+         * those are dropped.
+         */
+        synchronized void joined(int inputs) {
+            for (int pin = 0; pin < PifaceConnection.PIN_COUNT; pin++) {
+                boolean state = (inputs & (1 << pin)) != 0;
+                subscriber.offer(pin, state, encode(pin, state));
+            }
+            // Pins with nothing but events the snapshot reflects so far
+            int reflected = (1 << PifaceConnection.PIN_COUNT) - 1;
+            for (HeldEvent event : held) {
+                int bit = 1 << event.pin;
+                if ((reflected & bit) != 0 && event.state == ((inputs & bit) != 0)) {
+                    continue;
+                }
+                reflected &= ~bit;
+                subscriber.offer(event.pin, event.state, event.event);
+            }
+            held = null;
+        }
+    }
+
+    private class Subscriber extends AbstractHttpEntity implements Sink {
+
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        volatile boolean overflowed = false;
+        Sink registration;
+
+        Subscriber() {
+            setContentType(CONTENT_TYPE);
+            setChunked(true);
+        }
+
+        @Override
+        public void offer(int pin, boolean state, byte[] event) {
+            if (!queue.offer(event)) {
+                overflowed = true;
+            }
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try {
+                out.flush();
+                while (!overflowed) {
+                    byte[] event = queue.poll(HEARTBEAT, TimeUnit.SECONDS);
+                    out.write(event != null ? event : KEEP_ALIVE);
+                    // Drain whatever else is ready before flushing
+                    while ((event = queue.poll()) != null) {
+                        out.write(event);
+                    }
+                    out.flush();
+                }
+                log.log(Level.WARNING, "Input stream subscriber fell behind, disconnecting");
+            } catch (InterruptedException ex) {
+                // Server is shutting down
+            } finally {
+                subscribers.remove(registration);
+            }
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException("Input change stream can only be written");
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+    }
+}
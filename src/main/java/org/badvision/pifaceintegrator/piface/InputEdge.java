@@ -0,0 +1,45 @@
+package org.badvision.pifaceintegrator.piface;
+
+/**
+ * A single recorded input change. Timestamps are System.nanoTime values taken
+ * on the host the input is attached to, so only differences between edges
+ * from the same source are meaningful.
+ *
+ * @author blurry
+ */
+public class InputEdge {
+
+    int pin;
+    long sequence;
+    long timestamp;
+    boolean state;
+
+    public InputEdge() {
+    }
+
+    public InputEdge(int pin, long sequence, long timestamp, boolean state) {
+        this.pin = pin;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.state = state;
+    }
+
+    public int getPin() {
+        return pin;
+    }
+
+    /**
+     * @return Position of this edge in the history of its pin, starting at 1
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean getState() {
+        return state;
+    }
+}
@@ -0,0 +1,106 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the most recent input edges of each pin in a fixed-size ring buffer.
+ * Recording an edge only writes into preallocated arrays; objects are created
+ * when the history is read. Each pin numbers its edges from 1, so a reader
+ * that asks for everything after the last sequence it saw can tell from the
+ * first sequence returned whether older edges were overwritten meanwhile.
+ *
+ * @author blurry
+ */
+public class InputEdgeHistory {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final Ring[] rings;
+
+    public InputEdgeHistory() {
+        this(PifaceConnection.PIN_COUNT, DEFAULT_CAPACITY);
+    }
+
+    public InputEdgeHistory(int pins, int capacity) {
+        rings = new Ring[pins];
+        for (int i = 0; i < pins; i++) {
+            rings[i] = new Ring(capacity);
+        }
+    }
+
+    public void record(int pin, boolean state) {
+        record(pin, state, System.nanoTime());
+    }
+
+    public void record(int pin, boolean state, long timestamp) {
+        rings[pin].add(state, timestamp);
+    }
+
+    /**
+     * @param pin Input pin
+     * @return Sequence number of the latest edge on this pin, 0 if none yet
+     */
+    public long getSequence(int pin) {
+        return rings[pin].getLastSequence();
+    }
+
+    /**
+     * @param pin Input pin
+     * @param count Maximum number of edges to return
+     * @return Up to count of the latest edges, oldest first
+     */
+    public List<InputEdge> getLast(int pin, int count) {
+        Ring ring = rings[pin];
+        synchronized (ring) {
+            return ring.copyFrom(pin, ring.getLastSequence() - count + 1);
+        }
+    }
+
+    /**
+     * @param pin Input pin
+     * @param sequence Last sequence number already seen, 0 for everything
+     * @return All retained edges after the given sequence, oldest first
+     */
+    public List<InputEdge> getSince(int pin, long sequence) {
+        Ring ring = rings[pin];
+        synchronized (ring) {
+            return ring.copyFrom(pin, sequence + 1);
+        }
+    }
+
+    private static class Ring {
+
+        final long[] timestamps;
+        final boolean[] states;
+        // Sequence number the next edge will get
+        long nextSequence = 1;
+
+        Ring(int capacity) {
+            timestamps = new long[capacity];
+            states = new boolean[capacity];
+        }
+
+        synchronized void add(boolean state, long timestamp) {
+            int index = (int) (nextSequence % timestamps.length);
+            timestamps[index] = timestamp;
+            states[index] = state;
+            nextSequence++;
+        }
+
+        synchronized long getLastSequence() {
+            return nextSequence - 1;
+        }
+
+        List<InputEdge> copyFrom(int pin, long firstSequence) {
+            long oldest = Math.max(1, nextSequence - timestamps.length);
+            long first = Math.max(firstSequence, oldest);
+            List<InputEdge> edges = new ArrayList<>((int) Math.max(0, nextSequence - first));
+            for (long seq = first; seq < nextSequence; seq++) {
+                int index = (int) (seq % timestamps.length);
+                edges.add(new InputEdge(pin, seq, timestamps[index], states[index]));
+            }
+            return edges;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.badvision.pifaceintegrator.piface.RestServer.RestResponse;
+
+/**
+ * Encoded /inputs response, kept by RestServer so that any number of polling
+ * clients cost one device read and one encoding per input change rather than
+ * one per request. Input events invalidate it; in case a connection misses an
+ * event it is also re-read once it is MAX_AGE old, which still bounds the work
+ * independently of the number of clients.
+ *
+ * The ETag is derived from the input states alone, so a re-read that finds
+ * nothing changed keeps the same tag and clients keep getting 304s.
+ *
+ * @author blurry
+ */
+class InputsCache {
+
+    public static final long MAX_AGE = 1000;
+
+    static final class Entry {
+
+        final int inputs;
+        final byte[] body;
+        final String etag;
+        final long created = System.nanoTime();
+
+        Entry(int inputs, byte[] body) {
+            this.inputs = inputs;
+            this.body = body;
+            this.etag = "\"" + Integer.toHexString(inputs) + "\"";
+        }
+
+        boolean isFresh() {
+            return System.nanoTime() - created < TimeUnit.MILLISECONDS.toNanos(MAX_AGE);
+        }
+
+        /**
+         * @param ifNoneMatch Value of an If-None-Match header
+         * @return True if the client already has this response
+         */
+        boolean matches(String ifNoneMatch) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final PifaceConnection device;
+    private volatile Entry current;
+    // Bumped by every input event, so a read that raced with one is not kept
+    private final AtomicLong invalidations = new AtomicLong();
+    private boolean listening = false;
+
+    InputsCache(PifaceConnection device) {
+        this.device = device;
+    }
+
+    private void startListening() throws IOException {
+        if (listening) {
+            return;
+        }
+        for (int pin = 0; pin < PifaceConnection.PIN_COUNT; pin++) {
+            device.addListener(pin, state -> invalidate());
+        }
+        listening = true;
+    }
+
+    void invalidate() {
+        invalidations.incrementAndGet();
+        current = null;
+    }
+
+    /**
+     * @return The current response, reading the device only if it has
+     * changed or the cached one is too old
+     * @throws IOException If the device could not be read
+     */
+    Entry get() throws IOException {
+        Entry entry = current;
+        if (entry != null && entry.isFresh()) {
+            return entry;
+        }
+        // Concurrent misses wait for the first one rather than all reading
+        synchronized (this) {
+            startListening();
+            entry = current;
+            if (entry != null && entry.isFresh()) {
+                return entry;
+            }
+            long seen = invalidations.get();
+            int inputs = device.getInputPort();
+            entry = new Entry(inputs, ResponseCodec.encode(toPinList(inputs)));
+            if (invalidations.get() == seen) {
+                current = entry;
+            }
+            return entry;
+        }
+    }
+
+    private static List<RestResponse> toPinList(int inputs) {
+        List<RestResponse> pins = new ArrayList<>(PifaceConnection.PIN_COUNT);
+        for (int i = 0; i < PifaceConnection.PIN_COUNT; i++) {
+            RestResponse pin = new RestResponse();
+            pin.setPin(i);
+            pin.setState((inputs & (1 << i)) != 0);
+            pins.add(pin);
+        }
+        return pins;
+    }
+}
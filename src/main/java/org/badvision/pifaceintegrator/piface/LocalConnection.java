@@ -1,24 +1,41 @@
 package org.badvision.pifaceintegrator.piface;
 
 import com.pi4j.device.piface.PiFace;
-import com.pi4j.device.piface.impl.PiFaceDevice;
-import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
-import com.pi4j.io.gpio.event.GpioPinListenerDigital;
 import com.pi4j.io.spi.SpiChannel;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.badvision.pifaceintegrator.metrics.Counter;
+import org.badvision.pifaceintegrator.metrics.Histogram;
+import org.badvision.pifaceintegrator.metrics.Metrics;
 
 /**
  * Implements a local connection to a PiFace physically wired to this host.
  *
+ * PWM is rendered as a sequence of precomputed frames, one full output port
+ * value per counter step. The frames are rebuilt only when an output changes,
+ * so each PWM tick costs at most one port write and nothing at all when the
+ * port value is the same as the previous tick.
+ *
+ * Outside of PWM the port is written from a shadow copy of the output latch.
+ * Updates that do not change the latch are dropped, and updates arriving
+ * within OUTPUT_WINDOW of the previous write are merged into a single
+ * trailing write at the end of that window.
+ *
+ * Any number of boards can be driven from one process: a single PWM task
+ * ticks every board with PWM running, one after the other, and merged writes
+ * for all of them run on IO_THREADS shared threads, while each board keeps
+ * its own lock so access to one never waits on another.
+ *
  * @author blurry
  */
 public class LocalConnection implements PifaceConnection {
@@ -26,12 +43,77 @@ public class LocalConnection implements PifaceConnection {
     static final Logger log = Logger.getLogger(LocalConnection.class.getName());
     // PWM pulses are at 50 microseconds, more or less
     public static final long PWM_UNIT = 50;
-    PiFaceDevice device;
-    private final Map<Integer, Integer> pwmValues;
+    // Output updates closer together than this (microseconds) share one write
+    public static final long OUTPUT_WINDOW = PWM_UNIT;
+    // Threads running the PWM ticks and merged writes for all boards together
+    public static final int IO_THREADS = 2;
+    // A PWM tick this much later than scheduled counts as an overrun
+    public static final long PWM_OVERRUN = PWM_UNIT;
+    static final Counter spiWrites = Metrics.counter("piface_spi_writes_total", "Output port writes sent to the device");
+    static final Histogram spiWriteTime = Metrics.histogram("piface_spi_write_seconds", "Time taken by output port writes");
+    static final Counter pwmTicks = Metrics.counter("piface_pwm_ticks_total", "PWM ticks run");
+    static final Counter pwmOverruns = Metrics.counter("piface_pwm_overruns_total", "PWM ticks run late by more than one PWM unit");
+    PifacePort device;
+    private final InputEdgeHistory inputHistory = new InputEdgeHistory();
+    // Outputs that are simply on or off, bit N drives output N
+    private int outputLatch = 0;
+    // Outputs driven by PWM, and their duty values indexed by pin
+    private int pwmMask = 0;
+    private final int[] pwmValues = new int[PIN_COUNT];
+    // Port value for each PWM counter step, replaced (never modified) on change
+    private volatile int[] pwmFrames = new int[PWM_RANGE];
+    // Last value actually written to the port
+    private volatile int lastPortValue = -1;
+    private int pwmCounter = 0;
+    // When the PWM thread expects its next tick, in System.nanoTime
+    private long nextTick = 0;
+    // Time of the last immediate write, and whether a merged write is queued
+    private long lastWriteTime = 0;
+    private boolean flushPending = false;
+    private final AtomicLong requestedWrites = new AtomicLong();
+    private final AtomicLong issuedWrites = new AtomicLong();
+    // Optional observer told the System.nanoTime of every PWM tick
+    private volatile LongConsumer pwmTickObserver;
+    private final AsyncPifaceConnection asyncView = new AsyncAdapter(this, AsyncAdapter.DIRECT);
 
     public LocalConnection() throws IOException {
-        device = new PiFaceDevice(PiFace.DEFAULT_ADDRESS, SpiChannel.CS0);
-        pwmValues = new ConcurrentHashMap<>();
+        this(PiFace.DEFAULT_ADDRESS, SpiChannel.CS0);
+    }
+
+    /**
+     * @param address Hardware address set by the board's jumpers
+     * @param channel SPI chip select the board is on
+     */
+    public LocalConnection(byte address, SpiChannel channel) throws IOException {
+        this(new PiFacePortProvider(address, channel));
+    }
+
+    public LocalConnection(PifacePort port) throws IOException {
+        device = port;
+        writePort(outputLatch);
+        for (int pin = 0; pin < PIN_COUNT; pin++) {
+            final int inputPin = pin;
+            // Registered first so edges are stamped before any other listener runs
+            device.addInputListener(pin, state -> inputHistory.record(inputPin, state));
+        }
+    }
+
+    public void setPwmTickObserver(LongConsumer observer) {
+        pwmTickObserver = observer;
+    }
+
+    /**
+     * @return Port writes asked for, one per output update and per PWM tick
+     */
+    public long getRequestedWrites() {
+        return requestedWrites.get();
+    }
+
+    /**
+     * @return Port writes actually sent to the device
+     */
+    public long getIssuedWrites() {
+        return issuedWrites.get();
     }
 
     @Override
@@ -39,104 +121,259 @@ public class LocalConnection implements PifaceConnection {
         return device != null;
     }
 
+    /**
+     * Every operation is a register access or an update of in-memory state,
+     * so async calls simply run on the caller's thread.
+     */
+    @Override
+    public AsyncPifaceConnection async() {
+        return asyncView;
+    }
+
     @Override
     public boolean getInputState(int inputPin) throws IOException {
         validateRange(inputPin);
-        return device.getInputPin(inputPin).isLow();
+        return device.isInputActive(inputPin);
     }
 
     @Override
     public void addListener(int inputPin, Consumer<Boolean> listener) throws IOException {
         validateRange(inputPin);
-        device.getInputPin(inputPin).addListener((GpioPinListenerDigital) (GpioPinDigitalStateChangeEvent event)
-                -> listener.accept(event.getState().isLow())
-        );
+        device.addInputListener(inputPin, listener);
     }
 
     @Override
     public void setOutputState(int pin, boolean state) throws IOException {
         validateRange(pin);
-        disablePwm(pin);
-        _setOutputState(pin, state);
+        int[] values = new int[PIN_COUNT];
+        values[pin] = state ? PWM_RANGE : 0;
+        applyOutputs(1 << pin, values);
     }
 
-    private void _setOutputState(int pin, boolean state) {
-        device.getOutputPin(pin).setState(state);
+    @Override
+    public void setOutputPWM(int pin, int value) throws IOException {
+        validateRange(pin);
+        int[] values = new int[PIN_COUNT];
+        values[pin] = value;
+        applyOutputs(1 << pin, values);
     }
 
     @Override
-    public void setOutputPWM(int pin, int value) throws IOException {
+    public synchronized int getOutputState(int pin) throws IOException {
         validateRange(pin);
-        if (value <= 0) {
-            setOutputState(pin, false);
-        } else if (value >= 100) {
-            setOutputState(pin, true);
+        if (isPinInMask(pwmMask, pin)) {
+            return pwmValues[pin];
         } else {
-            setPwmValue(pin, value);
+            return isPinInMask(outputLatch, pin) ? PWM_RANGE : 0;
         }
     }
 
     @Override
-    public int getOutputState(int pin) throws IOException {
+    public List<InputEdge> getInputEdges(int pin, int count) throws IOException {
         validateRange(pin);
-        if (isPwmEnabledForPin(pin)) {
-            return getPwmValue(pin);
+        return inputHistory.getLast(pin, count);
+    }
+
+    @Override
+    public List<InputEdge> getInputEdgesSince(int pin, long sequence) throws IOException {
+        validateRange(pin);
+        return inputHistory.getSince(pin, sequence);
+    }
+
+    @Override
+    public int getInputPort() throws IOException {
+        return device.readInputPort();
+    }
+
+    @Override
+    public void setOutputPort(int mask, int[] values) throws IOException {
+        validatePort(mask, values);
+        applyOutputs(mask, values);
+    }
+
+    private synchronized void applyOutputs(int mask, int[] values) throws IOException {
+        requestedWrites.incrementAndGet();
+        int oldLatch = outputLatch;
+        int oldPwmMask = pwmMask;
+        boolean pwmChanged = false;
+        for (int pin = 0; pin < PIN_COUNT; pin++) {
+            if (!isPinInMask(mask, pin)) {
+                continue;
+            }
+            int bit = 1 << pin;
+            int value = values[pin];
+            if (value <= 0 || value >= PWM_RANGE) {
+                pwmMask &= ~bit;
+                outputLatch = value >= PWM_RANGE ? outputLatch | bit : outputLatch & ~bit;
+            } else {
+                pwmMask |= bit;
+                pwmChanged |= pwmValues[pin] != value;
+                pwmValues[pin] = value;
+            }
+        }
+        if (outputLatch == oldLatch && pwmMask == oldPwmMask && !pwmChanged) {
+            return;
+        }
+        if (pwmMask == 0) {
+            disablePWMMode();
+            writeLatch();
         } else {
-            return device.getOutputPin(pin).getState().isHigh() ? PWM_RANGE : 0;
+            pwmFrames = renderFrames();
+            enablePWMMode();
         }
     }
 
-    private boolean isPwmActive() {
-        return !pwmValues.isEmpty() && executorService != null && !executorService.isShutdown();
+    /**
+     * Writes the output latch right away, unless the port was written less
+     * than OUTPUT_WINDOW ago: then one write is queued for the end of that
+     * window, which will carry this and any other update made before it runs.
+     */
+    private synchronized void writeLatch() throws IOException {
+        if (flushPending) {
+            return;
+        }
+        long elapsed = System.nanoTime() - lastWriteTime;
+        long window = TimeUnit.MICROSECONDS.toNanos(OUTPUT_WINDOW);
+        if (elapsed >= window) {
+            lastWriteTime = System.nanoTime();
+            writePort(outputLatch);
+        } else {
+            flushPending = true;
+            getExecutor().schedule(this::flushLatch, window - elapsed, TimeUnit.NANOSECONDS);
+        }
     }
 
-    private void setPwmValue(int pin, int value) {
-        if (!isPwmActive()) {
-            enablePWMMode();
+    private synchronized void flushLatch() {
+        flushPending = false;
+        lastWriteTime = System.nanoTime();
+        // While PWM is running the frames already carry the latch
+        if (pwmMask == 0) {
+            try {
+                writePort(outputLatch);
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Error writing outputs", ex);
+            }
         }
-        pwmValues.put(pin, value);
     }
 
-    private void disablePwm(int pin) {
-        pwmValues.remove(pin);
-        if (pwmValues.isEmpty()) {
-            disablePWMMode();
+    /**
+     * Builds the port value for every PWM counter step. A pin with duty value
+     * V is on for the first V of the PWM_RANGE steps.
+     */
+    private int[] renderFrames() {
+        int[] frames = new int[PWM_RANGE];
+        for (int step = 0; step < PWM_RANGE; step++) {
+            int frame = outputLatch & ~pwmMask;
+            for (int pin = 0; pin < PIN_COUNT; pin++) {
+                if (isPinInMask(pwmMask, pin) && step < pwmValues[pin]) {
+                    frame |= 1 << pin;
+                }
+            }
+            frames[step] = frame;
         }
+        return frames;
     }
 
-    private boolean isPwmEnabledForPin(int pin) {
-        return pwmValues.containsKey(pin);
+    private synchronized void writePort(int value) throws IOException {
+        if (value == lastPortValue) {
+            return;
+        }
+        long start = System.nanoTime();
+        device.writeOutputPort(value);
+        spiWriteTime.recordSince(start);
+        spiWrites.increment();
+        lastPortValue = value;
+        issuedWrites.incrementAndGet();
+    }
+
+    private synchronized void writeFrame(int frame) throws IOException {
+        // PWM may have been switched off while this tick was waiting
+        if (pwmMask != 0) {
+            writePort(frame);
+        }
+    }
+
+    // Shared by every board, so the thread count doesn't grow with boards
+    private static ScheduledThreadPoolExecutor executorService;
+    // Boards with PWM running, all ticked by the one task so that the cost of
+    // scheduling ticks does not grow with the number of boards
+    private static final List<LocalConnection> pwmBoards = new CopyOnWriteArrayList<>();
+    private static ScheduledFuture<?> pwmTask;
+    private boolean pwmRunning = false;
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (executorService == null) {
+            executorService = new ScheduledThreadPoolExecutor(IO_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "PiFace outputs");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // PWM tasks come and go with every change of mode
+            executorService.setRemoveOnCancelPolicy(true);
+        }
+        return executorService;
     }
 
-    private int getPwmValue(int pin) {
-        return isPwmEnabledForPin(pin) ? pwmValues.get(pin) : -1;
+    private synchronized void enablePWMMode() {
+        if (!pwmRunning) {
+            log.info("Starting PWM");
+            pwmRunning = true;
+            nextTick = 0;
+            startTicks(this);
+        }
     }
 
-    ScheduledExecutorService executorService;
+    private static synchronized void startTicks(LocalConnection board) {
+        pwmBoards.add(board);
+        if (pwmTask == null) {
+            pwmTask = getExecutor().scheduleAtFixedRate(LocalConnection::tickAll, 0, PWM_UNIT, TimeUnit.MICROSECONDS);
+        }
+    }
 
-    private void enablePWMMode() {
-        if (executorService == null || executorService.isShutdown()) {
-            log.info("Starting PWM thread");
-            executorService = Executors.newSingleThreadScheduledExecutor();
-            executorService.scheduleAtFixedRate(this::processPwm, 0, PWM_UNIT, TimeUnit.MICROSECONDS);
+    private static synchronized void stopTicks(LocalConnection board) {
+        pwmBoards.remove(board);
+        if (pwmBoards.isEmpty() && pwmTask != null) {
+            pwmTask.cancel(false);
+            pwmTask = null;
         }
     }
 
-    AtomicInteger pwmCounter = new AtomicInteger(0);
+    private static void tickAll() {
+        for (LocalConnection board : pwmBoards) {
+            board.processPwm();
+        }
+    }
 
     private void processPwm() {
         try {
-            int counter = pwmCounter.updateAndGet(val -> {return val < PWM_RANGE ? val + 1 : 0;});
-            pwmValues.entrySet().forEach(entry -> _setOutputState(entry.getKey(), entry.getValue() >= counter));
+            long now = System.nanoTime();
+            LongConsumer observer = pwmTickObserver;
+            if (observer != null) {
+                observer.accept(now);
+            }
+            pwmTicks.increment();
+            // Ticks that missed their slot run back to back, each one counts
+            if (nextTick != 0 && now - nextTick > TimeUnit.MICROSECONDS.toNanos(PWM_OVERRUN)) {
+                pwmOverruns.increment();
+            }
+            nextTick = (nextTick == 0 ? now : nextTick) + TimeUnit.MICROSECONDS.toNanos(PWM_UNIT);
+            requestedWrites.incrementAndGet();
+            int[] frames = pwmFrames;
+            int frame = frames[pwmCounter];
+            pwmCounter = pwmCounter + 1 < frames.length ? pwmCounter + 1 : 0;
+            if (frame != lastPortValue) {
+                writeFrame(frame);
+            }
         } catch (Throwable t) {
             log.log(Level.WARNING, "Error in PWM thread", t);
         }
     }
 
-    private void disablePWMMode() {
-        log.info("Shutting down PWM thread");
-        pwmValues.clear();
-        executorService.shutdownNow();
-        executorService = null;
+    private synchronized void disablePWMMode() {
+        if (pwmRunning) {
+            log.info("Stopping PWM");
+            pwmRunning = false;
+            stopTicks(this);
+        }
     }
 }
@@ -2,9 +2,11 @@ package org.badvision.pifaceintegrator.piface;
 
 import java.io.IOException;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -20,7 +22,8 @@ import java.util.logging.Logger;
  * @author blurry
  */
 public class MockConnection implements PifaceConnection {
-    Set<Consumer<Boolean>> inputListeners = new HashSet<>();
+    Map<Integer, Set<Consumer<Boolean>>> inputListeners = new ConcurrentHashMap<>();
+    InputEdgeHistory inputHistory = new InputEdgeHistory();
     @Override
     public boolean isConnected() {
         return true;
@@ -34,7 +37,7 @@ public class MockConnection implements PifaceConnection {
     @Override
     public void addListener(int pin, Consumer<Boolean> listener) throws IOException {
         validateRange(pin);
-        inputListeners.add(listener);
+        inputListeners.computeIfAbsent(pin, p -> new CopyOnWriteArraySet<>()).add(listener);
         initRandomCallbacks();
     }
 
@@ -57,6 +60,39 @@ public class MockConnection implements PifaceConnection {
         return outputPinStates.containsKey(pin) ? outputPinStates.get(pin) : 0;
     }    
 
+    @Override
+    public List<InputEdge> getInputEdges(int pin, int count) throws IOException {
+        validateRange(pin);
+        return inputHistory.getLast(pin, count);
+    }
+
+    @Override
+    public List<InputEdge> getInputEdgesSince(int pin, long sequence) throws IOException {
+        validateRange(pin);
+        return inputHistory.getSince(pin, sequence);
+    }
+
+    @Override
+    public int getInputPort() throws IOException {
+        int port = 0;
+        for (int pin = 0; pin < PIN_COUNT; pin++) {
+            if (Math.random() < 0.25) {
+                port |= 1 << pin;
+            }
+        }
+        return port;
+    }
+
+    @Override
+    public void setOutputPort(int mask, int[] values) throws IOException {
+        validatePort(mask, values);
+        for (int pin = 0; pin < PIN_COUNT; pin++) {
+            if (isPinInMask(mask, pin)) {
+                outputPinStates.put(pin, values[pin]);
+            }
+        }
+    }
+
     ScheduledExecutorService executorService;
     private void initRandomCallbacks() {
         if (executorService == null || executorService.isShutdown()) {
@@ -67,13 +103,15 @@ public class MockConnection implements PifaceConnection {
     
     private void randomlyTriggerListeners() {
         try {
-            inputListeners.stream().filter(l->Math.random() < 0.25).forEach(this::triggerListener);
+            inputListeners.keySet().stream().filter(p->Math.random() < 0.25).forEach(this::triggerListeners);
         } catch (Throwable ex) {
             Logger.getLogger(MockConnection.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
     
-    private void triggerListener(Consumer<Boolean> listener) {
-        listener.accept(Math.random() < 0.25);
+    private void triggerListeners(int pin) {
+        boolean state = Math.random() < 0.25;
+        inputHistory.record(pin, state);
+        inputListeners.get(pin).forEach(listener -> listener.accept(state));
     }
 }
@@ -0,0 +1,736 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Event-driven HTTP/1.1 server. A few reactor threads multiplex every client
+ * socket through a Selector, so idle keep-alive connections and open streams
+ * cost a buffer each rather than a thread and its stack. Requests are parsed
+ * on the reactor and run on a separate worker pool, which is the only place
+ * handlers (and so device calls) execute. Pipelined requests on a connection
+ * run one after another and their responses go back in the same order.
+ *
+ * Handlers are the same HttpRequestHandlers the blocking server uses, routed
+ * by exact path; their responses are buffered and sent with a Content-Length.
+ * Long-lived responses register a StreamHandler instead and push chunks as
+ * they come. A path can also have a Gate, which holds its requests back until
+ * they may run without tying up a worker while they wait.
+ *
+ * @author blurry
+ */
+public class NioHttpServer {
+
+    static final Logger log = Logger.getLogger(NioHttpServer.class.getName());
+    public static final int IO_THREADS = 2;
+    public static final int WORKER_THREADS = 4;
+    public static final int BUFFER_SIZE = 4096;
+    public static final int MAX_HEADER_SIZE = 16384;
+    public static final int MAX_BODY_SIZE = 65536;
+    public static final int MAX_PIPELINE = 16;
+    public static final int MAX_PENDING_OUTPUT = 256 * 1024;
+    public static final long IDLE_TIMEOUT = 60000;
+    public static final long SWEEP_INTERVAL = 1000;
+    // Context attribute holding the InetAddress of the client
+    public static final String REMOTE_ADDRESS = "http.remote-address";
+    // Context attribute holding Boolean.TRUE once the path's Gate let the request through, or the exception it failed with
+    public static final String ADMISSION = "piface.admission";
+    static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * Serves a response whose body is pushed a chunk at a time for as long as
+     * the client stays connected.
+     */
+    public interface StreamHandler {
+
+        /**
+         * Runs on a worker thread.
+         *
+         * @param request The request being answered
+         * @param sink Takes each chunk of the body, from any thread
+         * @return Called once when the client goes away
+         * @throws IOException To fail the request before any of it is sent
+         */
+        Runnable open(HttpRequest request, Consumer<byte[]> sink) throws IOException;
+    }
+
+    /**
+     * Decides when a request may go to a worker.
+     */
+    public interface Gate {
+
+        /**
+         * Runs on a reactor or worker thread, so it must not block.
+         *
+         * @param request The request waiting to run
+         * @param context Context it will be handled with
+         * @return Completes when the request may run. Either way the request
+         * then goes to its handler, with the outcome in ADMISSION.
+         */
+        CompletableFuture<?> admit(HttpRequest request, HttpContext context);
+    }
+
+    private static class Stream {
+
+        final String contentType;
+        final byte[] heartbeat;
+        final long heartbeatInterval;
+        final StreamHandler handler;
+
+        Stream(String contentType, byte[] heartbeat, long heartbeatInterval, StreamHandler handler) {
+            this.contentType = contentType;
+            this.heartbeat = heartbeat;
+            this.heartbeatInterval = heartbeatInterval;
+            this.handler = handler;
+        }
+    }
+
+    private final RequestRouter<HttpRequestHandler> handlers = new RequestRouter<>();
+    private final RequestRouter<Stream> streams = new RequestRouter<>();
+    private final RequestRouter<Gate> gates = new RequestRouter<>();
+    private final ServerSocketChannel serverChannel;
+    private final Reactor[] reactors;
+    private final ExecutorService workers;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile boolean running = true;
+
+    public NioHttpServer(int port) throws IOException {
+        this(port, IO_THREADS, WORKER_THREADS);
+    }
+
+    public NioHttpServer(int port, int ioThreads, int workerThreads) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        workers = Executors.newFixedThreadPool(workerThreads, task -> {
+            Thread thread = new Thread(task, "HTTP worker " + port);
+            thread.setDaemon(true);
+            return thread;
+        });
+        reactors = new Reactor[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            reactors[i] = new Reactor("HTTP reactor " + port + "-" + i);
+        }
+        serverChannel.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * @param path Exact request path
+     * @param handler Runs on a worker thread
+     */
+    public void registerHandler(String path, HttpRequestHandler handler) {
+        handlers.register(path, handler);
+    }
+
+    /**
+     * @param path Exact request path, which also needs a handler
+     * @param gate Admits each request to the path before it goes to a worker
+     */
+    public void registerGate(String path, Gate gate) {
+        gates.register(path, gate);
+    }
+
+    /**
+     * @param path Exact request path
+     * @param contentType Content type of the stream
+     * @param heartbeat Sent when nothing else has been for heartbeatInterval
+     * milliseconds, so clients and proxies can tell the stream is alive
+     * @param heartbeatInterval Milliseconds
+     * @param handler Opens the stream for each request
+     */
+    public void registerStream(String path, String contentType, byte[] heartbeat, long heartbeatInterval, StreamHandler handler) {
+        streams.register(path, new Stream(contentType, heartbeat, heartbeatInterval, handler));
+    }
+
+    public void start() {
+        for (Reactor reactor : reactors) {
+            reactor.thread.start();
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public void shutdown() {
+        running = false;
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+        for (Reactor reactor : reactors) {
+            try {
+                reactor.thread.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException ex) {
+            log.log(Level.WARNING, null, ex);
+        }
+        workers.shutdownNow();
+    }
+
+    private class Reactor implements Runnable {
+
+        final Selector selector;
+        final Thread thread;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        Reactor(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (running) {
+                try {
+                    selector.select(SWEEP_INTERVAL);
+                } catch (IOException ex) {
+                    log.log(Level.SEVERE, "Selector failed", ex);
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnections();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+                selector.selectedKeys().clear();
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL) {
+                    lastSweep = now;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof Connection) {
+                            ((Connection) key.attachment()).sweep(now);
+                        }
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                log.log(Level.WARNING, null, ex);
+            }
+        }
+
+        private void acceptConnections() {
+            try {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    Reactor target = reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
+                    SocketChannel accepted = channel;
+                    if (target == this) {
+                        register(accepted);
+                    } else {
+                        target.execute(() -> target.register(accepted));
+                    }
+                }
+            } catch (IOException ex) {
+                if (running) {
+                    log.log(Level.WARNING, "Error accepting HTTP connection", ex);
+                }
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connectionCount.incrementAndGet();
+            } catch (ClosedChannelException ex) {
+                // Client left before it was registered
+            }
+        }
+    }
+
+    private static class Exchange {
+
+        final HttpRequest request;
+        final boolean keepAlive;
+        volatile ByteBuffer response;
+        Stream stream;
+        HttpContext context;
+
+        Exchange(HttpRequest request, boolean keepAlive) {
+            this.request = request;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    private class Connection {
+
+        final Reactor reactor;
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        final ArrayDeque<Exchange> exchanges = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        // Stream chunks, queued from whichever thread produced them
+        final Queue<ByteBuffer> pushed = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pendingOutput = new AtomicInteger();
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+        // Runs each request after the one before it on this connection
+        CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        boolean acceptingRequests = true;
+        boolean closeAfterWrite = false;
+        Stream stream;
+        long lastActivity = System.currentTimeMillis();
+        long lastWrite = lastActivity;
+        private boolean closed = false;
+        private Runnable onClose;
+
+        final InetAddress remoteAddress;
+
+        Connection(Reactor reactor, SocketChannel channel) {
+            this.reactor = reactor;
+            this.channel = channel;
+            remoteAddress = channel.socket().getInetAddress();
+        }
+
+        void read() {
+            int count;
+            try {
+                count = channel.read(in);
+            } catch (IOException ex) {
+                close();
+                return;
+            }
+            if (count < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            if (!acceptingRequests) {
+                // Nothing more is read once streaming or closing
+                in.clear();
+                return;
+            }
+            parseRequests();
+        }
+
+        private void parseRequests() {
+            while (acceptingRequests && exchanges.size() < MAX_PIPELINE) {
+                in.flip();
+                int headerEnd = indexOf(in, HEADER_END);
+                if (headerEnd < 0) {
+                    in.compact();
+                    if (!in.hasRemaining() && !grow(MAX_HEADER_SIZE)) {
+                        reject(HttpStatus.SC_REQUEST_URI_TOO_LONG);
+                    }
+                    break;
+                }
+                int start = in.position();
+                String head = new String(in.array(), start, headerEnd - start, StandardCharsets.ISO_8859_1);
+                int bodyStart = headerEnd + HEADER_END.length;
+                Exchange exchange;
+                try {
+                    exchange = parseHead(head);
+                } catch (IllegalArgumentException ex) {
+                    in.compact();
+                    reject(HttpStatus.SC_BAD_REQUEST);
+                    break;
+                }
+                Header lengthHeader = exchange.request.getFirstHeader("Content-Length");
+                Header encoding = exchange.request.getFirstHeader("Transfer-Encoding");
+                int length;
+                try {
+                    length = lengthHeader == null ? 0 : Integer.parseInt(lengthHeader.getValue().trim());
+                } catch (NumberFormatException ex) {
+                    length = -1;
+                }
+                if (encoding != null || length < 0 || length > MAX_BODY_SIZE) {
+                    in.compact();
+                    reject(encoding != null ? HttpStatus.SC_LENGTH_REQUIRED : HttpStatus.SC_REQUEST_TOO_LONG);
+                    break;
+                }
+                if (in.limit() - bodyStart < length) {
+                    in.compact();
+                    if (!in.hasRemaining()) {
+                        grow(MAX_HEADER_SIZE + MAX_BODY_SIZE);
+                    }
+                    break;
+                }
+                if (length > 0) {
+                    byte[] body = new byte[length];
+                    System.arraycopy(in.array(), bodyStart, body, 0, length);
+                    ((BasicHttpEntityEnclosingRequest) exchange.request).setEntity(new ByteArrayEntity(body));
+                }
+                in.position(bodyStart + length);
+                in.compact();
+                dispatch(exchange);
+            }
+            updateInterest();
+        }
+
+        private boolean grow(int limit) {
+            if (in.capacity() >= limit) {
+                return false;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(limit, in.capacity() * 2));
+            in.flip();
+            larger.put(in);
+            in = larger;
+            return true;
+        }
+
+        private Exchange parseHead(String head) {
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                throw new IllegalArgumentException(lines[0]);
+            }
+            ProtocolVersion version = requestLine[2].equals("HTTP/1.0") ? HttpVersion.HTTP_1_0 : HttpVersion.HTTP_1_1;
+            Header[] headers = new Header[lines.length - 1];
+            boolean hasBody = false;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException(lines[i]);
+                }
+                headers[i - 1] = new BasicHeader(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+                hasBody |= headers[i - 1].getName().equalsIgnoreCase("Content-Length");
+            }
+            HttpRequest request = hasBody
+                    ? new BasicHttpEntityEnclosingRequest(requestLine[0], requestLine[1], version)
+                    : new BasicHttpRequest(requestLine[0], requestLine[1], version);
+            request.setHeaders(headers);
+            Header connection = request.getFirstHeader("Connection");
+            boolean keepAlive = version == HttpVersion.HTTP_1_0
+                    ? connection != null && connection.getValue().equalsIgnoreCase("keep-alive")
+                    : connection == null || !connection.getValue().equalsIgnoreCase("close");
+            return new Exchange(request, keepAlive);
+        }
+
+        private void dispatch(Exchange exchange) {
+            exchanges.add(exchange);
+            exchange.stream = streams.lookup(exchange.request.getRequestLine().getUri());
+            if (!exchange.keepAlive || exchange.stream != null) {
+                acceptingRequests = false;
+            }
+            HttpContext context = new BasicHttpContext();
+            context.setAttribute(REMOTE_ADDRESS, remoteAddress);
+            exchange.context = context;
+            Gate gate = exchange.stream == null ? gates.lookup(exchange.request.getRequestLine().getUri()) : null;
+            if (gate != null) {
+                // Waits off the workers, behind the requests before it on this connection
+                tail = tail.thenCompose(done -> gate.admit(exchange.request, context).handle((result, error) -> {
+                    context.setAttribute(ADMISSION, error instanceof CompletionException ? error.getCause() : error != null ? error : Boolean.TRUE);
+                    return null;
+                }));
+            }
+            tail = tail.thenRunAsync(() -> process(exchange), workers);
+        }
+
+        /**
+         * Answers a request that could not be parsed and closes once every
+         * earlier response has gone out.
+         */
+        private void reject(int status) {
+            Exchange exchange = new Exchange(null, false);
+            exchange.response = encodeResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null), false);
+            exchanges.add(exchange);
+            acceptingRequests = false;
+            flush();
+        }
+
+        // Worker thread
+        private void process(Exchange exchange) {
+            ByteBuffer response;
+            try {
+                if (exchange.stream != null) {
+                    response = openStream(exchange);
+                } else {
+                    response = handle(exchange);
+                }
+            } catch (Throwable t) {
+                log.log(Level.SEVERE, "Error handling " + exchange.request.getRequestLine(), t);
+                response = encodeResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_INTERNAL_SERVER_ERROR, null), false);
+            }
+            exchange.response = response;
+            scheduleFlush();
+        }
+
+        private ByteBuffer handle(Exchange exchange) throws Exception {
+            HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, null);
+            HttpRequestHandler handler = handlers.lookup(exchange.request.getRequestLine().getUri());
+            if (handler == null) {
+                response.setStatusCode(HttpStatus.SC_NOT_IMPLEMENTED);
+            } else {
+                handler.handle(exchange.request, response, exchange.context);
+            }
+            return encodeResponse(response, exchange.keepAlive);
+        }
+
+        private ByteBuffer openStream(Exchange exchange) throws IOException {
+            Runnable close = exchange.stream.handler.open(exchange.request, this::push);
+            synchronized (this) {
+                if (!closed) {
+                    onClose = close;
+                    close = null;
+                }
+            }
+            if (close != null) {
+                close.run();
+            }
+            String head = "HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: " + exchange.stream.contentType + "\r\n"
+                    + "Cache-Control: no-cache\r\n"
+                    + "Transfer-Encoding: chunked\r\n\r\n";
+            return ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        // Any thread
+        private void push(byte[] data) {
+            byte[] size = Integer.toHexString(data.length).getBytes(StandardCharsets.ISO_8859_1);
+            ByteBuffer chunk = ByteBuffer.allocate(size.length + data.length + 2 * CRLF.length);
+            chunk.put(size).put(CRLF).put(data).put(CRLF).flip();
+            pendingOutput.addAndGet(chunk.remaining());
+            pushed.add(chunk);
+            scheduleFlush();
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                reactor.execute(() -> {
+                    flushScheduled.set(false);
+                    flush();
+                });
+            }
+        }
+
+        // Reactor thread from here on
+        void flush() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            while (!exchanges.isEmpty() && exchanges.peek().response != null) {
+                Exchange exchange = exchanges.poll();
+                pendingOutput.addAndGet(exchange.response.remaining());
+                output.add(exchange.response);
+                if (exchange.stream != null) {
+                    stream = exchange.stream;
+                } else if (!exchange.keepAlive) {
+                    closeAfterWrite = true;
+                    break;
+                }
+            }
+            if (stream != null && exchanges.isEmpty()) {
+                if (pendingOutput.get() > MAX_PENDING_OUTPUT) {
+                    log.log(Level.WARNING, "Stream client fell behind, disconnecting");
+                    close();
+                    return;
+                }
+                ByteBuffer chunk;
+                while ((chunk = pushed.poll()) != null) {
+                    output.add(chunk);
+                }
+            }
+            try {
+                while (!output.isEmpty()) {
+                    ByteBuffer buffer = output.peek();
+                    int written = channel.write(buffer);
+                    pendingOutput.addAndGet(-written);
+                    if (written > 0) {
+                        lastWrite = System.currentTimeMillis();
+                    }
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                    output.poll();
+                }
+            } catch (IOException ex) {
+                close();
+                return;
+            }
+            if (output.isEmpty() && closeAfterWrite) {
+                close();
+                return;
+            }
+            if (exchanges.isEmpty() && acceptingRequests) {
+                lastActivity = System.currentTimeMillis();
+            }
+            if (acceptingRequests && exchanges.size() < MAX_PIPELINE && in.position() > 0) {
+                // Requests left waiting while the pipeline was full
+                parseRequests();
+            } else {
+                updateInterest();
+            }
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            // Keep reading while streaming so a departed client is noticed
+            if (exchanges.size() < MAX_PIPELINE || !acceptingRequests) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!output.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void sweep(long now) {
+            if (stream != null) {
+                if (stream.heartbeat != null && now - lastWrite >= stream.heartbeatInterval && output.isEmpty()) {
+                    push(stream.heartbeat);
+                }
+            } else if (exchanges.isEmpty() && output.isEmpty() && now - lastActivity > IDLE_TIMEOUT) {
+                close();
+            }
+        }
+
+        void close() {
+            Runnable close;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                close = onClose;
+                onClose = null;
+            }
+            connectionCount.decrementAndGet();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // Already gone
+            }
+            if (close != null) {
+                close.run();
+            }
+        }
+    }
+
+    static ByteBuffer encodeResponse(HttpResponse response, boolean keepAlive) {
+        int status = response.getStatusLine().getStatusCode();
+        byte[] content = new byte[0];
+        HttpEntity entity = response.getEntity();
+        StringBuilder head = new StringBuilder(128);
+        head.append("HTTP/1.1 ").append(status).append(' ')
+                .append(EnglishReasonPhraseCatalog.INSTANCE.getReason(status, Locale.ENGLISH)).append("\r\n");
+        for (Header header : response.getAllHeaders()) {
+            head.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (entity != null) {
+            try {
+                // Copied here, on the thread that filled it, since the codec
+                // reuses its buffer
+                content = EntityUtils.toByteArray(entity);
+            } catch (IOException ex) {
+                log.log(Level.SEVERE, "Could not read response entity", ex);
+                return encodeResponse(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_INTERNAL_SERVER_ERROR, null), false);
+            }
+            if (entity.getContentType() != null && !response.containsHeader("Content-Type")) {
+                head.append("Content-Type: ").append(entity.getContentType().getValue()).append("\r\n");
+            }
+        }
+        if (status != HttpStatus.SC_NOT_MODIFIED && status != HttpStatus.SC_NO_CONTENT) {
+            head.append("Content-Length: ").append(content.length).append("\r\n");
+        }
+        if (!keepAlive) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + content.length);
+        buffer.put(headBytes).put(content).flip();
+        return buffer;
+    }
+
+    static int indexOf(ByteBuffer buffer, byte[] pattern) {
+        byte[] array = buffer.array();
+        int end = buffer.limit() - pattern.length;
+        outer:
+        for (int i = buffer.position(); i <= end; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (array[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,68 @@
+package org.badvision.pifaceintegrator.piface;
+
+import com.pi4j.gpio.extension.piface.PiFaceGpioProvider;
+import com.pi4j.gpio.extension.piface.PiFacePin;
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioFactory;
+import com.pi4j.io.gpio.GpioPinDigitalInput;
+import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
+import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+import com.pi4j.io.spi.SpiChannel;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Extends the stock PiFace GPIO provider with whole-port access, so all eight
+ * outputs can be written (or all eight inputs read) in a single SPI
+ * transaction. Output state is owned by the caller: once port writes are used,
+ * the per-pin output API of the stock provider should not be mixed in since it
+ * keeps its own (now stale) copy of the output latch.
+ *
+ * @author blurry
+ */
+public class PiFacePortProvider extends PiFaceGpioProvider implements PifacePort {
+
+    // MCP23S17 GPIO registers: port A drives the outputs, port B reads the inputs
+    static final byte REGISTER_OUTPUTS = 0x12;
+    static final byte REGISTER_INPUTS = 0x13;
+
+    private final GpioPinDigitalInput[] inputPins;
+
+    public PiFacePortProvider(byte address, SpiChannel channel) throws IOException {
+        super(address, channel);
+        GpioController gpio = GpioFactory.getInstance();
+        inputPins = new GpioPinDigitalInput[PiFacePin.INPUTS.length];
+        for (int i = 0; i < inputPins.length; i++) {
+            inputPins[i] = gpio.provisionDigitalInputPin(this, PiFacePin.INPUTS[i]);
+        }
+    }
+
+    public GpioPinDigitalInput getInputPin(int pin) {
+        return inputPins[pin];
+    }
+
+    @Override
+    public boolean isInputActive(int pin) {
+        return inputPins[pin].isLow();
+    }
+
+    @Override
+    public void addInputListener(int pin, Consumer<Boolean> listener) {
+        inputPins[pin].addListener((GpioPinListenerDigital) (GpioPinDigitalStateChangeEvent event)
+                -> listener.accept(event.getState().isLow())
+        );
+    }
+
+    /**
+     * Inputs are active low, so the raw register value is inverted.
+     */
+    @Override
+    public int readInputPort() throws IOException {
+        return ~read(REGISTER_INPUTS) & 0x0ff;
+    }
+
+    @Override
+    public void writeOutputPort(int value) throws IOException {
+        write(REGISTER_OUTPUTS, (byte) value);
+    }
+}
@@ -1,6 +1,7 @@
 package org.badvision.pifaceintegrator.piface;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
@@ -9,18 +10,116 @@ import java.util.function.Consumer;
  */
 public interface PifaceConnection {
     public static int PWM_RANGE = 100;
-    
+    public static int PIN_COUNT = 8;
+    public static int PORT_MASK = 0x0ff;
+
     public boolean getInputState(int pin) throws IOException;
     public void addListener(int pin, Consumer<Boolean> listener) throws IOException;
     public void setOutputState(int pin, boolean state) throws IOException;
     public void setOutputPWM(int pin, int value) throws IOException;
     public int getOutputState(int pin) throws IOException;
-    
+
+    /**
+     * Reads all inputs as one consistent snapshot.
+     *
+     * @return Input port, bit N is set when input N is active
+     * @throws IOException If the inputs could not be read
+     */
+    public int getInputPort() throws IOException;
+
+    /**
+     * Updates several outputs in one operation.
+     *
+     * @param mask Outputs to change, bit N selects output N
+     * @param values PWM value (0-PWM_RANGE) indexed by pin, only read for
+     * pins selected by the mask
+     * @throws IOException If the outputs could not be updated
+     */
+    public void setOutputPort(int mask, int[] values) throws IOException;
+
+    /**
+     * @param pin Input pin
+     * @param count Maximum number of edges to return
+     * @return The latest recorded edges of the input, oldest first
+     * @throws IOException If the history could not be read
+     */
+    public List<InputEdge> getInputEdges(int pin, int count) throws IOException;
+
+    /**
+     * @param pin Input pin
+     * @param sequence Last edge sequence number already seen, 0 for all
+     * @return Recorded edges of the input after that sequence, oldest first
+     * @throws IOException If the history could not be read
+     */
+    public List<InputEdge> getInputEdgesSince(int pin, long sequence) throws IOException;
+
+    /**
+     * @return Number of pins. Pins are grouped into ports of PIN_COUNT, pin N
+     * belongs to port N / PIN_COUNT; a single board has one port.
+     */
+    default int getPinCount() {
+        return PIN_COUNT;
+    }
+
+    /**
+     * Reads the inputs of every port.
+     *
+     * @return Input port values indexed by port
+     * @throws IOException If the inputs could not be read
+     */
+    default int[] getInputPorts() throws IOException {
+        return new int[]{getInputPort()};
+    }
+
+    /**
+     * Updates outputs on every port in one operation.
+     *
+     * @param masks Outputs to change, indexed by port
+     * @param values PWM values indexed by port, then by pin within the port
+     * @throws IOException If the outputs could not be updated
+     */
+    default void setOutputPorts(int[] masks, int[][] values) throws IOException {
+        validatePorts(masks, values);
+        setOutputPort(masks[0], values[0]);
+    }
+
     default void validateRange(int pin) throws IOException {
-        if (pin < 0 || pin > 7) {
-            throw new IOException("Pin must be 0-7");
+        if (pin < 0 || pin >= getPinCount()) {
+            throw new IOException("Pin must be 0-" + (getPinCount() - 1));
         }
     }
 
+    default void validatePorts(int[] masks, int[][] values) throws IOException {
+        int ports = getPinCount() / PIN_COUNT;
+        if (masks == null || values == null || masks.length != ports || values.length != ports) {
+            throw new IOException("Expected masks and values for " + ports + " port(s)");
+        }
+        for (int port = 0; port < ports; port++) {
+            validatePort(masks[port], values[port]);
+        }
+    }
+
+    default void validatePort(int mask, int[] values) throws IOException {
+        if ((mask & ~PORT_MASK) != 0) {
+            throw new IOException("Port mask must be 0-255");
+        }
+        if (values == null || values.length < PIN_COUNT) {
+            throw new IOException("Port values must cover pins 0-7");
+        }
+    }
+
+    default boolean isPinInMask(int mask, int pin) {
+        return (mask & (1 << pin)) != 0;
+    }
+
     public boolean isConnected();
+
+    /**
+     * @return A non-blocking view of this connection. By default the calls
+     * run one at a time, in the order they were made, on a small shared pool;
+     * connections that can do better override this.
+     */
+    default AsyncPifaceConnection async() {
+        return AsyncAdapter.of(this);
+    }
 }
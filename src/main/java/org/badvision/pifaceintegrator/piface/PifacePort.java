@@ -0,0 +1,29 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Port-level view of a PiFace board as used by LocalConnection: eight inputs
+ * and eight outputs, each addressed as a whole byte.
+ *
+ * @author blurry
+ */
+public interface PifacePort {
+
+    /**
+     * @return All inputs as one byte, bit N set when input N is active
+     * @throws IOException If the inputs could not be read
+     */
+    public int readInputPort() throws IOException;
+
+    /**
+     * @param value Output latch, bit N drives output N
+     * @throws IOException If the outputs could not be written
+     */
+    public void writeOutputPort(int value) throws IOException;
+
+    public boolean isInputActive(int pin) throws IOException;
+
+    public void addInputListener(int pin, Consumer<Boolean> listener);
+}
@@ -0,0 +1,35 @@
+package org.badvision.pifaceintegrator.piface;
+
+/**
+ * State of one pin as reported by the state endpoint: whether its input is
+ * active and the PWM value (0-PWM_RANGE) its output is driven at.
+ *
+ * @author blurry
+ */
+public class PinState {
+
+    int pin;
+    boolean input;
+    int output;
+
+    public PinState() {
+    }
+
+    public PinState(int pin, boolean input, int output) {
+        this.pin = pin;
+        this.input = input;
+        this.output = output;
+    }
+
+    public int getPin() {
+        return pin;
+    }
+
+    public boolean getInput() {
+        return input;
+    }
+
+    public int getOutput() {
+        return output;
+    }
+}
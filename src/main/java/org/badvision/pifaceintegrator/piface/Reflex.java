@@ -0,0 +1,88 @@
+package org.badvision.pifaceintegrator.piface;
+
+/**
+ * A rule run on the board itself by a ReflexEngine: when an input changes
+ * the given way, set an output to a PWM value, optionally only for a while.
+ * "When in3 rises, set out5 to 60% for 2s" is
+ *
+ * <pre>
+ * new Reflex(3, Reflex.RISING, 5, 60, 2000)
+ * </pre>
+ *
+ * @author blurry
+ */
+public class Reflex {
+
+    public static final String RISING = "rising";
+    public static final String FALLING = "falling";
+    public static final String BOTH = "both";
+
+    String name;
+    int input;
+    String edge = RISING;
+    int output;
+    int value;
+    long duration;
+    // Filled in by the server when rules are read back
+    long hits;
+
+    public Reflex() {
+    }
+
+    /**
+     * @param edge RISING, FALLING or BOTH
+     * @param value PWM value (0-PWM_RANGE), so a percentage
+     * @param duration Milliseconds to hold the value before putting back
+     * what the output had, 0 to keep it
+     */
+    public Reflex(int input, String edge, int output, int value, long duration) {
+        this.input = input;
+        this.edge = edge;
+        this.output = output;
+        this.value = value;
+        this.duration = duration;
+    }
+
+    public Reflex named(String name) {
+        this.name = name;
+        return this;
+    }
+
+    /**
+     * @return Name given when the rule was uploaded, or null
+     */
+    public String getName() {
+        return name;
+    }
+
+    public int getInput() {
+        return input;
+    }
+
+    public String getEdge() {
+        return edge;
+    }
+
+    public int getOutput() {
+        return output;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return Times the rule fired since it was uploaded
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    boolean firesOn(boolean state) {
+        return BOTH.equals(edge) || (state ? RISING : FALLING).equals(edge);
+    }
+}
@@ -0,0 +1,228 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.badvision.pifaceintegrator.metrics.Counter;
+import org.badvision.pifaceintegrator.metrics.Histogram;
+import org.badvision.pifaceintegrator.metrics.Metrics;
+
+/**
+ * Runs Reflex rules next to a board, so an output reacts to an input in
+ * microseconds instead of the round trip through a client and back.
+ *
+ * Rules are compiled into a table indexed by input pin and edge, holding the
+ * one port update each edge causes, and the table is swapped in whole when
+ * rules are replaced. The input listener only looks up its entry and makes
+ * that write, allocating nothing unless a revert has to be scheduled. Rules
+ * with a duration put back the value the output had before, on a shared
+ * timer thread; firing again while one is pending restarts its time, and a
+ * rule without a duration cancels it.
+ *
+ * @author blurry
+ */
+public class ReflexEngine {
+
+    static final Logger log = Logger.getLogger(ReflexEngine.class.getName());
+    public static final int MAX_RULES = 256;
+    public static final long MAX_DURATION = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Compiled rules, never changed once built.
+     */
+    private static class Table {
+
+        final Reflex[] rules;
+        final LongAdder[] hits;
+        // Indexed by input pin, then 0 for falling and 1 for rising
+        final int[][][] matches = new int[PifaceConnection.PIN_COUNT][2][];
+        final int[][] masks = new int[PifaceConnection.PIN_COUNT][2];
+        final int[][][] values = new int[PifaceConnection.PIN_COUNT][2][PifaceConnection.PIN_COUNT];
+        // Duration to hold each output, 0 to keep the value
+        final long[][][] durations = new long[PifaceConnection.PIN_COUNT][2][PifaceConnection.PIN_COUNT];
+
+        Table(List<Reflex> rules) {
+            this.rules = rules.toArray(new Reflex[rules.size()]);
+            hits = new LongAdder[this.rules.length];
+            for (int pin = 0; pin < PifaceConnection.PIN_COUNT; pin++) {
+                for (int edge = 0; edge < 2; edge++) {
+                    List<Integer> found = new ArrayList<>();
+                    for (int i = 0; i < this.rules.length; i++) {
+                        Reflex rule = this.rules[i];
+                        if (rule.getInput() == pin && rule.firesOn(edge == 1)) {
+                            found.add(i);
+                            // A later rule for the same output wins
+                            masks[pin][edge] |= 1 << rule.getOutput();
+                            values[pin][edge][rule.getOutput()] = rule.getValue();
+                            durations[pin][edge][rule.getOutput()] = rule.getDuration();
+                        }
+                    }
+                    matches[pin][edge] = found.stream().mapToInt(Integer::intValue).toArray();
+                }
+            }
+            for (int i = 0; i < hits.length; i++) {
+                hits[i] = new LongAdder();
+            }
+        }
+    }
+
+    // Shared by every board, reverts are rare and short
+    private static ScheduledThreadPoolExecutor timer;
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "Reflex timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Reverts are cancelled whenever a rule fires again
+            timer.setRemoveOnCancelPolicy(true);
+        }
+        return timer;
+    }
+
+    private final PifaceConnection device;
+    private final Object deviceLock;
+    private final Counter hitCount;
+    private final Histogram reactionTime;
+    private volatile Table table = new Table(new ArrayList<>());
+    // Per output, guarded by deviceLock: value to put back, and which revert is current
+    private final int[] restoreValues = new int[PifaceConnection.PIN_COUNT];
+    private final long[] reverts = new long[PifaceConnection.PIN_COUNT];
+    private final ScheduledFuture<?>[] pending = new ScheduledFuture<?>[PifaceConnection.PIN_COUNT];
+
+    /**
+     * @param board Index of the board, to label its metrics
+     * @param deviceLock Held while rules write, so they do not land in the
+     * middle of other multi-step operations on the device
+     * @throws IOException If the input listeners could not be added
+     */
+    public ReflexEngine(int board, PifaceConnection device, Object deviceLock) throws IOException {
+        this.device = device;
+        this.deviceLock = deviceLock;
+        hitCount = Metrics.counter("piface_reflex_hits_total", "Reflex rules fired", "board", String.valueOf(board));
+        reactionTime = Metrics.histogram("piface_reflex_reaction_seconds", "Time from an input event to the reflex output write", "board", String.valueOf(board));
+        for (int i = 0; i < PifaceConnection.PIN_COUNT; i++) {
+            final int pin = i;
+            device.addListener(pin, state -> inputChanged(pin, state));
+        }
+    }
+
+    /**
+     * Replaces every rule. Reverts already pending still happen.
+     *
+     * @param rules Empty to remove all rules
+     * @throws IllegalArgumentException If a rule is not valid
+     */
+    public void setRules(List<Reflex> rules) {
+        if (rules.size() > MAX_RULES) {
+            throw new IllegalArgumentException("At most " + MAX_RULES + " reflex rules are allowed");
+        }
+        for (Reflex rule : rules) {
+            validate(rule);
+        }
+        table = new Table(rules);
+    }
+
+    private void validate(Reflex rule) {
+        if (rule == null) {
+            throw new IllegalArgumentException("Reflex rule is empty");
+        }
+        if (rule.getInput() < 0 || rule.getInput() >= PifaceConnection.PIN_COUNT
+                || rule.getOutput() < 0 || rule.getOutput() >= PifaceConnection.PIN_COUNT) {
+            throw new IllegalArgumentException("Pins must be 0-" + (PifaceConnection.PIN_COUNT - 1));
+        }
+        if (!Reflex.RISING.equals(rule.getEdge()) && !Reflex.FALLING.equals(rule.getEdge()) && !Reflex.BOTH.equals(rule.getEdge())) {
+            throw new IllegalArgumentException("Edge must be " + Reflex.RISING + ", " + Reflex.FALLING + " or " + Reflex.BOTH);
+        }
+        if (rule.getValue() < 0 || rule.getValue() > PifaceConnection.PWM_RANGE) {
+            throw new IllegalArgumentException("PWM value must be 0-" + PifaceConnection.PWM_RANGE);
+        }
+        if (rule.getDuration() < 0 || rule.getDuration() > MAX_DURATION) {
+            throw new IllegalArgumentException("Duration must be 0-" + MAX_DURATION + "ms");
+        }
+    }
+
+    /**
+     * @return Copies of the rules, in the order given, with their hit counts
+     */
+    public List<Reflex> getRules() {
+        Table current = table;
+        List<Reflex> rules = new ArrayList<>(current.rules.length);
+        for (int i = 0; i < current.rules.length; i++) {
+            Reflex rule = current.rules[i];
+            Reflex copy = new Reflex(rule.getInput(), rule.getEdge(), rule.getOutput(), rule.getValue(), rule.getDuration()).named(rule.getName());
+            copy.hits = current.hits[i].sum();
+            rules.add(copy);
+        }
+        return rules;
+    }
+
+    private void inputChanged(int pin, boolean state) {
+        long start = System.nanoTime();
+        Table current = table;
+        int edge = state ? 1 : 0;
+        int mask = current.masks[pin][edge];
+        if (mask == 0) {
+            return;
+        }
+        try {
+            synchronized (deviceLock) {
+                long[] durations = current.durations[pin][edge];
+                for (int output = 0; output < PifaceConnection.PIN_COUNT; output++) {
+                    if ((mask & (1 << output)) != 0) {
+                        holdOutput(output, durations[output]);
+                    }
+                }
+                device.setOutputPort(mask, current.values[pin][edge]);
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.log(Level.WARNING, "Reflex on input " + pin + " failed", ex);
+            return;
+        }
+        for (int rule : current.matches[pin][edge]) {
+            current.hits[rule].increment();
+        }
+        hitCount.add(current.matches[pin][edge].length);
+        reactionTime.recordSince(start);
+    }
+
+    /**
+     * Arranges for an output about to be written to be put back after
+     * duration, or cancels any pending revert when duration is 0. Called
+     * with deviceLock held.
+     */
+    private void holdOutput(int output, long duration) throws IOException {
+        long revert = ++reverts[output];
+        if (pending[output] != null) {
+            pending[output].cancel(false);
+        } else if (duration > 0) {
+            restoreValues[output] = device.getOutputState(output);
+        }
+        pending[output] = duration == 0 ? null
+                : getTimer().schedule(() -> restoreOutput(output, revert), duration, TimeUnit.MILLISECONDS);
+    }
+
+    private void restoreOutput(int output, long revert) {
+        try {
+            synchronized (deviceLock) {
+                // A revert cancelled too late to stop it running
+                if (reverts[output] != revert) {
+                    return;
+                }
+                pending[output] = null;
+                device.setOutputPWM(output, restoreValues[output]);
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.log(Level.WARNING, "Reflex could not restore output " + output, ex);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+/**
+ * Query parameters of one request, parsed in a single pass straight out of
+ * the request URI into primitive slots: one per named parameter RestServer
+ * understands, plus one per pin for the pinN parameters of the PWM endpoint.
+ * Anything else is ignored. Each server thread reuses one instance, so
+ * parsing allocates nothing unless a value is percent-encoded.
+ *
+ * As with the URIBuilder parsing this replaced, the first occurrence of a
+ * parameter wins and empty values count as missing.
+ *
+ * @author blurry
+ */
+public final class RequestParameters {
+
+    public static final int PIN = 0;
+    public static final int STATE = 1;
+    public static final int VALUE = 2;
+    public static final int COUNT = 3;
+    public static final int SINCE = 4;
+    static final String[] NAMES = {
+        RestServer.PARAM_PIN, RestServer.PARAM_STATE, RestServer.PARAM_VALUE,
+        RestServer.PARAM_COUNT, RestServer.PARAM_SINCE};
+
+    private static final ThreadLocal<RequestParameters> instances = ThreadLocal.withInitial(RequestParameters::new);
+
+    private final long[] values = new long[NAMES.length];
+    private final boolean[] flags = new boolean[NAMES.length];
+    // Bit per slot: present, and present but not a number
+    private int present;
+    private int malformed;
+    private final long[] pinValues = new long[PifaceConnection.PIN_COUNT];
+    private int pinMask;
+    private int pinMalformed;
+
+    /**
+     * @return This thread's instance, holding the parameters of uri
+     */
+    public static RequestParameters parse(String uri) {
+        RequestParameters parameters = instances.get();
+        parameters.read(uri);
+        return parameters;
+    }
+
+    void read(String uri) {
+        present = 0;
+        malformed = 0;
+        pinMask = 0;
+        pinMalformed = 0;
+        int start = uri.indexOf('?') + 1;
+        if (start == 0) {
+            return;
+        }
+        int length = uri.length();
+        while (start < length) {
+            int end = uri.indexOf('&', start);
+            if (end < 0) {
+                end = length;
+            }
+            int equals = uri.indexOf('=', start);
+            if (equals > start && equals < end - 1) {
+                store(uri, start, equals, equals + 1, end);
+            }
+            start = end + 1;
+        }
+    }
+
+    private void store(String uri, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        int nameLength = nameEnd - nameStart;
+        for (int slot = 0; slot < NAMES.length; slot++) {
+            if (NAMES[slot].length() == nameLength && uri.regionMatches(nameStart, NAMES[slot], 0, nameLength)) {
+                int bit = 1 << slot;
+                if ((present & bit) == 0) {
+                    present |= bit;
+                    flags[slot] = parseBoolean(uri, valueStart, valueEnd);
+                    if (!parseNumber(uri, valueStart, valueEnd, values, slot)) {
+                        malformed |= bit;
+                    }
+                }
+                return;
+            }
+        }
+        // pinN, a single digit pin number
+        if (nameLength == NAMES[PIN].length() + 1 && uri.startsWith(NAMES[PIN], nameStart)) {
+            int pin = uri.charAt(nameEnd - 1) - '0';
+            if (pin >= 0 && pin < PifaceConnection.PIN_COUNT && (pinMask & (1 << pin)) == 0) {
+                pinMask |= 1 << pin;
+                if (!parseNumber(uri, valueStart, valueEnd, pinValues, pin)) {
+                    pinMalformed |= 1 << pin;
+                }
+            }
+        }
+    }
+
+    private static boolean parseNumber(String uri, int start, int end, long[] into, int index) {
+        int i = start;
+        boolean negative = uri.charAt(i) == '-';
+        if (negative || uri.charAt(i) == '+') {
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            return start != end && parseEncoded(uri, start, end, into, index);
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = uri.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return parseEncoded(uri, start, end, into, index);
+            }
+            value = value * 10 + digit;
+        }
+        into[index] = negative ? -value : value;
+        return true;
+    }
+
+    /**
+     * Slow path for anything that is not plain digits, such as a
+     * percent-encoded value.
+     */
+    private static boolean parseEncoded(String uri, int start, int end, long[] into, int index) {
+        String raw = uri.substring(start, end);
+        if (raw.indexOf('%') < 0) {
+            return false;
+        }
+        try {
+            into[index] = Long.parseLong(URLDecoder.decode(raw, "UTF-8").trim());
+            return true;
+        } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    private static boolean parseBoolean(String uri, int start, int end) {
+        return end - start == 4 && uri.regionMatches(true, start, "true", 0, 4);
+    }
+
+    public boolean has(int slot) {
+        return (present & (1 << slot)) != 0;
+    }
+
+    /**
+     * @throws NumberFormatException If the value is not an int
+     */
+    public int getInt(int slot, int defaultValue) {
+        if (!has(slot)) {
+            return defaultValue;
+        }
+        long value = values[slot];
+        if ((malformed & (1 << slot)) != 0 || !isInt(value)) {
+            throw new NumberFormatException("Parameter " + NAMES[slot] + " is not an int");
+        }
+        return (int) value;
+    }
+
+    /**
+     * @throws NumberFormatException If the value is not a number
+     */
+    public long getLong(int slot, long defaultValue) {
+        if (!has(slot)) {
+            return defaultValue;
+        }
+        if ((malformed & (1 << slot)) != 0) {
+            throw new NumberFormatException("Parameter " + NAMES[slot] + " is not a number");
+        }
+        return values[slot];
+    }
+
+    public int getRequiredInt(int slot) {
+        int value = getInt(slot, Integer.MIN_VALUE);
+        if (value == Integer.MIN_VALUE) {
+            throw new IllegalArgumentException("Numeric parameter " + NAMES[slot] + " is missing or invalid");
+        }
+        return value;
+    }
+
+    public boolean getRequiredBoolean(int slot) {
+        if (!has(slot)) {
+            throw new IllegalArgumentException("Boolean parameter " + NAMES[slot] + " is missing or invalid");
+        }
+        return flags[slot];
+    }
+
+    /**
+     * @return Bit N set if a pinN parameter was given
+     */
+    public int getPinMask() {
+        return pinMask;
+    }
+
+    /**
+     * @throws NumberFormatException If the value of pinN is not an int
+     */
+    public int getPinValue(int pin) {
+        long value = pinValues[pin];
+        if ((pinMalformed & (1 << pin)) != 0 || !isInt(value)) {
+            throw new NumberFormatException("Parameter " + NAMES[PIN] + pin + " is not an int");
+        }
+        return (int) value;
+    }
+
+    private static boolean isInt(long value) {
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,85 @@
+package org.badvision.pifaceintegrator.piface;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerMapper;
+
+/**
+ * Maps exact request paths to targets without taking the request URI apart.
+ * Routes are kept sorted by path length, so a lookup finds the end of the
+ * path, skips to the routes of that length and compares them in place;
+ * nothing is allocated per request.
+ *
+ * @author blurry
+ */
+public class RequestRouter<T> {
+
+    private static class Route<T> {
+
+        final String path;
+        final T target;
+
+        Route(String path, T target) {
+            this.path = path;
+            this.target = target;
+        }
+    }
+
+    // Replaced as a whole on registration, so lookups never need a lock
+    private volatile Route<T>[] routes = newRoutes(0);
+
+    @SuppressWarnings("unchecked")
+    private static <T> Route<T>[] newRoutes(int size) {
+        return (Route<T>[]) new Route<?>[size];
+    }
+
+    /**
+     * @param path Exact path, without any query
+     */
+    public synchronized void register(String path, T target) {
+        Route<T>[] current = routes;
+        int index = 0;
+        while (index < current.length && current[index].path.length() <= path.length()) {
+            if (current[index].path.equals(path)) {
+                Route<T>[] replaced = current.clone();
+                replaced[index] = new Route<>(path, target);
+                routes = replaced;
+                return;
+            }
+            index++;
+        }
+        Route<T>[] updated = newRoutes(current.length + 1);
+        System.arraycopy(current, 0, updated, 0, index);
+        updated[index] = new Route<>(path, target);
+        System.arraycopy(current, index, updated, index + 1, current.length - index);
+        routes = updated;
+    }
+
+    /**
+     * @param uri Request URI, with or without a query
+     * @return Target registered for its path, or null
+     */
+    public T lookup(String uri) {
+        int length = uri.indexOf('?');
+        if (length < 0) {
+            length = uri.length();
+        }
+        for (Route<T> route : routes) {
+            int pathLength = route.path.length();
+            if (pathLength > length) {
+                break;
+            }
+            if (pathLength == length && uri.regionMatches(0, route.path, 0, length)) {
+                return route.target;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The router as an HttpCore handler mapper
+     */
+    public static HttpRequestHandlerMapper asHandlerMapper(RequestRouter<HttpRequestHandler> router) {
+        return (HttpRequest request) -> router.lookup(request.getRequestLine().getUri());
+    }
+}
@@ -0,0 +1,620 @@
+package org.badvision.pifaceintegrator.piface;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.badvision.pifaceintegrator.piface.RestServer.RestResponse;
+
+/**
+ * Hand-written JSON encoding and decoding for the fixed shapes exchanged by
+ * RestServer and RestClient: {"response": ...} wrapping pin lists, edge lists,
+ * small maps and error details. Encoding writes ASCII bytes straight into a
+ * buffer that each thread reuses, and decoding pulls tokens off the response
+ * stream, so neither side builds an intermediate tree or goes through
+ * reflection. Anything of another type is handed to Gson.
+ *
+ * @author blurry
+ */
+public final class ResponseCodec {
+
+    public static final ContentType CONTENT_TYPE = ContentType.APPLICATION_JSON;
+    public static final String RESPONSE = "response";
+    static final int INITIAL_BUFFER = 1024;
+    static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final Gson gson = new Gson();
+    private static final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+    private static final ThreadLocal<byte[]> readBuffers = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER]);
+
+    /**
+     * Reads one response body.
+     */
+    public interface Decoder<T> {
+
+        T decode(InputStream in) throws IOException;
+    }
+
+    private ResponseCodec() {
+    }
+
+    /**
+     * Encodes {"response": data} into this thread's buffer. The entity refers
+     * to that buffer rather than a copy, so it has to be sent before the same
+     * thread encodes another response; the blocking HTTP server always writes
+     * the response on the thread that handled the request, before taking the
+     * next one.
+     */
+    public static HttpEntity encodeEntity(Object data) {
+        Buffer buffer = buffers.get();
+        buffer.reset();
+        writeResponse(buffer, data);
+        return new ByteArrayEntity(buffer.bytes, 0, buffer.size, CONTENT_TYPE);
+    }
+
+    /**
+     * @return {"response": data} in a new array of its own
+     */
+    public static byte[] encode(Object data) {
+        Buffer buffer = buffers.get();
+        buffer.reset();
+        writeResponse(buffer, data);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @return A bare JSON array of batch operations, as sent to the batch
+     * endpoint
+     */
+    public static byte[] encodeBatch(List<BatchOperation> operations) {
+        Buffer buffer = buffers.get();
+        buffer.reset();
+        writeValue(buffer, operations);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @return Any value as a bare JSON request body, by way of Gson, in
+     * ASCII like everything else this codec writes
+     */
+    public static byte[] encodeBody(Object value) {
+        Buffer buffer = buffers.get();
+        buffer.reset();
+        buffer.json(gson.toJson(value));
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @return One server-sent event carrying a pin's input state
+     */
+    public static byte[] encodeEvent(int pin, boolean state) {
+        Buffer buffer = buffers.get();
+        buffer.reset();
+        buffer.ascii("data: ");
+        writePin(buffer, pin, 0, state);
+        buffer.ascii("\n\n");
+        return buffer.toByteArray();
+    }
+
+    static void writeResponse(Buffer out, Object data) {
+        out.ascii("{\"" + RESPONSE + "\":");
+        writeValue(out, data);
+        out.write('}');
+    }
+
+    static void writeValue(Buffer out, Object value) {
+        if (value == null) {
+            out.ascii("null");
+        } else if (value instanceof RestResponse) {
+            RestResponse pin = (RestResponse) value;
+            writePin(out, pin.getPin(), pin.getValue(), pin.getState());
+        } else if (value instanceof InputEdge) {
+            writeEdge(out, (InputEdge) value);
+        } else if (value instanceof BatchOperation) {
+            writeOperation(out, (BatchOperation) value);
+        } else if (value instanceof PinState) {
+            writePinState(out, (PinState) value);
+        } else if (value instanceof StateDelta) {
+            StateDelta delta = (StateDelta) value;
+            out.ascii("{\"version\":");
+            out.number(delta.getVersion());
+            out.ascii(delta.isFull() ? ",\"full\":true,\"pins\":" : ",\"full\":false,\"pins\":");
+            writeValue(out, delta.getPins());
+            out.write('}');
+        } else if (value instanceof Boolean) {
+            out.ascii((Boolean) value ? "true" : "false");
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            out.number(((Number) value).longValue());
+        } else if (value instanceof CharSequence) {
+            out.string((CharSequence) value);
+        } else if (value instanceof Map) {
+            out.write('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                out.string(String.valueOf(entry.getKey()));
+                out.write(':');
+                writeValue(out, entry.getValue());
+            }
+            out.write('}');
+        } else if (value instanceof Collection) {
+            out.write('[');
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                writeValue(out, item);
+            }
+            out.write(']');
+        } else {
+            out.json(gson.toJson(value));
+        }
+    }
+
+    static void writePin(Buffer out, int pin, int value, boolean state) {
+        out.ascii("{\"pin\":");
+        out.number(pin);
+        out.ascii(",\"value\":");
+        out.number(value);
+        out.ascii(state ? ",\"state\":true}" : ",\"state\":false}");
+    }
+
+    static void writeEdge(Buffer out, InputEdge edge) {
+        out.ascii("{\"pin\":");
+        out.number(edge.getPin());
+        out.ascii(",\"sequence\":");
+        out.number(edge.getSequence());
+        out.ascii(",\"timestamp\":");
+        out.number(edge.getTimestamp());
+        out.ascii(edge.getState() ? ",\"state\":true}" : ",\"state\":false}");
+    }
+
+    static void writeOperation(Buffer out, BatchOperation operation) {
+        out.ascii("{\"op\":");
+        out.string(operation.getOp());
+        out.ascii(",\"pin\":");
+        out.number(operation.getPin());
+        out.ascii(",\"value\":");
+        out.number(operation.getValue());
+        out.ascii(operation.getState() ? ",\"state\":true}" : ",\"state\":false}");
+    }
+
+    static void writePinState(Buffer out, PinState pin) {
+        out.ascii("{\"pin\":");
+        out.number(pin.getPin());
+        out.ascii(pin.getInput() ? ",\"input\":true" : ",\"input\":false");
+        out.ascii(",\"output\":");
+        out.number(pin.getOutput());
+        out.write('}');
+    }
+
+    public static List<RestResponse> decodePinList(InputStream in) throws IOException {
+        JsonReader reader = openResponse(in, JsonToken.BEGIN_ARRAY);
+        List<RestResponse> pins = new ArrayList<>(PifaceConnection.PIN_COUNT);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            pins.add(readPin(reader));
+        }
+        reader.endArray();
+        return pins;
+    }
+
+    public static List<InputEdge> decodeEdgeList(InputStream in) throws IOException {
+        JsonReader reader = openResponse(in, JsonToken.BEGIN_ARRAY);
+        List<InputEdge> edges = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            edges.add(readEdge(reader));
+        }
+        reader.endArray();
+        return edges;
+    }
+
+    public static StateDelta decodeStateDelta(InputStream in) throws IOException {
+        JsonReader reader = openResponse(in, JsonToken.BEGIN_OBJECT);
+        StateDelta delta = new StateDelta();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "version":
+                    delta.version = reader.nextLong();
+                    break;
+                case "full":
+                    delta.full = reader.nextBoolean();
+                    break;
+                case "pins":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        delta.pins.add(readPinState(reader));
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return delta;
+    }
+
+    /**
+     * Decodes the bare array of operations sent to the batch endpoint.
+     */
+    public static List<BatchOperation> decodeBatch(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new Latin1Reader(in, readBuffers.get()));
+        List<BatchOperation> operations = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            operations.add(readOperation(reader));
+        }
+        reader.endArray();
+        return operations;
+    }
+
+    /**
+     * Decodes a timeline sent to the timeline endpoint. These are rare and
+     * their shape is richer, so they go through Gson. JSON from other clients
+     * is UTF-8, so that is how the body is read.
+     */
+    public static Timeline decodeTimeline(InputStream in) throws IOException {
+        try {
+            Timeline timeline = gson.fromJson(new InputStreamReader(in, StandardCharsets.UTF_8), Timeline.class);
+            if (timeline == null) {
+                throw new IOException("Timeline is empty");
+            }
+            return timeline;
+        } catch (JsonParseException ex) {
+            throw new IOException("Unable to parse timeline", ex);
+        }
+    }
+
+    /**
+     * Decodes a timeline's status, as answered by the timeline endpoint.
+     * Status and error details are both objects, so the HTTP status tells
+     * them apart.
+     */
+    public static TimelineScheduler.Status decodeTimelineStatus(InputStream in, int httpStatus) throws IOException {
+        JsonReader reader = openResponse(in, JsonToken.BEGIN_OBJECT);
+        if (httpStatus != HttpStatus.SC_OK) {
+            throw new IOException("Server error: " + readErrorMessage(reader));
+        }
+        if (reader.peek() == JsonToken.NULL) {
+            return null;
+        }
+        try {
+            return gson.fromJson(reader, TimelineScheduler.Status.class);
+        } catch (JsonParseException ex) {
+            throw new IOException("Unable to parse timeline status", ex);
+        }
+    }
+
+    /**
+     * Decodes the bare array of rules sent to the reflexes endpoint. Like
+     * timelines, rules may come from any client and carry text, so they are
+     * read as UTF-8.
+     */
+    public static List<Reflex> decodeReflexes(InputStream in) throws IOException {
+        return readReflexes(new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Decodes the rules answered by the reflexes endpoint.
+     */
+    public static List<Reflex> decodeReflexList(InputStream in) throws IOException {
+        return readReflexes(openResponse(in, JsonToken.BEGIN_ARRAY));
+    }
+
+    private static List<Reflex> readReflexes(JsonReader reader) throws IOException {
+        try {
+            List<Reflex> rules = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                rules.add(gson.fromJson(reader, Reflex.class));
+            }
+            reader.endArray();
+            return rules;
+        } catch (JsonParseException | IllegalStateException ex) {
+            throw new IOException("Unable to parse reflex rules", ex);
+        }
+    }
+
+    /**
+     * Decodes a bare pin object, as carried by input stream events.
+     */
+    public static RestResponse decodePin(String json) throws IOException {
+        return readPin(new JsonReader(new StringReader(json)));
+    }
+
+    /**
+     * Positions the reader at the value of "response". A 500 reply carries
+     * error details there instead of the expected value, which are turned
+     * into an IOException.
+     */
+    private static JsonReader openResponse(InputStream in, JsonToken expected) throws IOException {
+        JsonReader reader = new JsonReader(new Latin1Reader(in, readBuffers.get()));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!RESPONSE.equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            JsonToken token = reader.peek();
+            if (token != expected && token == JsonToken.BEGIN_OBJECT) {
+                throw new IOException("Server error: " + readErrorMessage(reader));
+            }
+            return reader;
+        }
+        throw new IOException("Reply has no " + RESPONSE);
+    }
+
+    private static String readErrorMessage(JsonReader reader) throws IOException {
+        String message = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("message".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                message = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return message;
+    }
+
+    private static RestResponse readPin(JsonReader reader) throws IOException {
+        RestResponse pin = new RestResponse();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "pin":
+                    pin.setPin(reader.nextInt());
+                    break;
+                case "value":
+                    pin.setValue(reader.nextInt());
+                    break;
+                case "state":
+                    pin.setState(reader.nextBoolean());
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return pin;
+    }
+
+    private static BatchOperation readOperation(JsonReader reader) throws IOException {
+        BatchOperation operation = new BatchOperation();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "op":
+                    operation.op = reader.nextString();
+                    break;
+                case "pin":
+                    operation.pin = reader.nextInt();
+                    break;
+                case "value":
+                    operation.value = reader.nextInt();
+                    break;
+                case "state":
+                    operation.state = reader.nextBoolean();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return operation;
+    }
+
+    private static PinState readPinState(JsonReader reader) throws IOException {
+        PinState pin = new PinState();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "pin":
+                    pin.pin = reader.nextInt();
+                    break;
+                case "input":
+                    pin.input = reader.nextBoolean();
+                    break;
+                case "output":
+                    pin.output = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return pin;
+    }
+
+    private static InputEdge readEdge(JsonReader reader) throws IOException {
+        int pin = 0;
+        long sequence = 0;
+        long timestamp = 0;
+        boolean state = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "pin":
+                    pin = reader.nextInt();
+                    break;
+                case "sequence":
+                    sequence = reader.nextLong();
+                    break;
+                case "timestamp":
+                    timestamp = reader.nextLong();
+                    break;
+                case "state":
+                    state = reader.nextBoolean();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new InputEdge(pin, sequence, timestamp, state);
+    }
+
+    /**
+     * Reads bytes as ISO-8859-1 characters through a caller-supplied buffer.
+     * Used for replies, which this codec writes in ASCII (anything else is
+     * escaped) and servers predating it sent as ISO-8859-1, and for batches,
+     * which hold nothing but names and numbers; so no real decoding is needed.
+     * Request bodies that can carry text are read as UTF-8 instead.
+     */
+    static final class Latin1Reader extends Reader {
+
+        private final InputStream in;
+        private final byte[] buffer;
+
+        Latin1Reader(InputStream in, byte[] buffer) {
+            this.in = in;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) throws IOException {
+            int count = in.read(buffer, 0, Math.min(length, buffer.length));
+            for (int i = 0; i < count; i++) {
+                chars[offset + i] = (char) (buffer[i] & 0x0ff);
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Growable byte buffer that only ever holds ASCII; anything outside that
+     * range is written as a JSON escape.
+     */
+    static final class Buffer {
+
+        byte[] bytes = new byte[INITIAL_BUFFER];
+        int size = 0;
+        private final byte[] digits = new byte[20];
+
+        void reset() {
+            size = 0;
+        }
+
+        byte[] toByteArray() {
+            byte[] copy = new byte[size];
+            System.arraycopy(bytes, 0, copy, 0, size);
+            return copy;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, size + extra)];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes = grown;
+            }
+        }
+
+        void write(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void ascii(String s) {
+            int length = s.length();
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                bytes[size++] = (byte) s.charAt(i);
+            }
+        }
+
+        /**
+         * Copies JSON made elsewhere. Outside strings JSON is ASCII, so
+         * anything beyond it can only be inside one and is escaped there.
+         */
+        void json(String s) {
+            int length = s.length();
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x7f) {
+                    ensure(6);
+                    bytes[size++] = '\\';
+                    bytes[size++] = 'u';
+                    bytes[size++] = HEX[(c >> 12) & 0x0f];
+                    bytes[size++] = HEX[(c >> 8) & 0x0f];
+                    bytes[size++] = HEX[(c >> 4) & 0x0f];
+                    bytes[size++] = HEX[c & 0x0f];
+                } else {
+                    write(c);
+                }
+            }
+        }
+
+        void number(long value) {
+            if (value == Long.MIN_VALUE) {
+                ascii(Long.toString(value));
+                return;
+            }
+            if (value < 0) {
+                write('-');
+                value = -value;
+            }
+            int count = 0;
+            do {
+                digits[count++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            ensure(count);
+            while (count > 0) {
+                bytes[size++] = digits[--count];
+            }
+        }
+
+        void string(CharSequence s) {
+            int length = s.length();
+            ensure(length + 2);
+            bytes[size++] = '"';
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    write('\\');
+                    write(c);
+                } else if (c < 0x20 || c >= 0x7f) {
+                    ensure(6);
+                    bytes[size++] = '\\';
+                    bytes[size++] = 'u';
+                    bytes[size++] = HEX[(c >> 12) & 0x0f];
+                    bytes[size++] = HEX[(c >> 8) & 0x0f];
+                    bytes[size++] = HEX[(c >> 4) & 0x0f];
+                    bytes[size++] = HEX[c & 0x0f];
+                } else {
+                    write(c);
+                }
+            }
+            write('"');
+        }
+    }
+}
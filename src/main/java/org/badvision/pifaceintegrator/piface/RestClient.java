@@ -1,32 +1,51 @@
 package org.badvision.pifaceintegrator.piface;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
-import com.google.gson.reflect.TypeToken;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.lang.reflect.Type;
+import java.net.ConnectException;
 import java.net.URI;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.client.LaxRedirectStrategy;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+import org.badvision.pifaceintegrator.metrics.Counter;
+import org.badvision.pifaceintegrator.metrics.Histogram;
+import org.badvision.pifaceintegrator.metrics.Metrics;
 import org.badvision.pifaceintegrator.piface.RestServer.RestResponse;
 
 /**
@@ -39,6 +58,30 @@ public class RestClient implements PifaceConnection {
     PoolingHttpClientConnectionManager connectionManager;
     public static final int MAX_CONNECTIONS = 9;
     public static final int POLLING_FREQUENCY = 500;
+    // Input stream reconnect delay and read timeout, in milliseconds
+    public static final int STREAM_RETRY_DELAY = 5000;
+    public static final int STREAM_TIMEOUT = InputChangeFeed.HEARTBEAT * 3000;
+    // How long to wait before asking the server for the binary protocol again
+    public static final int WIRE_RETRY_DELAY = 10000;
+    // How long output values in the mirror are trusted before checking the
+    // server, where other clients, timelines and reflexes change them too
+    public static final int OUTPUT_MAX_AGE = 250;
+    // Output batching window bounds, in milliseconds
+    public static final int INITIAL_BATCH_WINDOW = 25;
+    public static final int MIN_BATCH_WINDOW = 1;
+    public static final int MAX_BATCH_WINDOW = 100;
+    // Request deadlines in milliseconds: one attempt, and all attempts together
+    public static final int CONNECT_TIMEOUT = 500;
+    public static final int REQUEST_TIMEOUT = 1000;
+    public static final int REQUEST_DEADLINE = 2000;
+    public static final int MAX_ATTEMPTS = 3;
+    // Retry backoff in milliseconds, doubling per attempt
+    public static final int BACKOFF_BASE = 50;
+    public static final int BACKOFF_MAX = 500;
+    // Consecutive failed calls before requests are refused, and probe intervals
+    public static final int BREAKER_THRESHOLD = 5;
+    public static final int BREAKER_PROBE_INTERVAL = 500;
+    public static final int BREAKER_MAX_PROBE_INTERVAL = 8000;
     Gson gson = new Gson();
     String host;
     int port;
@@ -51,16 +94,52 @@ public class RestClient implements PifaceConnection {
         init(host, port);
     }
 
+    /**
+     * @param board Which of the boards hosted by the server to use
+     */
+    public RestClient(String host, int port, int board) {
+        init(host, port);
+        basePath = RestServer.getBoardPath(board);
+    }
+
+    // Prefix of every endpoint, empty for the server's first board
+    String basePath = "";
+
     private void init(String host, int port) {
         connectionManager = new PoolingHttpClientConnectionManager();
         connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
         connectionManager.setMaxTotal(MAX_CONNECTIONS);
         this.host = host;
         this.port = port;
+        breaker = new CircuitBreaker(host + ":" + port, BREAKER_THRESHOLD,
+                BREAKER_PROBE_INTERVAL, BREAKER_MAX_PROBE_INTERVAL, this::probeServer);
+        String server = host + ":" + port;
+        breaker.setTransitionListener(state -> Metrics.counter("piface_client_breaker_transitions_total",
+                "Circuit breaker state changes", "server", server, "state", state.name().toLowerCase()).increment());
     }
 
+    static final Histogram requestTime = Metrics.histogram("piface_client_request_seconds", "Time taken by REST client requests, including retries");
+    static final Counter retries = Metrics.counter("piface_client_retries_total", "REST client requests retried after failing to reach the server");
+    static final Counter failures = Metrics.counter("piface_client_failures_total", "REST client requests that could not reach the server");
+
+    CircuitBreaker breaker;
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Answered without a request whenever possible: a live input feed means
+     * the server is up, an open circuit breaker means it is not.
+     */
     @Override
     public boolean isConnected() {
+        if (breaker.getState() != CircuitBreaker.State.CLOSED) {
+            return false;
+        }
+        if (mirror.isInputsLive()) {
+            return true;
+        }
         try {
             URI uri = generateUri(RestServer.GET_INPUTS);
             Collection<RestResponse> restResponse = getRestResponseList(uri);
@@ -74,11 +153,24 @@ public class RestClient implements PifaceConnection {
 
     @Override
     public void addListener(int pin, Consumer<Boolean> listener) throws IOException {
-        setupPollingLoop();
+        setupInputFeed();
         getListenersForPin(pin).add(listener);
     }
 
-    final ConcurrentHashMap<Integer, Integer> pwmOutputChanges = new ConcurrentHashMap<>();
+    // Output values waiting for the dispatcher, latest value per pin wins
+    private final Object pendingLock = new Object();
+    private int pendingMask = 0;
+    private final int[] pendingValues = new int[PIN_COUNT];
+    // Completes once the pending values have been sent
+    private CompletableFuture<Void> pendingBatch;
+    // Set to send the pending values without waiting out the batching window
+    private boolean flushRequested = false;
+    // Batch the dispatcher is sending, if any
+    private CompletableFuture<Void> inFlight;
+    private Thread dispatcher;
+    // Batching window in nanoseconds, follows the measured round trip time
+    private volatile long batchWindow = TimeUnit.MILLISECONDS.toNanos(INITIAL_BATCH_WINDOW);
+    private long roundTripEstimate = -1;
 
     @Override
     public void setOutputState(int pin, boolean state) throws IOException {
@@ -87,68 +179,451 @@ public class RestClient implements PifaceConnection {
 
     @Override
     public void setOutputPWM(int pin, int value) throws IOException {
-        synchronized (pwmOutputChanges) {
-            pwmOutputChanges.put(pin, value);
+        validateRange(pin);
+        queueOutput(pin, value);
+    }
+
+    private CompletableFuture<Void> queueOutput(int pin, int value) {
+        int[] values = new int[PIN_COUNT];
+        values[pin] = value;
+        return queueOutputs(1 << pin, values);
+    }
+
+    /**
+     * @return Future completed when the batch carrying these values is sent
+     */
+    private CompletableFuture<Void> queueOutputs(int mask, int[] values) {
+        return queueOutputs(mask, values, false);
+    }
+
+    /**
+     * Every output write goes through here, so writes reach the server in
+     * the order they were made and only one is ever in flight.
+     *
+     * @param flush Send without waiting for the batching window, for callers
+     * that block until the write is done
+     * @return Future completed when the batch carrying these values is sent
+     */
+    private CompletableFuture<Void> queueOutputs(int mask, int[] values, boolean flush) {
+        mirror.setOutputs(mask, values);
+        synchronized (pendingLock) {
+            flushRequested |= flush;
+            pendingMask |= mask;
+            for (int pin = 0; pin < PIN_COUNT; pin++) {
+                if (isPinInMask(mask, pin)) {
+                    pendingValues[pin] = values[pin];
+                }
+            }
+            if (pendingBatch == null) {
+                pendingBatch = new CompletableFuture<>();
+            }
+            if (dispatcher == null) {
+                dispatcher = new Thread(this::dispatchOutputs, "RestClient outputs " + host + ":" + port);
+                dispatcher.setDaemon(true);
+                dispatcher.start();
+            }
+            pendingLock.notifyAll();
+            return pendingBatch;
         }
+    }
 
-        new Thread(() -> {
+    /**
+     * Sends pending output changes, one request at a time. After the first
+     * change arrives the dispatcher waits one batching window so that changes
+     * made in quick succession go out together, and while a request is in
+     * flight further changes simply collect for the next one.
+     */
+    private void dispatchOutputs() {
+        int[] values = new int[PIN_COUNT];
+        while (!Thread.currentThread().isInterrupted()) {
+            int mask;
+            CompletableFuture<Void> batch;
+            synchronized (pendingLock) {
+                try {
+                    while (pendingBatch == null) {
+                        pendingLock.wait();
+                    }
+                    long deadline = System.nanoTime() + batchWindow;
+                    long remaining;
+                    while (!flushRequested && (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(pendingLock, remaining);
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                flushRequested = false;
+                mask = pendingMask;
+                System.arraycopy(pendingValues, 0, values, 0, PIN_COUNT);
+                pendingMask = 0;
+                batch = pendingBatch;
+                pendingBatch = null;
+                inFlight = batch;
+            }
+            long start = System.nanoTime();
             try {
-                Thread.sleep(25);
-            } catch (InterruptedException ex) {
+                sendOutputPort(mask, values);
+                batch.complete(null);
+            } catch (IOException ex) {
                 Logger.getLogger(RestClient.class.getName()).log(Level.SEVERE, null, ex);
+                // The server may or may not have applied it, read back before trusting the mirror
+                invalidateOutputs();
+                batch.completeExceptionally(ex);
             }
-            List<String> params = new ArrayList<>();
-            synchronized (pwmOutputChanges) {
-                pwmOutputChanges.forEach((p, v) -> {
-                    params.add(RestServer.PARAM_PIN + p);
-                    params.add(String.valueOf(v));
-                });
-                pwmOutputChanges.clear();
+            synchronized (pendingLock) {
+                inFlight = null;
             }
-            if (params.isEmpty()) {
-                return;
+            updateBatchWindow(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Sends any queued writes at once and waits for them and any batch in
+     * flight, so that a request sent after this cannot overtake them. Their
+     * failures are left to whoever made them.
+     */
+    private void flushOutputs() throws IOException {
+        CompletableFuture<Void> last;
+        synchronized (pendingLock) {
+            last = pendingBatch != null ? pendingBatch : inFlight;
+            if (pendingBatch != null) {
+                flushRequested = true;
+                pendingLock.notifyAll();
             }
+        }
+        if (last != null) {
             try {
-                URI uri = generateUri(RestServer.SET_OUTPUT_PWM, (String[]) params.toArray(new String[0]));
-                RestResponse restResponse = getRestResponse(uri);
-            } catch (URISyntaxException | IOException ex) {
-                Logger.getLogger(RestClient.class.getName()).log(Level.SEVERE, null, ex);
+                last.handle((result, ex) -> null).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for output writes", ex);
+            } catch (ExecutionException ex) {
+                // Cannot happen, handle swallows the failure
             }
-        }).start();
+        }
+    }
+
+    /**
+     * Keeps a moving average of the round trip time and sets the batching
+     * window to half of it: long enough to gather a burst of changes, short
+     * enough not to add more delay than the network already does.
+     */
+    private void updateBatchWindow(long roundTrip) {
+        roundTripEstimate = roundTripEstimate < 0 ? roundTrip : (roundTripEstimate * 7 + roundTrip) / 8;
+        long window = roundTripEstimate / 2;
+        batchWindow = Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_BATCH_WINDOW),
+                Math.min(TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_WINDOW), window));
     }
 
+    /**
+     * @return Current output batching window in milliseconds
+     */
+    public double getBatchWindow() {
+        return batchWindow / 1000000.0;
+    }
+
+    /**
+     * Joins the same queue as single-pin writes, so it cannot overtake or be
+     * overtaken by them, and waits until it has been sent.
+     */
     @Override
-    public int getOutputState(int pin) throws IOException {
+    public void setOutputPort(int mask, int[] values) throws IOException {
+        validatePort(mask, values);
+        if (mask != 0) {
+            awaitWrite(queueOutputs(mask, values, true));
+        }
+    }
+
+    private void awaitWrite(CompletableFuture<Void> write) throws IOException {
         try {
-            URI uri = generateUri(RestServer.SET_OUTPUT,
-                    RestServer.PARAM_PIN, String.valueOf(pin));
-            RestResponse restResponse = getRestResponse(uri);
-            if (restResponse == null) {
+            write.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for output write", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Error writing outputs", ex.getCause());
+        }
+    }
+
+    private byte[] outputFrame(int mask, int[] values) {
+        byte[] request;
+        if (Integer.bitCount(mask) == 1) {
+            int pin = Integer.numberOfTrailingZeros(mask);
+            request = WireProtocol.frame(WireProtocol.SET_PWM, 0, pin, 0);
+            WireProtocol.setValue(request, 0, values[pin]);
+        } else {
+            request = WireProtocol.frame(WireProtocol.WRITE_PORT, 0, mask, 0);
+            for (int pin = 0; pin < PIN_COUNT; pin++) {
+                WireProtocol.setValue(request, pin, values[pin]);
+            }
+        }
+        return request;
+    }
+
+    private void sendOutputPort(int mask, int[] values) throws IOException {
+        if (callWire(outputFrame(mask, values)) != null) {
+            return;
+        }
+        List<String> params = new ArrayList<>();
+        for (int pin = 0; pin < PIN_COUNT; pin++) {
+            if (isPinInMask(mask, pin)) {
+                params.add(RestServer.PARAM_PIN + pin);
+                params.add(String.valueOf(values[pin]));
+            }
+        }
+        try {
+            URI uri = generateUri(RestServer.SET_OUTPUT_PWM, (String[]) params.toArray(new String[0]));
+            getRestResponseList(uri);
+        } catch (URISyntaxException ex) {
+            Logger.getLogger(RestClient.class.getName()).log(Level.SEVERE, null, ex);
+            throw new IOException("Error executing request", ex);
+        }
+    }
+
+    @Override
+    public List<InputEdge> getInputEdges(int pin, int count) throws IOException {
+        return getInputEdges(pin, RestServer.PARAM_COUNT, String.valueOf(count));
+    }
+
+    @Override
+    public List<InputEdge> getInputEdgesSince(int pin, long sequence) throws IOException {
+        return getInputEdges(pin, RestServer.PARAM_SINCE, String.valueOf(sequence));
+    }
+
+    private List<InputEdge> getInputEdges(int pin, String param, String value) throws IOException {
+        validateRange(pin);
+        try {
+            URI uri = generateUri(RestServer.GET_INPUT_EDGES,
+                    RestServer.PARAM_PIN, String.valueOf(pin), param, value);
+            List<InputEdge> edges = getResponseList(uri, ResponseCodec::decodeEdgeList);
+            if (edges == null) {
                 throw new IOException("Bad response");
             }
-            return restResponse.getValue();
+            return edges;
         } catch (URISyntaxException ex) {
             Logger.getLogger(RestClient.class.getName()).log(Level.SEVERE, null, ex);
             throw new IOException("Error executing request", ex);
         }
     }
 
+    StateMirror mirror = new StateMirror(OUTPUT_MAX_AGE);
+
+    /**
+     * @return Version of the local state mirror, bumped on every change seen
+     */
+    public long getStateVersion() {
+        return mirror.getVersion();
+    }
+
+    /**
+     * Reads are answered from the local mirror. Until the input feed has
+     * delivered its first snapshot (or while it is down) they go to the server
+     * and the result is merged into the mirror.
+     */
+    @Override
+    public int getInputPort() throws IOException {
+        setupInputFeed();
+        if (!mirror.isInputsLive()) {
+            long since = mirror.getVersion();
+            applyInputSnapshot(since, readInputPort());
+        }
+        return mirror.getInputPort();
+    }
+
     @Override
     public boolean getInputState(int pin) throws IOException {
+        validateRange(pin);
+        return isPinInMask(getInputPort(), pin);
+    }
+
+    /**
+     * Answered from the mirror for up to OUTPUT_MAX_AGE after the outputs were
+     * last checked, since other clients, timelines and reflexes change them on
+     * the server too. After that the state endpoint is asked what changed since
+     * its last version, which is usually an empty 304.
+     */
+    @Override
+    public int getOutputState(int pin) throws IOException {
+        validateRange(pin);
+        if (!mirror.isOutputsLive()) {
+            refreshOutputs();
+        }
+        return mirror.getOutput(pin);
+    }
+
+    private void refreshOutputs() throws IOException {
+        // The binary protocol reads the whole port for less than an HTTP request
+        if (stateSupported && peekWire() == null) {
+            try {
+                pollState();
+                return;
+            } catch (IOException ex) {
+                Logger.getLogger(RestClient.class.getName()).log(Level.WARNING, "State endpoint unavailable, reading outputs instead: {0}", ex.getMessage());
+                stateSupported = false;
+            }
+        }
+        long since = mirror.getVersion();
+        mirror.reconcileOutputs(since, readOutputPort());
+        mirror.setOutputsLive(true);
+    }
+
+    /**
+     * Stops trusting the mirror's outputs until they have been read back in
+     * full, as after a write that may or may not have been applied.
+     */
+    private void invalidateOutputs() {
+        stateVersion = 0;
+        mirror.setOutputsLive(false);
+    }
+
+    private int readInputPort() throws IOException {
+        byte[] wireResponse = callWire(WireProtocol.frame(WireProtocol.READ_PORT, 0, 0, 0));
+        if (wireResponse != null) {
+            return WireProtocol.getInputs(wireResponse);
+        }
+        try {
+            URI uri = generateUri(RestServer.GET_INPUTS);
+            Collection<RestResponse> restResponse = getRestResponseList(uri);
+            if (restResponse == null) {
+                throw new IOException("Bad response");
+            }
+            int port = 0;
+            for (RestResponse pinStatus : restResponse) {
+                if (pinStatus.getState()) {
+                    port |= 1 << pinStatus.getPin();
+                }
+            }
+            return port;
+        } catch (URISyntaxException ex) {
+            Logger.getLogger(RestClient.class.getName()).log(Level.SEVERE, null, ex);
+            throw new IOException("Error executing request", ex);
+        }
+    }
+
+    private int[] readOutputPort() throws IOException {
+        int[] values = new int[PIN_COUNT];
+        byte[] wireResponse = callWire(WireProtocol.frame(WireProtocol.READ_PORT, 0, 0, 0));
+        if (wireResponse != null) {
+            for (int pin = 0; pin < PIN_COUNT; pin++) {
+                values[pin] = WireProtocol.getValue(wireResponse, pin);
+            }
+            return values;
+        }
         try {
-            URI uri = generateUri(RestServer.GET_INPUT,
-                    RestServer.PARAM_PIN, String.valueOf(pin));
-            RestResponse restResponse = getRestResponse(uri);
+            URI uri = generateUri(RestServer.GET_OUTPUTS);
+            Collection<RestResponse> restResponse = getRestResponseList(uri);
             if (restResponse == null) {
                 throw new IOException("Bad response");
             }
-            return restResponse.getState();
+            restResponse.forEach(pinStatus -> values[pinStatus.getPin()] = pinStatus.getValue());
+            return values;
         } catch (URISyntaxException ex) {
             Logger.getLogger(RestClient.class.getName()).log(Level.SEVERE, null, ex);
             throw new IOException("Error executing request", ex);
         }
     }
 
+    private final Object wireLock = new Object();
+    volatile WireClient wire;
+    // Guarded by wireLock: when to ask again, and the attempt under way
+    long wireRetryTime = 0;
+    private CompletableFuture<WireClient> wireAttempt;
+
+    /**
+     * Finds out whether the server offers the binary protocol and connects to
+     * it if so. Returns null (and HTTP is used) when it is not offered or not
+     * reachable; the server is asked again after WIRE_RETRY_DELAY. Only one
+     * caller negotiates, without holding any lock, and the others wait for
+     * its answer.
+     */
+    private WireClient getWire() {
+        CompletableFuture<WireClient> attempt;
+        boolean negotiate = false;
+        synchronized (wireLock) {
+            if (wire != null && wire.isOpen()) {
+                return wire;
+            }
+            wire = null;
+            if (wireAttempt == null) {
+                if (System.currentTimeMillis() < wireRetryTime) {
+                    return null;
+                }
+                wireRetryTime = System.currentTimeMillis() + WIRE_RETRY_DELAY;
+                wireAttempt = new CompletableFuture<>();
+                negotiate = true;
+            }
+            attempt = wireAttempt;
+        }
+        if (negotiate) {
+            WireClient client = connectWire();
+            synchronized (wireLock) {
+                wire = client;
+                wireAttempt = null;
+            }
+            attempt.complete(client);
+        }
+        return attempt.join();
+    }
+
+    /**
+     * @return A new binary connection, or null if the server does not offer
+     * one or it could not be reached
+     */
+    private WireClient connectWire() {
+        try {
+            JsonObject protocols = execute(generateUri(RestServer.GET_PROTOCOLS), response -> {
+                if (response.getStatusLine().getStatusCode() != 200) {
+                    return null;
+                }
+                InputStreamReader reader = new InputStreamReader(response.getEntity().getContent());
+                return gson.fromJson(reader, JsonObject.class).getAsJsonObject(ResponseCodec.RESPONSE);
+            });
+            if (protocols != null && protocols.has(RestServer.PROTOCOL_BINARY)) {
+                int wirePort = protocols.get(RestServer.PROTOCOL_BINARY).getAsInt();
+                WireClient client = new WireClient(host, wirePort, this::evaluateInputChangeFrame);
+                Logger.getLogger(RestClient.class.getName()).log(Level.INFO, "Using binary protocol on port {0}", wirePort);
+                return client;
+            }
+        } catch (Throwable t) {
+            Logger.getLogger(RestClient.class.getName()).log(Level.WARNING, "Binary protocol unavailable: {0}", t.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * @return The binary connection if it is already open, without trying to
+     * negotiate one
+     */
+    private WireClient peekWire() {
+        WireClient client = wire;
+        return client != null && client.isOpen() ? client : null;
+    }
+
+    /**
+     * @return The response, or null if the binary protocol is not available
+     * and the caller should fall back to HTTP
+     */
+    private byte[] callWire(byte[] request) {
+        if (breaker.getState() != CircuitBreaker.State.CLOSED) {
+            return null;
+        }
+        WireClient client = getWire();
+        if (client == null) {
+            return null;
+        }
+        try {
+            byte[] response = client.call(request);
+            breaker.recordSuccess();
+            return response;
+        } catch (IOException ex) {
+            breaker.recordFailure();
+            Logger.getLogger(RestClient.class.getName()).log(Level.WARNING, "Binary protocol request failed, using HTTP: {0}", ex.getMessage());
+            return null;
+        }
+    }
+
     private URI generateUri(String path, String... params) throws URISyntaxException {
         StringBuilder builder = new StringBuilder();
         for (int i = 0; i < params.length; i++) {
@@ -161,113 +636,744 @@ public class RestClient implements PifaceConnection {
             }
             builder.append(params[i]);
         }
-        String url = "http://" + host + ":" + port + path + "?" + builder.toString();
+        String url = "http://" + host + ":" + port + basePath + path + "?" + builder.toString();
         System.out.println(url);
         return new URI(url);
     }
 
     private CloseableHttpClient getClient() {
+        // Retries are handled by execute, within the request deadline
         return HttpClients.custom()
                 .setConnectionManager(connectionManager)
                 .setConnectionManagerShared(true)
+                .disableAutomaticRetries()
                 .build();
     }
 
-    private RestResponse getRestResponse(URI uri) throws IOException {
-        int retries = 3;
-        RestResponse restResponse = null;
-        while (restResponse == null && retries > 0) {
-            HttpGet request = new HttpGet(uri);
-            try (CloseableHttpResponse response = getClient().execute(request)) {
-                InputStreamReader reader = new InputStreamReader(response.getEntity().getContent());
-                restResponse = gson.fromJson(reader, RestResponse.class);
-            } catch (Throwable t) {
-                retries--;
-                if (retries > 0) {
-                    Logger.getLogger(getClass().getName()).log(Level.WARNING, "Error trying to communicate with server: {0}", t.getMessage());
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException ex) {
-                        throw new IOException("Interrupted during retry sequence", t);
-                    }
-                } else {
-                    throw new IOException("Unable to parse result", t);
+    interface ResponseHandler<T> {
+
+        T handle(CloseableHttpResponse response) throws IOException;
+    }
+
+    private <T> T execute(URI uri, ResponseHandler<T> handler) throws IOException {
+        return execute(uri, null, handler);
+    }
+
+    /**
+     * Sends a GET request, or a POST when there is a body, retrying failures to reach the server with
+     * jittered exponential backoff until REQUEST_DEADLINE has passed. Every
+     * attempt is bounded by timeouts that respect the remaining deadline, and
+     * fails at once while the circuit breaker is open. A call that runs out of
+     * attempts counts once towards opening the breaker. A server that answers
+     * at all, even with an error, counts as healthy and is not retried, and
+     * requests that must not be applied twice are only retried if they
+     * could not connect.
+     */
+    private <T> T execute(URI uri, byte[] body, ResponseHandler<T> handler, Header... headers) throws IOException {
+        return execute(uri, body, true, handler, headers);
+    }
+
+    /**
+     * @param replayable False for a request the server must not apply twice,
+     * which is then only retried if it failed while connecting, before the
+     * server could have seen it
+     */
+    private <T> T execute(URI uri, byte[] body, boolean replayable, ResponseHandler<T> handler, Header... headers) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return attempt(start, uri, body, replayable, handler, headers);
+        } finally {
+            requestTime.recordSince(start);
+        }
+    }
+
+    private <T> T attempt(long start, URI uri, byte[] body, boolean replayable, ResponseHandler<T> handler, Header[] headers) throws IOException {
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(REQUEST_DEADLINE);
+        for (int attempt = 1;; attempt++) {
+            if (!breaker.allowRequest()) {
+                failures.increment();
+                throw new IOException("Server " + host + ":" + port + " is not responding, request refused");
+            }
+            int remaining = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+            HttpRequestBase request;
+            if (body != null) {
+                HttpPost post = new HttpPost(uri);
+                post.setEntity(new ByteArrayEntity(body, ResponseCodec.CONTENT_TYPE));
+                request = post;
+            } else {
+                request = new HttpGet(uri);
+            }
+            request.setHeaders(headers);
+            request.setConfig(RequestConfig.custom()
+                    .setConnectTimeout(Math.min(CONNECT_TIMEOUT, remaining))
+                    .setConnectionRequestTimeout(remaining)
+                    .setSocketTimeout(Math.min(REQUEST_TIMEOUT, remaining))
+                    .build());
+            CloseableHttpResponse response;
+            try {
+                response = getClient().execute(request);
+            } catch (IOException ex) {
+                long delay = getBackoff(attempt);
+                // Failing to connect, or to get a pooled connection, means nothing was sent
+                boolean sent = !(ex instanceof ConnectException || ex instanceof ConnectTimeoutException);
+                if ((sent && !replayable) || attempt >= MAX_ATTEMPTS
+                        || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) >= deadline) {
+                    // One failure per call, however many attempts it took
+                    breaker.recordFailure();
+                    failures.increment();
+                    throw new IOException("Unable to reach server", ex);
+                }
+                retries.increment();
+                Logger.getLogger(getClass().getName()).log(Level.WARNING, "Error trying to communicate with server: {0}", ex.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted during retry sequence", ex);
                 }
+                continue;
+            }
+            breaker.recordSuccess();
+            try (CloseableHttpResponse result = response) {
+                int status = result.getStatusLine().getStatusCode();
+                if (status == AdmissionControl.SC_TOO_MANY_REQUESTS || status == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+                    // Turned away by admission control, retrying now would only add to the load
+                    Header retryAfter = result.getFirstHeader(HttpHeaders.RETRY_AFTER);
+                    throw new IOException("Server busy (" + status + "), retry after "
+                            + (retryAfter == null ? "?" : retryAfter.getValue()) + " seconds");
+                }
+                return handler.handle(result);
+            } catch (SocketTimeoutException ex) {
+                // Answered, then stalled part way through the body
+                breaker.recordFailure();
+                throw ex;
             }
         }
-        return restResponse;
+    }
+
+    private long getBackoff(int attempt) {
+        long ceiling = Math.min(BACKOFF_MAX, (long) BACKOFF_BASE << (attempt - 1));
+        // Half fixed, half random, so callers that failed together retry apart
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * Background health check for the circuit breaker: any HTTP answer at
+     * all within REQUEST_TIMEOUT will do.
+     */
+    private boolean probeServer() throws IOException, URISyntaxException {
+        HttpGet request = new HttpGet(generateUri(RestServer.GET_PROTOCOLS));
+        request.setConfig(RequestConfig.custom()
+                .setConnectTimeout(CONNECT_TIMEOUT)
+                .setConnectionRequestTimeout(REQUEST_TIMEOUT)
+                .setSocketTimeout(REQUEST_TIMEOUT)
+                .build());
+        try (CloseableHttpResponse response = getClient().execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            return true;
+        }
     }
 
     private Collection<RestResponse> getRestResponseList(URI uri) throws IOException {
-        int retries = 3;
-        Collection<RestResponse> restResponse = null;
-        while (restResponse == null && retries > 0) {
-            HttpGet request = new HttpGet(uri);
-            try (CloseableHttpResponse response = getClient().execute(request)) {
-                InputStreamReader reader = new InputStreamReader(response.getEntity().getContent());
-                JsonObject result = gson.fromJson(reader, JsonObject.class);
-                JsonArray list = result.get("response").getAsJsonArray();
-
-                Type collectionType = new TypeToken<Collection<RestResponse>>() {
-                }.getType();
-                restResponse = gson.fromJson(list, collectionType);
-            } catch (Throwable t) {
-                retries--;
-                if (retries > 0) {
-                    Logger.getLogger(getClass().getName()).log(Level.WARNING, "Error trying to communicate with server: {0}", t.getMessage());
+        return getResponseList(uri, ResponseCodec::decodePinList);
+    }
+
+    private <T> T getResponseList(URI uri, ResponseCodec.Decoder<T> decoder) throws IOException {
+        return execute(uri, response -> {
+            try {
+                return decoder.decode(response.getEntity().getContent());
+            } catch (RuntimeException ex) {
+                throw new IOException("Unable to parse result", ex);
+            }
+        });
+    }
+
+    /**
+     * Has the server play a timeline of output writes on its own clock,
+     * replacing any it is playing. The outputs this changes are not tracked
+     * by getOutputState until they are next read from the server.
+     *
+     * @return Status of the timeline as it starts
+     * @throws IOException If the server could not be reached or rejected the
+     * timeline
+     */
+    public TimelineScheduler.Status playTimeline(Timeline timeline) throws IOException {
+        return executeTimeline(ResponseCodec.encodeBody(timeline));
+    }
+
+    /**
+     * Stops the timeline the server is playing, leaving the outputs as its
+     * last step set them.
+     *
+     * @return Status of the timeline cancelled
+     */
+    public TimelineScheduler.Status cancelTimeline() throws IOException {
+        return playTimeline(new Timeline());
+    }
+
+    /**
+     * @return Status of the latest timeline, or null if there has been none
+     */
+    public TimelineScheduler.Status getTimelineStatus() throws IOException {
+        return executeTimeline(null);
+    }
+
+    private TimelineScheduler.Status executeTimeline(byte[] body) throws IOException {
+        try {
+            // Played again, a timeline would start over from its first step
+            return execute(generateUri(RestServer.TIMELINE), body, body == null, response -> {
+                try {
+                    return ResponseCodec.decodeTimelineStatus(response.getEntity().getContent(), response.getStatusLine().getStatusCode());
+                } catch (RuntimeException ex) {
+                    throw new IOException("Unable to parse result", ex);
+                }
+            });
+        } catch (URISyntaxException ex) {
+            throw new IOException("Error executing request", ex);
+        }
+    }
+
+    /**
+     * Replaces the Reflex rules the server runs next to the board, so that
+     * outputs react to inputs without a round trip through this client.
+     *
+     * @param rules Empty to remove every rule
+     * @return The rules now in place
+     * @throws IOException If the server could not be reached or rejected the
+     * rules, in which case the previous rules stay in place
+     */
+    public List<Reflex> setReflexes(List<Reflex> rules) throws IOException {
+        return executeReflexes(ResponseCodec.encodeBody(rules));
+    }
+
+    /**
+     * @return The rules the server runs, with how often each has fired
+     */
+    public List<Reflex> getReflexes() throws IOException {
+        return executeReflexes(null);
+    }
+
+    private List<Reflex> executeReflexes(byte[] body) throws IOException {
+        try {
+            return execute(generateUri(RestServer.REFLEXES), body, response -> {
+                try {
+                    return ResponseCodec.decodeReflexList(response.getEntity().getContent());
+                } catch (RuntimeException ex) {
+                    throw new IOException("Unable to parse result", ex);
+                }
+            });
+        } catch (URISyntaxException ex) {
+            throw new IOException("Error executing request", ex);
+        }
+    }
+
+    /**
+     * @return An empty batch of operations to run on the server in one request
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * Collects operations to run together through the batch endpoint. All of
+     * the writes are applied as one port update and all of the reads answered
+     * from one snapshot taken after them, see RestServer.applyBatch. Writes
+     * set absolute values, so retrying a batch after a dropped connection is
+     * safe.
+     */
+    public class Batch {
+
+        private final List<BatchOperation> operations = new ArrayList<>();
+
+        public Batch setOutputState(int pin, boolean state) throws IOException {
+            validateRange(pin);
+            operations.add(BatchOperation.setOutput(pin, state));
+            return this;
+        }
+
+        public Batch setOutputPWM(int pin, int value) throws IOException {
+            validateRange(pin);
+            operations.add(BatchOperation.setPwm(pin, value));
+            return this;
+        }
+
+        public Batch readInput(int pin) throws IOException {
+            validateRange(pin);
+            operations.add(BatchOperation.readInput(pin));
+            return this;
+        }
+
+        public Batch readInputs() {
+            for (int pin = 0; pin < PIN_COUNT; pin++) {
+                operations.add(BatchOperation.readInput(pin));
+            }
+            return this;
+        }
+
+        public Batch readOutput(int pin) throws IOException {
+            validateRange(pin);
+            operations.add(BatchOperation.readOutput(pin));
+            return this;
+        }
+
+        public Batch readOutputs() {
+            for (int pin = 0; pin < PIN_COUNT; pin++) {
+                operations.add(BatchOperation.readOutput(pin));
+            }
+            return this;
+        }
+
+        public int size() {
+            return operations.size();
+        }
+
+        /**
+         * @return One entry per operation, in the order they were added
+         * @throws IOException If the server could not be reached or rejected
+         * the batch, in which case nothing was applied
+         */
+        public List<RestResponse> execute() throws IOException {
+            int mask = 0;
+            int[] values = new int[PIN_COUNT];
+            for (BatchOperation operation : operations) {
+                if (operation.isWrite()) {
+                    mask |= 1 << operation.getPin();
+                    values[operation.getPin()] = BatchOperation.SET_OUTPUT.equals(operation.getOp())
+                            ? (operation.getState() ? PWM_RANGE : 0) : operation.getValue();
+                }
+            }
+            // Writes made before the batch must reach the server before it
+            flushOutputs();
+            if (mask != 0) {
+                mirror.setOutputs(mask, values);
+            }
+            try {
+                URI uri = generateUri(RestServer.BATCH);
+                return RestClient.this.execute(uri, ResponseCodec.encodeBatch(operations), response -> {
                     try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException ex) {
-                        throw new IOException("Interrupted during retry sequence", t);
+                        return ResponseCodec.decodePinList(response.getEntity().getContent());
+                    } catch (RuntimeException ex) {
+                        throw new IOException("Unable to parse result", ex);
                     }
-                } else {
-                    throw new IOException("Unable to parse result", t);
+                });
+            } catch (URISyntaxException ex) {
+                throw new IOException("Error executing request", ex);
+            } catch (IOException ex) {
+                if (mask != 0) {
+                    invalidateOutputs();
                 }
+                throw ex;
+            }
+        }
+    }
+
+    Thread inputFeed;
+
+    /**
+     * Input changes are pushed by the server over a long-lived event stream.
+     * Whenever that stream is unavailable (older server, network trouble) the
+     * inputs are polled instead until the stream can be re-established.
+     */
+    private synchronized void setupInputFeed() {
+        if (inputFeed != null) {
+            return;
+        }
+        inputFeed = new Thread(this::followInputStream, "RestClient inputs " + host + ":" + port);
+        inputFeed.setDaemon(true);
+        inputFeed.start();
+    }
+
+    private void followInputStream() {
+        while (!Thread.currentThread().isInterrupted()) {
+            if (followWire()) {
+                continue;
+            }
+            try {
+                readInputStream();
+            } catch (URISyntaxException | IOException ex) {
+                Logger.getLogger(RestClient.class.getName()).log(Level.WARNING, "Input stream unavailable, polling instead: {0}", ex.getMessage());
+            }
+            setupPollingLoop();
+            try {
+                Thread.sleep(STREAM_RETRY_DELAY);
+            } catch (InterruptedException ex) {
+                return;
             }
         }
-        return restResponse;
+    }
+
+    private void readInputStream() throws URISyntaxException, IOException {
+        HttpGet request = new HttpGet(generateUri(RestServer.INPUT_STREAM));
+        request.setConfig(RequestConfig.custom().setSocketTimeout(STREAM_TIMEOUT).build());
+        try (CloseableHttpResponse response = getClient().execute(request)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                throw new IOException("Server answered " + status);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8));
+            stopPollingLoop();
+            String line;
+            int events = 0;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("data:")) {
+                    evaluateInputStateChange(ResponseCodec.decodePin(line.substring(5).trim()));
+                    // The stream opens with the state of every pin
+                    if (++events == PIN_COUNT) {
+                        mirror.setInputsLive(true);
+                    }
+                }
+            }
+        } finally {
+            mirror.setInputsLive(false);
+            invalidateOutputs();
+        }
+    }
+
+    /**
+     * Subscribes to input changes over the binary protocol, if available, and
+     * blocks until that connection closes.
+     *
+     * @return False if the binary protocol could not be used
+     */
+    private boolean followWire() {
+        WireClient client = getWire();
+        if (client == null) {
+            return false;
+        }
+        try {
+            long since = mirror.getVersion();
+            byte[] snapshot = client.call(WireProtocol.frame(WireProtocol.SUBSCRIBE, 0, 0, 0));
+            stopPollingLoop();
+            applyInputSnapshot(since, WireProtocol.getInputs(snapshot));
+            mirror.setInputsLive(true);
+            client.awaitClose();
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(RestClient.class.getName()).log(Level.WARNING, "Binary protocol subscription failed: {0}", ex.getMessage());
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return true;
+        } finally {
+            mirror.setInputsLive(false);
+            invalidateOutputs();
+        }
     }
 
     ScheduledExecutorService scheduler;
 
-    private void setupPollingLoop() {
+    private synchronized void setupPollingLoop() {
         if (scheduler != null && !scheduler.isShutdown()) {
             return;
         }
         System.out.println("Creating new scheduler");
+        stateSupported = true;
         scheduler = Executors.newSingleThreadScheduledExecutor();
         scheduler.scheduleAtFixedRate(this::pollInputs, 0, POLLING_FREQUENCY, TimeUnit.MILLISECONDS);
     }
 
-    private List<Consumer<Boolean>> getListenersForPin(int pin) {
-        if (listeners.get(pin) == null) {
-            listeners.put(pin, new ArrayList<>());
+    private synchronized void stopPollingLoop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
         }
-        return listeners.get(pin);
     }
 
-    boolean[] inputState = new boolean[8];
+    private List<Consumer<Boolean>> getListenersForPin(int pin) {
+        // Copied on write, since listeners are called while others are added
+        return listeners.computeIfAbsent(pin, key -> new CopyOnWriteArrayList<>());
+    }
 
+    // Last version seen from the state endpoint, 0 to ask for everything
+    volatile long stateVersion = 0;
+    volatile boolean stateSupported = true;
+
+    /**
+     * Asks the state endpoint for what changed since the last poll, which is
+     * nothing at all most of the time. Servers without it are polled for
+     * their inputs instead.
+     */
     private void pollInputs() {
-        try {
-            URI uri = generateUri(RestServer.GET_INPUTS);
-            Collection<RestResponse> restResponse = getRestResponseList(uri);
-            if (restResponse != null) {
-                restResponse.forEach(this::evaluateInputStateChange);
+        if (stateSupported) {
+            try {
+                pollState();
+                return;
+            } catch (IOException ex) {
+                Logger.getLogger(RestClient.class.getName()).log(Level.WARNING, "State endpoint unavailable, polling inputs instead: {0}", ex.getMessage());
+                stateSupported = false;
             }
-
+        }
+        try {
+            pollInputList();
         } catch (URISyntaxException | IOException ex) {
             Logger.getLogger(RestClient.class.getName()).log(Level.SEVERE, null, ex);
         }
 
     }
 
+    // ETag of the last inputs response, sent back so unchanged inputs cost a 304
+    String inputsETag = null;
+
+    private void pollInputList() throws URISyntaxException, IOException {
+        URI uri = generateUri(RestServer.GET_INPUTS);
+        Header[] headers = inputsETag == null ? new Header[0]
+                : new Header[]{new BasicHeader(HttpHeaders.IF_NONE_MATCH, inputsETag)};
+        Collection<RestResponse> restResponse = execute(uri, null, response -> {
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                return null;
+            }
+            Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+            try {
+                Collection<RestResponse> pins = ResponseCodec.decodePinList(response.getEntity().getContent());
+                inputsETag = etag == null ? null : etag.getValue();
+                return pins;
+            } catch (RuntimeException ex) {
+                throw new IOException("Unable to parse result", ex);
+            }
+        }, headers);
+        if (restResponse != null) {
+            restResponse.forEach(this::evaluateInputStateChange);
+        }
+    }
+
+    private void pollState() throws IOException {
+        long since = mirror.getVersion();
+        StateDelta delta = getStateChanges(stateVersion);
+        if (delta == null) {
+            // Nothing changed since the last answer, which was applied in full
+            mirror.setOutputsLive(true);
+            return;
+        }
+        int mask = 0;
+        int[] outputs = new int[PIN_COUNT];
+        for (PinState pin : delta.getPins()) {
+            evaluateInputStateChange(pin.getPin(), pin.getInput());
+            mask |= 1 << pin.getPin();
+            outputs[pin.getPin()] = pin.getOutput();
+        }
+        mirror.reconcileOutputs(since, mask, outputs);
+        mirror.setOutputsLive(true);
+        stateVersion = delta.getVersion();
+    }
+
+    /**
+     * @param since Version from a previous call, or 0 for a full snapshot
+     * @return Pins changed after that version, or null if none have
+     * @throws IOException If the server could not be asked
+     */
+    public StateDelta getStateChanges(long since) throws IOException {
+        URI uri;
+        try {
+            uri = generateUri(RestServer.GET_STATE, RestServer.PARAM_SINCE, String.valueOf(since));
+        } catch (URISyntaxException ex) {
+            Logger.getLogger(RestClient.class.getName()).log(Level.SEVERE, null, ex);
+            throw new IOException("Error executing request", ex);
+        }
+        return execute(uri, response -> {
+            int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_NOT_MODIFIED) {
+                return null;
+            }
+            if (status != HttpStatus.SC_OK) {
+                EntityUtils.consume(response.getEntity());
+                throw new IOException("Server answered " + status);
+            }
+            return ResponseCodec.decodeStateDelta(response.getEntity().getContent());
+        });
+    }
+
     private void evaluateInputStateChange(RestResponse pinStatus) {
-        if (pinStatus.getState() != inputState[pinStatus.getPin()]) {
-            getListenersForPin(pinStatus.getPin()).forEach(listener -> {
-                listener.accept(pinStatus.getState());
+        evaluateInputStateChange(pinStatus.getPin(), pinStatus.getState());
+    }
+
+    private void evaluateInputChangeFrame(byte[] frame) {
+        evaluateInputStateChange(WireProtocol.getArg(frame), WireProtocol.getInputs(frame) != 0);
+    }
+
+    // Held while the mirror changes and the listener calls are queued, so
+    // listeners hear about changes in the order the mirror saw them
+    private final Object inputLock = new Object();
+    private ExecutorService listenerThread;
+
+    private void evaluateInputStateChange(int pin, boolean state) {
+        synchronized (inputLock) {
+            if (mirror.setInput(pin, state)) {
+                notifyListeners(pin, state);
+            }
+        }
+    }
+
+    private void applyInputSnapshot(long since, int inputs) {
+        synchronized (inputLock) {
+            int changed = mirror.reconcileInputs(since, inputs);
+            for (int pin = 0; pin < PIN_COUNT; pin++) {
+                if (isPinInMask(changed, pin)) {
+                    notifyListeners(pin, isPinInMask(inputs, pin));
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the listener calls for a change. Listeners run one at a time on
+     * a thread of their own, without any lock of this client held, so they
+     * are free to make requests; the thread feeding input changes (the wire
+     * reader in particular) never waits on them. Called with inputLock held.
+     */
+    private void notifyListeners(int pin, boolean state) {
+        List<Consumer<Boolean>> pinListeners = listeners.get(pin);
+        if (pinListeners == null || pinListeners.isEmpty()) {
+            return;
+        }
+        if (listenerThread == null) {
+            listenerThread = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "RestClient listeners " + host + ":" + port);
+                thread.setDaemon(true);
+                return thread;
             });
         }
-        inputState[pinStatus.getPin()] = pinStatus.getState();
+        listenerThread.execute(() -> {
+            for (Consumer<Boolean> listener : pinListeners) {
+                try {
+                    listener.accept(state);
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(RestClient.class.getName()).log(Level.WARNING, "Input listener for pin " + pin + " failed", ex);
+                }
+            }
+        });
+    }
+
+    private final AsyncView asyncView = new AsyncView();
+
+    /**
+     * Reads are answered from the mirror when it is live, or pipelined on the
+     * binary protocol when it is not. Writes join the batching dispatcher,
+     * which keeps them in order and lets any number be outstanding without a
+     * thread each. Only what is left for HTTP runs on the shared pool, which
+     * is also where futures from the wire reader and the dispatcher complete,
+     * so stages callers add can never hold those threads up.
+     */
+    @Override
+    public AsyncPifaceConnection async() {
+        return asyncView;
+    }
+
+    private class AsyncView implements AsyncPifaceConnection {
+
+        @Override
+        public CompletableFuture<Integer> getInputPort() {
+            setupInputFeed();
+            if (mirror.isInputsLive()) {
+                return CompletableFuture.completedFuture(mirror.getInputPort());
+            }
+            WireClient client = peekWire();
+            if (client == null) {
+                return AsyncAdapter.submit(AsyncAdapter.SHARED, RestClient.this::getInputPort);
+            }
+            long since = mirror.getVersion();
+            return handOff(client.send(WireProtocol.frame(WireProtocol.READ_PORT, 0, 0, 0))).thenApply(response -> {
+                applyInputSnapshot(since, WireProtocol.getInputs(response));
+                return mirror.getInputPort();
+            });
+        }
+
+        @Override
+        public CompletableFuture<Boolean> getInputState(int pin) {
+            try {
+                validateRange(pin);
+            } catch (IOException ex) {
+                return AsyncPifaceConnection.failedFuture(ex);
+            }
+            return getInputPort().thenApply(inputs -> isPinInMask(inputs, pin));
+        }
+
+        @Override
+        public CompletableFuture<Integer> getOutputState(int pin) {
+            try {
+                validateRange(pin);
+            } catch (IOException ex) {
+                return AsyncPifaceConnection.failedFuture(ex);
+            }
+            if (mirror.isOutputsLive()) {
+                return CompletableFuture.completedFuture(mirror.getOutput(pin));
+            }
+            WireClient client = peekWire();
+            if (client == null) {
+                return AsyncAdapter.submit(AsyncAdapter.SHARED, () -> RestClient.this.getOutputState(pin));
+            }
+            long since = mirror.getVersion();
+            return handOff(client.send(WireProtocol.frame(WireProtocol.READ_PORT, 0, 0, 0))).thenApply(response -> {
+                int[] values = new int[PIN_COUNT];
+                for (int i = 0; i < PIN_COUNT; i++) {
+                    values[i] = WireProtocol.getValue(response, i);
+                }
+                mirror.reconcileOutputs(since, values);
+                mirror.setOutputsLive(true);
+                return mirror.getOutput(pin);
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> setOutputState(int pin, boolean state) {
+            return setOutputPWM(pin, state ? 100 : 0);
+        }
+
+        @Override
+        public CompletableFuture<Void> setOutputPWM(int pin, int value) {
+            try {
+                validateRange(pin);
+            } catch (IOException ex) {
+                return AsyncPifaceConnection.failedFuture(ex);
+            }
+            return handOff(queueOutput(pin, value));
+        }
+
+        @Override
+        public CompletableFuture<Void> setOutputPort(int mask, int[] values) {
+            try {
+                validatePort(mask, values);
+            } catch (IOException ex) {
+                return AsyncPifaceConnection.failedFuture(ex);
+            }
+            if (mask == 0) {
+                return CompletableFuture.completedFuture(null);
+            }
+            // Goes through the dispatcher so writes reach the server in the order they were made
+            return handOff(queueOutputs(mask, values));
+        }
+
+        @Override
+        public CompletableFuture<List<InputEdge>> getInputEdges(int pin, int count) {
+            return AsyncAdapter.submit(AsyncAdapter.SHARED, () -> RestClient.this.getInputEdges(pin, count));
+        }
+
+        @Override
+        public CompletableFuture<List<InputEdge>> getInputEdgesSince(int pin, long sequence) {
+            return AsyncAdapter.submit(AsyncAdapter.SHARED, () -> RestClient.this.getInputEdgesSince(pin, sequence));
+        }
+
+        @Override
+        public CompletableFuture<Void> addListener(int pin, Consumer<Boolean> listener) {
+            return AsyncAdapter.run(AsyncAdapter.DIRECT, () -> RestClient.this.addListener(pin, listener));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> isConnected() {
+            return AsyncAdapter.submit(AsyncAdapter.SHARED, RestClient.this::isConnected);
+        }
+
+        @Override
+        public PifaceConnection blocking() {
+            return RestClient.this;
+        }
+
+        /**
+         * @return The same outcome, completed on the shared pool rather than
+         * on the thread that completed the original
+         */
+        private <T> CompletableFuture<T> handOff(CompletableFuture<T> future) {
+            return future.whenCompleteAsync((result, ex) -> {
+            }, AsyncAdapter.SHARED);
+        }
     }
 }
@@ -1,30 +1,38 @@
 package org.badvision.pifaceintegrator.piface;
 
-import com.google.gson.Gson;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.URISyntaxException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.http.HttpEntity;
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.HttpStatus;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.bootstrap.HttpServer;
 import org.apache.http.impl.bootstrap.ServerBootstrap;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.badvision.pifaceintegrator.metrics.Counter;
+import org.badvision.pifaceintegrator.metrics.Histogram;
+import org.badvision.pifaceintegrator.metrics.Metrics;
 
 /**
  * This provides a REST layer for a PiFace
@@ -65,51 +73,485 @@ public class RestServer {
     }
     public static String GET_INPUT = "/input";
     public static String GET_INPUTS = "/inputs";
+    public static String GET_OUTPUTS = "/outputs";
     public static String SET_OUTPUT = "/output";
     public static String SET_OUTPUT_PWM = "/outputPwm";
+    public static String GET_INPUT_EDGES = "/inputEdges";
+    public static String INPUT_STREAM = "/inputStream";
+    public static String GET_PROTOCOLS = "/protocols";
+    public static String GET_STATE = "/state";
+    public static String HEADER_STATE_VERSION = "X-State-Version";
+    public static String BATCH = "/batch";
+    public static String TIMELINE = "/timeline";
+    public static String REFLEXES = "/reflexes";
+    public static String METRICS = "/metrics";
+    public static String BOARD_PATH = "/board/";
 
     public static String PARAM_PIN = "pin";
     public static String PARAM_STATE = "state";
     public static String PARAM_VALUE = "value";
+    public static String PARAM_COUNT = "count";
+    public static String PARAM_SINCE = "since";
     public static int DEFAULT_PORT = 1701;
+    public static int DEFAULT_BINARY_PORT = 1702;
+    public static String PROTOCOL_BINARY = "binary";
 
     HttpServer server;
-    PifaceConnection device;
-    Gson gson;
+    NioHttpServer nioServer;
+    Board[] boards;
+    WireServer wireServer;
+    StateBroadcaster broadcaster;
+    final TimelineScheduler timelines = new TimelineScheduler();
+
+    /**
+     * Everything the server keeps for one board. Boards share the server's
+     * threads; each only adds its listeners, caches and routes.
+     */
+    static class Board {
+
+        final int index;
+        // Records its writes in state under batchLock, everything on the server uses it
+        final PifaceConnection device;
+        final InputChangeFeed inputFeed;
+        final BoardState state;
+        final InputsCache inputsCache;
+        final AdmissionControl admission;
+        // Held by every write through device, and by batches from their write to their reads
+        final Object batchLock = new Object();
+        // Created with the first rules, so boards without any pay nothing
+        private ReflexEngine reflexes;
+
+        Board(int index, PifaceConnection device) {
+            this.index = index;
+            state = new BoardState(device);
+            this.device = new TrackedConnection(device, state, batchLock);
+            inputFeed = new InputChangeFeed(device);
+            inputsCache = new InputsCache(device);
+            admission = new AdmissionControl(index);
+        }
+
+        synchronized ReflexEngine getReflexes(boolean create) throws IOException {
+            if (reflexes == null && create) {
+                reflexes = new ReflexEngine(index, device, batchLock);
+            }
+            return reflexes;
+        }
+    }
+
+    /**
+     * A request handler that works on one board.
+     */
+    interface BoardHandler {
+
+        void handle(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException;
+    }
 
     public RestServer(int port, PifaceConnection piface) throws IOException {
-        device = piface;
-        gson = new Gson();
-        ServerBootstrap bootstrap = ServerBootstrap.bootstrap();
-        bootstrap.setListenerPort(port);
-        bootstrap.setSocketConfig(SocketConfig.DEFAULT);
-        bootstrap.registerHandler(GET_INPUT, this::handleGetInputRequest);
-        bootstrap.registerHandler(GET_INPUTS, this::handleGetAllInputsRequest);
-        bootstrap.registerHandler(SET_OUTPUT, this::handleSetOutputRequest);
-        bootstrap.registerHandler(SET_OUTPUT_PWM, this::handleSetOutputPwmRequest);
-        server = bootstrap.create();
-        server.start();
-    }
-
-    void handleGetInputRequest(HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
+        this(port, piface, false);
+    }
+
+    /**
+     * @param nonBlocking Serve from NioHttpServer's few event-driven threads
+     * rather than a thread per connection, for many simultaneous clients
+     */
+    public RestServer(int port, PifaceConnection piface, boolean nonBlocking) throws IOException {
+        this(port, Collections.singletonList(piface), nonBlocking);
+    }
+
+    /**
+     * Serves several boards from one process. Each board's endpoints are
+     * under getBoardPath(board), and the first board's are also at the root
+     * for clients that know of only one board.
+     *
+     * @param nonBlocking Serve from NioHttpServer's few event-driven threads
+     * rather than a thread per connection, for many simultaneous clients
+     */
+    public RestServer(int port, List<PifaceConnection> piface, boolean nonBlocking) throws IOException {
+        if (piface.isEmpty()) {
+            throw new IllegalArgumentException("At least one board is required");
+        }
+        boards = new Board[piface.size()];
+        for (int i = 0; i < boards.length; i++) {
+            boards[i] = new Board(i, piface.get(i));
+        }
+        if (nonBlocking) {
+            nioServer = new NioHttpServer(port);
+            registerHandlers(nioServer::registerHandler, (path, board) -> nioServer.registerStream(path,
+                    InputChangeFeed.CONTENT_TYPE, InputChangeFeed.KEEP_ALIVE, TimeUnit.SECONDS.toMillis(InputChangeFeed.HEARTBEAT),
+                    (request, sink) -> board.inputFeed.subscribe(sink)));
+            nioServer.start();
+        } else {
+            ServerBootstrap bootstrap = ServerBootstrap.bootstrap();
+            bootstrap.setListenerPort(port);
+            bootstrap.setSocketConfig(SocketConfig.DEFAULT);
+            RequestRouter<HttpRequestHandler> router = new RequestRouter<>();
+            registerHandlers(router::register, (path, board) -> router.register(path, bind(board, this::handleInputStreamRequest)));
+            bootstrap.setHandlerMapper(RequestRouter.asHandlerMapper(router));
+            server = bootstrap.create();
+            server.start();
+        }
+    }
+
+    /**
+     * @return Path prefix of the endpoints of a board
+     */
+    public static String getBoardPath(int board) {
+        return BOARD_PATH + board;
+    }
+
+    public int getBoardCount() {
+        return boards.length;
+    }
+
+    private void registerHandlers(BiConsumer<String, HttpRequestHandler> registry, BiConsumer<String, Board> streams) {
+        for (Board board : boards) {
+            registerBoardHandlers(registry, streams, getBoardPath(board.index), board);
+        }
+        registerBoardHandlers(registry, streams, "", boards[0]);
+        registry.accept(METRICS, this::handleMetricsRequest);
+    }
+
+    private void registerBoardHandlers(BiConsumer<String, HttpRequestHandler> registry, BiConsumer<String, Board> streams, String prefix, Board board) {
+        BiConsumer<String, BoardHandler> timed = (path, handler)
+                -> registry.accept(prefix + path, timed(prefix + path, bind(board, handler)));
+        BiConsumer<String, BoardHandler> device = (path, handler) -> {
+            registry.accept(prefix + path, timed(prefix + path, admitted(board, bind(board, handler))));
+            if (nioServer != null) {
+                // Wait for admission off the few workers, see admitted
+                nioServer.registerGate(prefix + path, (request, context)
+                        -> board.admission.admit(AdmissionControl.getClientAddress(context)));
+            }
+        };
+        device.accept(GET_INPUT, this::handleGetInputRequest);
+        device.accept(GET_INPUTS, this::handleGetAllInputsRequest);
+        device.accept(GET_OUTPUTS, this::handleGetAllOutputsRequest);
+        device.accept(SET_OUTPUT, this::handleSetOutputRequest);
+        device.accept(SET_OUTPUT_PWM, this::handleSetOutputPwmRequest);
+        device.accept(GET_INPUT_EDGES, this::handleGetInputEdgesRequest);
+        timed.accept(GET_PROTOCOLS, this::handleGetProtocolsRequest);
+        device.accept(GET_STATE, this::handleGetStateRequest);
+        device.accept(BATCH, this::handleBatchRequest);
+        device.accept(TIMELINE, this::handleTimelineRequest);
+        timed.accept(REFLEXES, this::handleReflexesRequest);
+        streams.accept(prefix + INPUT_STREAM, board);
+    }
+
+    static HttpRequestHandler bind(Board board, BoardHandler handler) {
+        return (request, response, context) -> handler.handle(board, request, response, context);
+    }
+
+    /**
+     * Runs handler only once the board's AdmissionControl lets the request
+     * through to the device, otherwise answers with its status and Retry-After.
+     * NioHttpServer has already waited for admission through the path's gate
+     * before the request reached a worker; the blocking server waits here.
+     */
+    HttpRequestHandler admitted(Board board, HttpRequestHandler handler) {
+        AdmissionControl admission = board.admission;
+        return (request, response, context) -> {
+            Object admitted = context.getAttribute(NioHttpServer.ADMISSION);
+            try {
+                if (admitted == null) {
+                    admission.enter(AdmissionControl.getClientAddress(context));
+                } else if (admitted instanceof AdmissionControl.RejectedException) {
+                    throw (AdmissionControl.RejectedException) admitted;
+                } else if (admitted != Boolean.TRUE) {
+                    throw new IOException("Admission failed", (Throwable) admitted);
+                }
+            } catch (AdmissionControl.RejectedException ex) {
+                Map<String, Object> details = new HashMap<>();
+                details.put("message", ex.getMessage());
+                response.setStatusCode(ex.getStatus());
+                response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfter()));
+                outputResponse(response, details);
+                return;
+            }
+            try {
+                handler.handle(request, response, context);
+            } finally {
+                admission.leave();
+            }
+        };
+    }
+
+    /**
+     * Records how long each request to path takes and how many are answered
+     * with an error status.
+     */
+    static HttpRequestHandler timed(String path, HttpRequestHandler handler) {
+        Histogram time = Metrics.histogram("piface_http_request_seconds", "Time taken to handle REST requests", "path", path);
+        Counter errors = Metrics.counter("piface_http_errors_total", "REST requests answered with an error status", "path", path);
+        return (request, response, context) -> {
+            long start = System.nanoTime();
+            try {
+                handler.handle(request, response, context);
+            } finally {
+                time.recordSince(start);
+                if (response.getStatusLine().getStatusCode() >= HttpStatus.SC_BAD_REQUEST) {
+                    errors.increment();
+                }
+            }
+        };
+    }
+
+    /**
+     * Every metric of this process, in the Prometheus text format.
+     */
+    void handleMetricsRequest(HttpRequest request, HttpResponse response, HttpContext context) {
+        response.setEntity(new StringEntity(Metrics.render(), ContentType.parse(Metrics.CONTENT_TYPE)));
+    }
+
+    /**
+     * Also serves the first board over the binary wire protocol, which
+     * clients discover through its protocols endpoint. Wire requests go
+     * through the board's admission control like REST requests do.
+     *
+     * @param port TCP port for the binary protocol
+     * @throws IOException If the port could not be opened
+     */
+    public void enableBinaryProtocol(int port) throws IOException {
+        if (wireServer == null) {
+            wireServer = new WireServer(port, boards[0].device, boards[0].admission);
+        }
+    }
+
+    /**
+     * Also publishes the state of every board as UDP datagrams, for any
+     * number of read-only watchers; see BroadcastConnection.
+     *
+     * @param targets Multicast group or unicast addresses to send to
+     * @throws IOException If the socket could not be opened
+     */
+    public void enableStateBroadcast(List<InetSocketAddress> targets) throws IOException {
+        if (broadcaster == null) {
+            List<PifaceConnection> devices = new ArrayList<>();
+            for (Board board : boards) {
+                devices.add(board.device);
+            }
+            broadcaster = new StateBroadcaster(devices, targets);
+        }
+    }
+
+    void handleGetProtocolsRequest(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
         handleRequest(request, response, (params, output) -> {
-            int pinNumber = getRequiredInt(params, PARAM_PIN);
+            if (wireServer != null && board.index == 0) {
+                output.put(PROTOCOL_BINARY, wireServer.getPort());
+            }
+        });
+    }
+
+    /**
+     * Full snapshot of every pin, or with since=version only the pins that
+     * changed after that version. When nothing has changed the answer is 304
+     * with no body.
+     */
+    void handleGetStateRequest(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
+        try {
+            long since = RequestParameters.parse(request.getRequestLine().getUri()).getLong(RequestParameters.SINCE, -1);
+            StateDelta delta = board.state.getChanges(since);
+            if (delta == null) {
+                response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+                response.setHeader(HEADER_STATE_VERSION, String.valueOf(since));
+                return;
+            }
+            response.setHeader(HEADER_STATE_VERSION, String.valueOf(delta.getVersion()));
+            outputResponse(response, delta);
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(RestServer.class.getName()).log(Level.SEVERE, null, ex);
+            outputError(response, ex);
+        }
+    }
+
+    /**
+     * Runs the list of BatchOperations in the request body. Every write is
+     * applied in a single port update, later writes to a pin overriding
+     * earlier ones, and every read is then answered from one snapshot taken
+     * after the writes, which no other write made through this server can
+     * land in the middle of. Writes made directly on a connection the server
+     * shares (from the UI or the mesh, say) are not held off. Nothing is
+     * applied unless every operation is valid.
+     * The answer holds one pin entry per operation, in order.
+     */
+    void handleBatchRequest(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
+        try {
+            if (!(request instanceof HttpEntityEnclosingRequest) || ((HttpEntityEnclosingRequest) request).getEntity() == null) {
+                throw new IllegalArgumentException("Batch operations must be sent as the request body");
+            }
+            List<BatchOperation> operations;
+            try (InputStream body = ((HttpEntityEnclosingRequest) request).getEntity().getContent()) {
+                operations = ResponseCodec.decodeBatch(body);
+            }
+            outputResponse(response, applyBatch(board, operations));
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(RestServer.class.getName()).log(Level.SEVERE, null, ex);
+            outputError(response, ex);
+        }
+    }
+
+    /**
+     * POST starts playing a Timeline on the board, replacing any playing
+     * there, and DELETE cancels it; posting a timeline with no steps also
+     * cancels. Every method answers with the status of the board's latest
+     * timeline, null if it never had one.
+     */
+    void handleTimelineRequest(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
+        try {
+            TimelineScheduler.Status status;
+            String method = request.getRequestLine().getMethod();
+            if (request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null) {
+                Timeline timeline;
+                try (InputStream body = ((HttpEntityEnclosingRequest) request).getEntity().getContent()) {
+                    timeline = ResponseCodec.decodeTimeline(body);
+                }
+                status = timelines.play(board.index, board.device, board.batchLock, timeline);
+            } else if ("DELETE".equalsIgnoreCase(method)) {
+                status = timelines.cancel(board.index);
+            } else {
+                status = timelines.getStatus(board.index);
+            }
+            outputResponse(response, status);
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(RestServer.class.getName()).log(Level.SEVERE, null, ex);
+            outputError(response, ex);
+        }
+    }
+
+    /**
+     * POST replaces the board's Reflex rules with the array sent, and DELETE
+     * removes them all. Every method answers with the rules and their hit
+     * counts.
+     */
+    void handleReflexesRequest(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
+        try {
+            String method = request.getRequestLine().getMethod();
+            if (request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null) {
+                List<Reflex> rules;
+                try (InputStream body = ((HttpEntityEnclosingRequest) request).getEntity().getContent()) {
+                    rules = ResponseCodec.decodeReflexes(body);
+                }
+                ReflexEngine reflexes = board.getReflexes(!rules.isEmpty());
+                if (reflexes != null) {
+                    reflexes.setRules(rules);
+                }
+            } else if ("DELETE".equalsIgnoreCase(method) && board.getReflexes(false) != null) {
+                board.getReflexes(false).setRules(Collections.emptyList());
+            }
+            ReflexEngine reflexes = board.getReflexes(false);
+            outputResponse(response, reflexes == null ? Collections.emptyList() : reflexes.getRules());
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(RestServer.class.getName()).log(Level.SEVERE, null, ex);
+            outputError(response, ex);
+        }
+    }
+
+    List<RestResponse> applyBatch(Board board, List<BatchOperation> operations) throws IOException {
+        int mask = 0;
+        int[] values = new int[PifaceConnection.PIN_COUNT];
+        boolean readsOutputs = false;
+        for (BatchOperation operation : operations) {
+            int pin = operation.getPin();
+            if (pin < 0 || pin >= PifaceConnection.PIN_COUNT) {
+                throw new IllegalArgumentException("Pin must be 0-" + (PifaceConnection.PIN_COUNT - 1));
+            }
+            if (operation.getOp() == null) {
+                throw new IllegalArgumentException("Batch operation is missing op");
+            }
+            switch (operation.getOp()) {
+                case BatchOperation.SET_OUTPUT:
+                    mask |= 1 << pin;
+                    values[pin] = operation.getState() ? PifaceConnection.PWM_RANGE : 0;
+                    break;
+                case BatchOperation.SET_PWM:
+                    if (operation.getValue() < 0 || operation.getValue() > PifaceConnection.PWM_RANGE) {
+                        throw new IllegalArgumentException("PWM value must be 0-" + PifaceConnection.PWM_RANGE);
+                    }
+                    mask |= 1 << pin;
+                    values[pin] = operation.getValue();
+                    break;
+                case BatchOperation.READ_OUTPUT:
+                    readsOutputs = true;
+                    break;
+                case BatchOperation.READ_INPUT:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown batch operation " + operation.getOp());
+            }
+        }
+        int inputs;
+        int[] outputs = new int[PifaceConnection.PIN_COUNT];
+        // No write through board.device can slip in between the write and the snapshot
+        synchronized (board.batchLock) {
+            if (mask != 0) {
+                board.device.setOutputPort(mask, values);
+            }
+            inputs = board.device.getInputPort();
+            for (int pin = 0; readsOutputs && pin < PifaceConnection.PIN_COUNT; pin++) {
+                outputs[pin] = board.device.getOutputState(pin);
+            }
+        }
+        List<RestResponse> results = new ArrayList<>(operations.size());
+        for (BatchOperation operation : operations) {
+            RestResponse result = new RestResponse();
+            int pin = operation.getPin();
+            result.setPin(pin);
+            switch (operation.getOp()) {
+                case BatchOperation.SET_OUTPUT:
+                case BatchOperation.SET_PWM:
+                    result.setValue(values[pin]);
+                    result.setState(values[pin] > 0);
+                    break;
+                case BatchOperation.READ_OUTPUT:
+                    result.setValue(outputs[pin]);
+                    result.setState(outputs[pin] > 0);
+                    break;
+                default:
+                    result.setState((inputs & (1 << pin)) != 0);
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    void handleGetInputRequest(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
+        handleRequest(request, response, (params, output) -> {
+            int pinNumber = params.getRequiredInt(RequestParameters.PIN);
             output.put(PARAM_PIN, pinNumber);
             try {
-                output.put(PARAM_STATE, device.getInputState(pinNumber));
+                output.put(PARAM_STATE, board.device.getInputState(pinNumber));
             } catch (IOException ex) {
                 throw new RuntimeException(ex.getMessage(), ex);
             }
         });
     }
 
-    void handleGetAllInputsRequest(HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
+    /**
+     * Served from InputsCache. The reply carries an ETag, and a client that
+     * sends it back in If-None-Match gets 304 with no body while the inputs
+     * are unchanged.
+     */
+    void handleGetAllInputsRequest(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
+        try {
+            InputsCache.Entry inputs = board.inputsCache.get();
+            response.setHeader(HttpHeaders.ETAG, inputs.etag);
+            Header ifNoneMatch = request.getFirstHeader(HttpHeaders.IF_NONE_MATCH);
+            if (ifNoneMatch != null && inputs.matches(ifNoneMatch.getValue())) {
+                response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+                return;
+            }
+            response.setEntity(new ByteArrayEntity(inputs.body, ResponseCodec.CONTENT_TYPE));
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(RestServer.class.getName()).log(Level.SEVERE, null, ex);
+            outputError(response, ex);
+        }
+    }
+
+    void handleGetAllOutputsRequest(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
         handleListRequest(request, response, (params, output) -> {
             try {
-                for (int i = 0; i < 8; i++) {
+                for (int i = 0; i < PifaceConnection.PIN_COUNT; i++) {
                     RestResponse pin = new RestResponse();
                     pin.setPin(i);
-                    pin.setState(device.getInputState(i));
+                    pin.setValue(board.device.getOutputState(i));
                     output.add(pin);
                 }
             } catch (IOException ex) {
@@ -118,12 +560,37 @@ public class RestServer {
         });
     }
 
-    void handleSetOutputRequest(HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
+    void handleGetInputEdgesRequest(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
+        handleListRequest(request, response, (params, output) -> {
+            int pinNumber = params.getRequiredInt(RequestParameters.PIN);
+            long since = params.getLong(RequestParameters.SINCE, -1);
+            try {
+                if (since >= 0) {
+                    output.addAll(board.device.getInputEdgesSince(pinNumber, since));
+                } else {
+                    output.addAll(board.device.getInputEdges(pinNumber, params.getInt(RequestParameters.COUNT, InputEdgeHistory.DEFAULT_CAPACITY)));
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(ex.getMessage(), ex);
+            }
+        });
+    }
+
+    void handleInputStreamRequest(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
+        try {
+            response.setEntity(board.inputFeed.subscribe());
+        } catch (IOException ex) {
+            Logger.getLogger(RestServer.class.getName()).log(Level.SEVERE, null, ex);
+            outputError(response, ex);
+        }
+    }
+
+    void handleSetOutputRequest(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
         handleRequest(request, response, (params, output) -> {
-            int pinNumber = getRequiredInt(params, PARAM_PIN);
-            boolean state = getRequiredBoolean(params, PARAM_STATE);
+            int pinNumber = params.getRequiredInt(RequestParameters.PIN);
+            boolean state = params.getRequiredBoolean(RequestParameters.STATE);
             try {
-                device.setOutputState(pinNumber, state);
+                board.device.setOutputState(pinNumber, state);
             } catch (IOException ex) {
                 throw new RuntimeException(ex.getMessage(), ex);
             }
@@ -132,18 +599,25 @@ public class RestServer {
         });
     }
 
-    void handleSetOutputPwmRequest(HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
+    void handleSetOutputPwmRequest(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
         handleListRequest(request, response, (params, output) -> {
+            int mask = 0;
+            int[] values = new int[PifaceConnection.PIN_COUNT];
+            int given = params.getPinMask();
+            for (int i = 0; i < PifaceConnection.PIN_COUNT; i++) {
+                int val = (given & (1 << i)) != 0 ? params.getPinValue(i) : -1;
+                if (val >= 0) {
+                    mask |= 1 << i;
+                    values[i] = val;
+                    RestResponse pin = new RestResponse();
+                    pin.setPin(i);
+                    pin.setValue(val);
+                    output.add(pin);
+                }
+            }
             try {
-                for (int i = 0; i < 8; i++) {
-                    int val = getInt(params, PARAM_PIN + i, -1);
-                    if (val >= 0) {
-                        device.setOutputPWM(i, val);
-                        RestResponse pin = new RestResponse();
-                        pin.setPin(i);
-                        pin.setValue(val);
-                        output.add(pin);
-                    }
+                if (mask != 0) {
+                    board.device.setOutputPort(mask, values);
                 }
             } catch (IOException ex) {
                 throw new RuntimeException(ex.getMessage(), ex);
@@ -151,12 +625,12 @@ public class RestServer {
         });
     }
 
-    void handleSetSingleOutputPwmRequest(HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
+    void handleSetSingleOutputPwmRequest(Board board, HttpRequest request, HttpResponse response, HttpContext context) throws UnsupportedEncodingException {
         handleRequest(request, response, (params, output) -> {
-            int pinNumber = getRequiredInt(params, PARAM_PIN);
-            int val = getRequiredInt(params, PARAM_VALUE);
+            int pinNumber = params.getRequiredInt(RequestParameters.PIN);
+            int val = params.getRequiredInt(RequestParameters.VALUE);
             try {
-                device.setOutputPWM(pinNumber, val);
+                board.device.setOutputPWM(pinNumber, val);
             } catch (IOException ex) {
                 throw new RuntimeException(ex.getMessage(), ex);
             }
@@ -165,53 +639,46 @@ public class RestServer {
         });
     }
 
-    private Optional<String> getParamValue(List<NameValuePair> params, String name) {
-        Optional<NameValuePair> found = params.stream().filter(nvp -> nvp.getName().equals(name)).findFirst();
-        if (found.isPresent()) {
-            return Optional.of(found.get().getValue());
-        } else {
-            return Optional.empty();
-        }
-    }
-
-    private void handleRequest(HttpRequest request, HttpResponse response, BiConsumer<List<NameValuePair>, Map<String, Object>> handler) throws UnsupportedEncodingException {
+    private void handleRequest(HttpRequest request, HttpResponse response, BiConsumer<RequestParameters, Map<String, Object>> handler) throws UnsupportedEncodingException {
         try {
             Map output = new HashMap();
-            handler.accept(getQueryParameters(request), output);
+            handler.accept(RequestParameters.parse(request.getRequestLine().getUri()), output);
             outputResponse(response, output);
-        } catch (URISyntaxException | UnsupportedEncodingException ex) {
+        } catch (UnsupportedEncodingException | RuntimeException ex) {
             Logger.getLogger(RestServer.class.getName()).log(Level.SEVERE, null, ex);
             outputError(response, ex);
         }
     }
 
-    private void handleListRequest(HttpRequest request, HttpResponse response, BiConsumer<List<NameValuePair>, List<Object>> handler) throws UnsupportedEncodingException {
+    private void handleListRequest(HttpRequest request, HttpResponse response, BiConsumer<RequestParameters, List<Object>> handler) throws UnsupportedEncodingException {
         try {
             List output = new ArrayList();
-            handler.accept(getQueryParameters(request), output);
+            handler.accept(RequestParameters.parse(request.getRequestLine().getUri()), output);
             outputResponse(response, output);
-        } catch (URISyntaxException | UnsupportedEncodingException ex) {
+        } catch (UnsupportedEncodingException | RuntimeException ex) {
             Logger.getLogger(RestServer.class.getName()).log(Level.SEVERE, null, ex);
             outputError(response, ex);
         }
     }
 
     public void shutdown() {
+        if (wireServer != null) {
+            wireServer.shutdown();
+        }
+        if (broadcaster != null) {
+            broadcaster.shutdown();
+        }
+        timelines.shutdown();
         if (server != null) {
             server.shutdown(1, TimeUnit.SECONDS);
         }
-    }
-
-    private List<NameValuePair> getQueryParameters(HttpRequest request) throws URISyntaxException {
-        URIBuilder newBuilder = new URIBuilder(request.getRequestLine().getUri());
-        return newBuilder.getQueryParams();
+        if (nioServer != null) {
+            nioServer.shutdown();
+        }
     }
 
     private void outputResponse(HttpResponse response, Object data) throws UnsupportedEncodingException {
-        Map outputResponse = new HashMap();
-        outputResponse.put("response", data);
-        HttpEntity responseObject = new StringEntity(gson.toJson(outputResponse));
-        response.setEntity(responseObject);
+        response.setEntity(ResponseCodec.encodeEntity(data));
     }
 
     private void outputError(HttpResponse response, Exception ex) throws UnsupportedEncodingException {
@@ -226,32 +693,4 @@ public class RestServer {
         response.setStatusCode(500);
         outputResponse(response, errorDetails);
     }
-
-    private boolean isEmptyOrNull(String str) {
-        return str == null || str.trim().isEmpty();
-    }
-
-    private int getInt(List<NameValuePair> params, String name, int defaultValue) {
-        String str = getParamValue(params, name).orElse(null);
-        if (isEmptyOrNull(str)) {
-            return defaultValue;
-        }
-        return Integer.parseInt(str);
-    }
-
-    private int getRequiredInt(List<NameValuePair> params, String name) {
-        int value = getInt(params, name, Integer.MIN_VALUE);
-        if (value == Integer.MIN_VALUE) {
-            throw new IllegalArgumentException("Numeric parameter " + name + " is missing or invalid");
-        }
-        return value;
-    }
-
-    private boolean getRequiredBoolean(List<NameValuePair> params, String name) {
-        String str = getParamValue(params, name).orElse(null);
-        if (isEmptyOrNull(str)) {
-            throw new IllegalArgumentException("Boolean parameter " + name + " is missing or invalid");
-        }
-        return Boolean.parseBoolean(str);
-    }
 }
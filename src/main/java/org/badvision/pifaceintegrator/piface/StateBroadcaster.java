@@ -0,0 +1,229 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.badvision.pifaceintegrator.metrics.Counter;
+import org.badvision.pifaceintegrator.metrics.Metrics;
+
+/**
+ * Publishes the state of one or more boards as UDP datagrams, to a multicast
+ * group or a list of unicast addresses, for any number of read-only watchers
+ * (see BroadcastConnection). A change costs one packet per target however
+ * many watchers there are.
+ *
+ * Every datagram carries the whole state of one board, PACKET_SIZE bytes:
+ *
+ * <pre>
+ *  0-1  magic 'P' 'S'
+ *  2    protocol version
+ *  3    CHANGE or KEYFRAME
+ *  4    board id
+ *  5-6  session, chosen at random when the broadcaster starts
+ *  7-10 sequence number, per board, incremented on every datagram
+ *  11   input port
+ *  12   output port, bit N set if output N is on at any duty
+ *  13-20 duty of each output (0-PWM_RANGE)
+ * </pre>
+ *
+ * Input events are sent as they arrive. Outputs have no events, so they are
+ * compared against the device every CHECK_INTERVAL and sent when they differ.
+ * Every KEYFRAME_INTERVAL the state is sent regardless, re-read from the
+ * device, so watchers that join late or lose packets catch up. Receivers use
+ * the sequence number to drop packets that arrive out of order, and a new
+ * session to recognise a restarted broadcaster.
+ *
+ * @author blurry
+ */
+public class StateBroadcaster {
+
+    static final Logger log = Logger.getLogger(StateBroadcaster.class.getName());
+    public static final int PACKET_SIZE = 21;
+    public static final int VERSION = 1;
+    public static final int MAGIC_0 = 'P';
+    public static final int MAGIC_1 = 'S';
+    public static final byte CHANGE = 0x01;
+    public static final byte KEYFRAME = 0x02;
+    // Milliseconds between output checks and between keyframes
+    public static final long CHECK_INTERVAL = 20;
+    public static final long KEYFRAME_INTERVAL = 1000;
+    // Hops a multicast datagram may take, 1 keeps it on the local network
+    public static final int MULTICAST_TTL = 1;
+
+    // Packet layout
+    static final int TYPE = 3;
+    static final int BOARD = 4;
+    static final int SESSION = 5;
+    static final int SEQUENCE = 7;
+    static final int INPUTS = 11;
+    static final int OUTPUTS = 12;
+    static final int DUTIES = 13;
+
+    static final Counter packetsSent = Metrics.counter("piface_broadcast_packets_total", "State datagrams sent, per target");
+
+    private class Board {
+
+        final int id;
+        final PifaceConnection device;
+        int sequence = 0;
+        // Last state sent, and the inputs as events report them
+        int sentInputs = -1;
+        final int[] sentDuties = new int[PifaceConnection.PIN_COUNT];
+        volatile int inputs;
+
+        Board(int id, PifaceConnection device) throws IOException {
+            this.id = id;
+            this.device = device;
+            inputs = device.getInputPort();
+            for (int i = 0; i < PifaceConnection.PIN_COUNT; i++) {
+                final int pin = i;
+                device.addListener(pin, state -> inputChanged(this, pin, state));
+            }
+        }
+    }
+
+    private final Board[] boards;
+    private final List<InetSocketAddress> targets;
+    private final DatagramSocket socket;
+    private final int session = ThreadLocalRandom.current().nextInt(0x10000);
+    private final ScheduledExecutorService executor;
+    private final byte[] packet = new byte[PACKET_SIZE];
+
+    /**
+     * @param devices Boards to publish, their index in the list is their id
+     * @param targets Multicast group or unicast addresses to send to
+     * @throws IOException If the socket could not be opened or a board read
+     */
+    public StateBroadcaster(List<PifaceConnection> devices, List<InetSocketAddress> targets) throws IOException {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("At least one target address is required");
+        }
+        this.targets = targets;
+        if (targets.stream().anyMatch(target -> target.getAddress().isMulticastAddress())) {
+            MulticastSocket multicast = new MulticastSocket();
+            multicast.setTimeToLive(MULTICAST_TTL);
+            socket = multicast;
+        } else {
+            socket = new DatagramSocket();
+        }
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "State broadcaster");
+            thread.setDaemon(true);
+            return thread;
+        });
+        boards = new Board[devices.size()];
+        for (int i = 0; i < boards.length; i++) {
+            boards[i] = new Board(i, devices.get(i));
+        }
+        executor.scheduleWithFixedDelay(() -> sendAll(false), 0, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        executor.scheduleAtFixedRate(() -> sendAll(true), KEYFRAME_INTERVAL, KEYFRAME_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void inputChanged(Board board, int pin, boolean state) {
+        int bit = 1 << pin;
+        int snapshot;
+        synchronized (board) {
+            board.inputs = state ? board.inputs | bit : board.inputs & ~bit;
+            snapshot = board.inputs;
+        }
+        // Sent as it was at this event, so a pulse shorter than the queue ahead of it still shows
+        executor.execute(() -> send(board, CHANGE, snapshot, true));
+    }
+
+    private void sendAll(boolean keyframe) {
+        for (Board board : boards) {
+            if (keyframe) {
+                try {
+                    // Catches up with any input event that went missing
+                    int current = board.device.getInputPort();
+                    synchronized (board) {
+                        board.inputs = current;
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    log.log(Level.WARNING, "Error broadcasting state of board " + board.id, ex);
+                    continue;
+                }
+            }
+            send(board, keyframe ? KEYFRAME : CHANGE, board.inputs, keyframe);
+        }
+    }
+
+    /**
+     * Only ever runs on the executor's one thread.
+     *
+     * @param always Send even if nothing changed since the last datagram
+     */
+    private void send(Board board, byte type, int inputs, boolean always) {
+        try {
+            boolean changed = inputs != board.sentInputs;
+            for (int pin = 0; pin < PifaceConnection.PIN_COUNT; pin++) {
+                int duty = board.device.getOutputState(pin);
+                changed |= duty != board.sentDuties[pin];
+                board.sentDuties[pin] = duty;
+            }
+            if (!changed && !always) {
+                return;
+            }
+            board.sentInputs = inputs;
+            encode(packet, type, board.id, session, ++board.sequence, inputs, board.sentDuties);
+            for (InetSocketAddress target : targets) {
+                socket.send(new DatagramPacket(packet, PACKET_SIZE, target));
+                packetsSent.increment();
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.log(Level.WARNING, "Error broadcasting state of board " + board.id, ex);
+        }
+    }
+
+    static void encode(byte[] packet, byte type, int board, int session, int sequence, int inputs, int[] duties) {
+        packet[0] = MAGIC_0;
+        packet[1] = MAGIC_1;
+        packet[2] = VERSION;
+        packet[TYPE] = type;
+        packet[BOARD] = (byte) board;
+        packet[SESSION] = (byte) (session >> 8);
+        packet[SESSION + 1] = (byte) session;
+        for (int i = 0; i < 4; i++) {
+            packet[SEQUENCE + i] = (byte) (sequence >> (24 - 8 * i));
+        }
+        packet[INPUTS] = (byte) inputs;
+        int outputs = 0;
+        for (int pin = 0; pin < PifaceConnection.PIN_COUNT; pin++) {
+            packet[DUTIES + pin] = (byte) duties[pin];
+            if (duties[pin] > 0) {
+                outputs |= 1 << pin;
+            }
+        }
+        packet[OUTPUTS] = (byte) outputs;
+    }
+
+    static boolean isValid(byte[] packet, int length) {
+        return length == PACKET_SIZE && packet[0] == MAGIC_0 && packet[1] == MAGIC_1 && packet[2] == VERSION;
+    }
+
+    static int getSession(byte[] packet) {
+        return (packet[SESSION] & 0x0ff) << 8 | (packet[SESSION + 1] & 0x0ff);
+    }
+
+    static int getSequence(byte[] packet) {
+        int sequence = 0;
+        for (int i = 0; i < 4; i++) {
+            sequence = sequence << 8 | (packet[SEQUENCE + i] & 0x0ff);
+        }
+        return sequence;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        socket.close();
+    }
+}
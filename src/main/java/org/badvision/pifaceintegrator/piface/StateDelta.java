@@ -0,0 +1,44 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answer from the state endpoint: the pins that changed after the version the
+ * client asked about, or every pin when it asked for a full snapshot (or its
+ * version is not one this server issued).
+ *
+ * @author blurry
+ */
+public class StateDelta {
+
+    long version;
+    boolean full;
+    List<PinState> pins = new ArrayList<>();
+
+    public StateDelta() {
+    }
+
+    public StateDelta(long version, boolean full) {
+        this.version = version;
+        this.full = full;
+    }
+
+    /**
+     * @return Version to ask for changes since next time
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return True if every pin is included, not only changed ones
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    public List<PinState> getPins() {
+        return pins;
+    }
+}
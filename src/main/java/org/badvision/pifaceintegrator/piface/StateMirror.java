@@ -0,0 +1,167 @@
+package org.badvision.pifaceintegrator.piface;
+
+import static org.badvision.pifaceintegrator.piface.PifaceConnection.PIN_COUNT;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local copy of a remote PiFace's inputs and outputs. Every change bumps a
+ * version number and stamps the pins it touched, so that a snapshot fetched
+ * over the network can be merged without undoing anything that happened while
+ * it was in flight: a pin is only taken from the snapshot if it has not
+ * changed since the snapshot was requested.
+ *
+ * Each half of the mirror is only "live" while something keeps it current;
+ * until then readers should go to the network and reconcile the result.
+ * Nothing pushes output changes made elsewhere on the server, so the outputs
+ * only stay live for a while after they were last checked.
+ *
+ * @author blurry
+ */
+class StateMirror {
+
+    private long version = 0;
+    private int inputs = 0;
+    private final int[] outputs = new int[PIN_COUNT];
+    private final long[] inputVersions = new long[PIN_COUNT];
+    private final long[] outputVersions = new long[PIN_COUNT];
+    private volatile boolean inputsLive = false;
+    private volatile boolean outputsLive = false;
+    // Nanoseconds the outputs are trusted after being checked, and when that was
+    private final long outputMaxAge;
+    private volatile long outputsChecked;
+
+    /**
+     * @param outputMaxAge Milliseconds output values are trusted after they
+     * were last checked against the server
+     */
+    StateMirror(long outputMaxAge) {
+        this.outputMaxAge = TimeUnit.MILLISECONDS.toNanos(outputMaxAge);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public boolean isInputsLive() {
+        return inputsLive;
+    }
+
+    /**
+     * @return True if the outputs were checked against the server recently
+     * enough to answer from the mirror
+     */
+    public boolean isOutputsLive() {
+        return outputsLive && System.nanoTime() - outputsChecked < outputMaxAge;
+    }
+
+    public void setInputsLive(boolean live) {
+        inputsLive = live;
+    }
+
+    /**
+     * @param live True when the outputs were just checked against the server
+     */
+    public void setOutputsLive(boolean live) {
+        outputsChecked = System.nanoTime();
+        outputsLive = live;
+    }
+
+    public synchronized int getInputPort() {
+        return inputs;
+    }
+
+    public synchronized boolean getInput(int pin) {
+        return (inputs & (1 << pin)) != 0;
+    }
+
+    public synchronized int getOutput(int pin) {
+        return outputs[pin];
+    }
+
+    /**
+     * Records an input change reported by the server.
+     *
+     * @return True if the pin actually changed
+     */
+    public synchronized boolean setInput(int pin, boolean state) {
+        inputVersions[pin] = ++version;
+        if (getInput(pin) == state) {
+            return false;
+        }
+        inputs ^= 1 << pin;
+        return true;
+    }
+
+    /**
+     * Records output values written by this client.
+     */
+    public synchronized void setOutputs(int mask, int[] values) {
+        version++;
+        for (int pin = 0; pin < PIN_COUNT; pin++) {
+            if ((mask & (1 << pin)) != 0) {
+                outputs[pin] = values[pin];
+                outputVersions[pin] = version;
+            }
+        }
+    }
+
+    public synchronized void setOutput(int pin, int value) {
+        outputs[pin] = value;
+        outputVersions[pin] = ++version;
+    }
+
+    /**
+     * Merges a full input snapshot.
+     *
+     * @param since Mirror version when the snapshot was requested
+     * @param snapshot Input port as read from the server
+     * @return Mask of pins whose state changed
+     */
+    public synchronized int reconcileInputs(long since, int snapshot) {
+        int changed = 0;
+        for (int pin = 0; pin < PIN_COUNT; pin++) {
+            int bit = 1 << pin;
+            if (inputVersions[pin] <= since && (inputs & bit) != (snapshot & bit)) {
+                inputs ^= bit;
+                inputVersions[pin] = version + 1;
+                changed |= bit;
+            }
+        }
+        if (changed != 0) {
+            version++;
+        }
+        return changed;
+    }
+
+    /**
+     * Merges a full output snapshot.
+     *
+     * @param since Mirror version when the snapshot was requested
+     * @param snapshot Output values as read from the server
+     */
+    public void reconcileOutputs(long since, int[] snapshot) {
+        reconcileOutputs(since, PifaceConnection.PORT_MASK, snapshot);
+    }
+
+    /**
+     * Merges part of an output snapshot.
+     *
+     * @param since Mirror version when the snapshot was requested
+     * @param mask Pins included in the snapshot
+     * @param snapshot Output values indexed by pin
+     */
+    public synchronized void reconcileOutputs(long since, int mask, int[] snapshot) {
+        boolean changed = false;
+        for (int pin = 0; pin < PIN_COUNT; pin++) {
+            if ((mask & (1 << pin)) != 0 && outputVersions[pin] <= since && outputs[pin] != snapshot[pin]) {
+                outputs[pin] = snapshot[pin];
+                outputVersions[pin] = version + 1;
+                changed = true;
+            }
+        }
+        if (changed) {
+            version++;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sequence of output writes for the server to play on its own clock, sent
+ * to the timeline endpoint, so that network jitter does not end up in the
+ * waveform. Each step is a setOutput or setPwm operation with the time it is
+ * due, in milliseconds after the start of the timeline. The timeline starts
+ * when the server receives it, or at an absolute start time in milliseconds
+ * since the epoch by the server's clock.
+ *
+ * For example a 40ms relay pulse:
+ *
+ * <pre>
+ * new Timeline().at(0).setOutputState(0, true).at(40).setOutputState(0, false)
+ * </pre>
+ *
+ * @author blurry
+ */
+public class Timeline {
+
+    /**
+     * One write and when it is due.
+     */
+    public static class Step extends BatchOperation {
+
+        double at;
+
+        public Step() {
+        }
+
+        public Step(double at, BatchOperation operation) {
+            super(operation.getOp(), operation.getPin(), operation.getValue(), operation.getState());
+            this.at = at;
+        }
+
+        /**
+         * @return Milliseconds after the start of the timeline
+         */
+        public double getAt() {
+            return at;
+        }
+    }
+
+    Long start;
+    List<Step> steps = new ArrayList<>();
+    // Time of the steps being added by the builder methods
+    private transient double at = 0;
+
+    /**
+     * @return Start in milliseconds since the epoch, or null to start as
+     * soon as the server receives the timeline
+     */
+    public Long getStart() {
+        return start;
+    }
+
+    public List<Step> getSteps() {
+        return steps == null ? new ArrayList<>() : steps;
+    }
+
+    /**
+     * @param start Milliseconds since the epoch by the server's clock, no
+     * more than TimelineScheduler.MAX_BEHIND in the past when it arrives
+     */
+    public Timeline startingAt(long start) {
+        this.start = start;
+        return this;
+    }
+
+    /**
+     * @param at Milliseconds after the start that the following steps are due
+     */
+    public Timeline at(double at) {
+        this.at = at;
+        return this;
+    }
+
+    public Timeline setOutputState(int pin, boolean state) {
+        steps.add(new Step(at, BatchOperation.setOutput(pin, state)));
+        return this;
+    }
+
+    public Timeline setOutputPWM(int pin, int value) {
+        steps.add(new Step(at, BatchOperation.setPwm(pin, value)));
+        return this;
+    }
+}
@@ -0,0 +1,380 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.badvision.pifaceintegrator.metrics.Histogram;
+import org.badvision.pifaceintegrator.metrics.Metrics;
+
+/**
+ * Plays Timelines on the boards of a RestServer. One thread serves every
+ * board, taking the next step due across all of them. It parks until SPIN
+ * before the step and busy-waits the rest, since parking alone routinely
+ * oversleeps by tens of microseconds; the thread runs at the highest
+ * priority so other work does not delay it.
+ *
+ * Steps due at the same time are applied as one port update. Each board
+ * plays one timeline at a time, and a new one replaces whatever was playing.
+ * How late each step was applied is kept for the timeline's status and in
+ * the piface_timeline_lateness_seconds metric.
+ *
+ * @author blurry
+ */
+public class TimelineScheduler {
+
+    static final Logger log = Logger.getLogger(TimelineScheduler.class.getName());
+    public static final int MAX_STEPS = 4096;
+    // Furthest ahead, in milliseconds, that a step or an absolute start may be
+    public static final long MAX_AHEAD = TimeUnit.HOURS.toMillis(1);
+    // Furthest behind, in milliseconds, that an absolute start may be; more
+    // and its first steps would all fire at once on arrival
+    public static final long MAX_BEHIND = 1000;
+    static final long SPIN = TimeUnit.MICROSECONDS.toNanos(200);
+
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String CANCELLED = "cancelled";
+    public static final String FAILED = "failed";
+
+    /**
+     * Progress of a timeline, as answered by the timeline endpoint.
+     */
+    public static class Status {
+
+        long id;
+        String state;
+        int steps;
+        int completed;
+        long meanLatenessMicros;
+        long maxLatenessMicros;
+        String error;
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return RUNNING, DONE, CANCELLED or FAILED
+         */
+        public String getState() {
+            return state;
+        }
+
+        /**
+         * @return Number of port updates, steps due at the same time count
+         * as one
+         */
+        public int getSteps() {
+            return steps;
+        }
+
+        public int getCompleted() {
+            return completed;
+        }
+
+        public long getMeanLatenessMicros() {
+            return meanLatenessMicros;
+        }
+
+        public long getMaxLatenessMicros() {
+            return maxLatenessMicros;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    /**
+     * A timeline playing on one board.
+     */
+    private class Run {
+
+        final long id = ids.incrementAndGet();
+        final int board;
+        final PifaceConnection device;
+        final Object deviceLock;
+        final Histogram lateness;
+        // Port updates in the order they are due
+        final long[] deadlines;
+        final int[] masks;
+        final int[][] values;
+        // Written under the lock, except error which is set before state; a
+        // cancel also holds deviceLock, so no step is written once it returns
+        int next = 0;
+        volatile String state = RUNNING;
+        String error;
+        long totalLateness = 0;
+        long maxLateness = 0;
+
+        Run(int board, PifaceConnection device, Object deviceLock, long start, List<Timeline.Step> steps) {
+            this.board = board;
+            this.device = device;
+            this.deviceLock = deviceLock;
+            lateness = Metrics.histogram("piface_timeline_lateness_seconds", "How late timeline steps were applied", "board", String.valueOf(board));
+            List<Timeline.Step> sorted = new ArrayList<>(steps);
+            sorted.sort((a, b) -> Double.compare(a.getAt(), b.getAt()));
+            int count = 0;
+            for (int i = 0; i < sorted.size(); i++) {
+                if (i == 0 || sorted.get(i).getAt() != sorted.get(i - 1).getAt()) {
+                    count++;
+                }
+            }
+            deadlines = new long[count];
+            masks = new int[count];
+            values = new int[count][PifaceConnection.PIN_COUNT];
+            int index = -1;
+            for (int i = 0; i < sorted.size(); i++) {
+                Timeline.Step step = sorted.get(i);
+                if (i == 0 || step.getAt() != sorted.get(i - 1).getAt()) {
+                    index++;
+                    deadlines[index] = start + (long) (step.getAt() * TimeUnit.MILLISECONDS.toNanos(1));
+                }
+                masks[index] |= 1 << step.getPin();
+                values[index][step.getPin()] = BatchOperation.SET_OUTPUT.equals(step.getOp())
+                        ? (step.getState() ? PifaceConnection.PWM_RANGE : 0) : step.getValue();
+            }
+        }
+
+        long getDeadline() {
+            return deadlines[next];
+        }
+
+        /**
+         * Writes the next port update. Runs on the scheduler thread outside
+         * the lock; the write is skipped if the timeline was cancelled first.
+         *
+         * @return How late the write was in nanoseconds, measured once it was
+         * done, or -1 if it was not made
+         */
+        long writeNext() {
+            long late;
+            try {
+                synchronized (deviceLock) {
+                    if (state != RUNNING) {
+                        return -1;
+                    }
+                    device.setOutputPort(masks[next], values[next]);
+                    late = Math.max(0, System.nanoTime() - deadlines[next]);
+                }
+            } catch (IOException | RuntimeException ex) {
+                log.log(Level.WARNING, "Timeline " + id + " failed on board " + board, ex);
+                error = ex.getMessage();
+                state = FAILED;
+                return -1;
+            }
+            lateness.record(late);
+            return late;
+        }
+
+        Status getStatus() {
+            Status status = new Status();
+            status.id = id;
+            status.state = state;
+            status.steps = deadlines.length;
+            status.completed = next;
+            status.meanLatenessMicros = next == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLateness / next);
+            status.maxLatenessMicros = TimeUnit.NANOSECONDS.toMicros(maxLateness);
+            status.error = error;
+            return status;
+        }
+    }
+
+    private final AtomicLong ids = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // Timelines with steps left, the one due soonest first
+    private final PriorityQueue<Run> queue = new PriorityQueue<>((a, b) -> Long.compare(a.getDeadline(), b.getDeadline()));
+    // Latest timeline of each board, playing or not
+    private final Map<Integer, Run> runs = new HashMap<>();
+    private Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Checks a timeline and starts playing it on a board, replacing the one
+     * playing there. A timeline with no steps only cancels.
+     *
+     * @param deviceLock Held while each step writes, so steps do not land in
+     * the middle of other multi-step operations on the device
+     * @return Status of the new timeline, or with no steps the status
+     * cancel answers
+     * @throws IllegalArgumentException If the timeline is not valid
+     */
+    public Status play(int board, PifaceConnection device, Object deviceLock, Timeline timeline) {
+        List<Timeline.Step> steps = timeline.getSteps();
+        validate(timeline, steps);
+        if (steps.isEmpty()) {
+            return cancel(board);
+        }
+        long start = System.nanoTime();
+        if (timeline.getStart() != null) {
+            start += TimeUnit.MILLISECONDS.toNanos(timeline.getStart() - System.currentTimeMillis());
+        }
+        Run run = new Run(board, device, deviceLock, start, steps);
+        lock.lock();
+        try {
+            cancelLocked(board);
+            runs.put(board, run);
+            queue.add(run);
+            startThread();
+            changed.signal();
+            return run.getStatus();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void validate(Timeline timeline, List<Timeline.Step> steps) {
+        if (steps.size() > MAX_STEPS) {
+            throw new IllegalArgumentException("A timeline may have at most " + MAX_STEPS + " steps");
+        }
+        if (timeline.getStart() != null) {
+            long ahead = timeline.getStart() - System.currentTimeMillis();
+            if (ahead > MAX_AHEAD) {
+                throw new IllegalArgumentException("Timeline start must be within " + MAX_AHEAD + "ms");
+            }
+            if (ahead < -MAX_BEHIND) {
+                throw new IllegalArgumentException("Timeline start is " + -ahead + "ms in the past, at most " + MAX_BEHIND + "ms is allowed");
+            }
+        }
+        for (Timeline.Step step : steps) {
+            if (step == null || step.getOp() == null) {
+                throw new IllegalArgumentException("Timeline step is missing op");
+            }
+            if (step.getPin() < 0 || step.getPin() >= PifaceConnection.PIN_COUNT) {
+                throw new IllegalArgumentException("Pin must be 0-" + (PifaceConnection.PIN_COUNT - 1));
+            }
+            if (!(step.getAt() >= 0 && step.getAt() <= MAX_AHEAD)) {
+                throw new IllegalArgumentException("Step time must be 0-" + MAX_AHEAD + "ms");
+            }
+            if (BatchOperation.SET_PWM.equals(step.getOp())) {
+                if (step.getValue() < 0 || step.getValue() > PifaceConnection.PWM_RANGE) {
+                    throw new IllegalArgumentException("PWM value must be 0-" + PifaceConnection.PWM_RANGE);
+                }
+            } else if (!BatchOperation.SET_OUTPUT.equals(step.getOp())) {
+                throw new IllegalArgumentException("Timeline steps must be " + BatchOperation.SET_OUTPUT + " or " + BatchOperation.SET_PWM);
+            }
+        }
+    }
+
+    /**
+     * Stops the timeline playing on a board. Outputs are left as the last
+     * step applied set them.
+     *
+     * @return Status of the board's latest timeline, or null if it never had
+     * one
+     */
+    public Status cancel(int board) {
+        lock.lock();
+        try {
+            cancelLocked(board);
+            Run run = runs.get(board);
+            return run == null ? null : run.getStatus();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void cancelLocked(int board) {
+        Run run = runs.get(board);
+        if (run != null && run.state == RUNNING) {
+            queue.remove(run);
+            // Waits out a step being written, so none is written after this
+            synchronized (run.deviceLock) {
+                run.state = CANCELLED;
+            }
+        }
+    }
+
+    /**
+     * @return Status of the board's latest timeline, or null if it never had
+     * one
+     */
+    public Status getStatus(int board) {
+        lock.lock();
+        try {
+            Run run = runs.get(board);
+            return run == null ? null : run.getStatus();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startThread() {
+        if (thread == null) {
+            thread = new Thread(this::playSteps, "Timeline scheduler");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            thread.start();
+        }
+    }
+
+    private void playSteps() {
+        while (running) {
+            Run run;
+            long deadline;
+            lock.lock();
+            try {
+                run = queue.peek();
+                if (run == null) {
+                    changed.await();
+                    continue;
+                }
+                deadline = run.getDeadline();
+                long wait = deadline - System.nanoTime();
+                if (wait > SPIN) {
+                    changed.awaitNanos(wait - SPIN);
+                    continue;
+                }
+                queue.poll();
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            while (System.nanoTime() < deadline) {
+                // Spin out the last stretch
+            }
+            long late = run.writeNext();
+            lock.lock();
+            try {
+                if (late >= 0) {
+                    run.totalLateness += late;
+                    run.maxLateness = Math.max(run.maxLateness, late);
+                    run.next++;
+                }
+                if (run.state == RUNNING) {
+                    if (run.next < run.deadlines.length) {
+                        queue.add(run);
+                    } else {
+                        run.state = DONE;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            for (Integer board : new ArrayList<>(runs.keySet())) {
+                cancelLocked(board);
+            }
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
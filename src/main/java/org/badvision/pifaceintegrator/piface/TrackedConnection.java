@@ -0,0 +1,106 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The connection RestServer hands to everything working on a board (request
+ * handlers, the wire protocol, timelines and reflexes). Every output write
+ * made through it holds the board's lock and is recorded in the board's
+ * BoardState once the device has taken it, so anything else holding the lock
+ * sees no write from the server land part way through. Everything else goes
+ * straight through.
+ *
+ * @author blurry
+ */
+class TrackedConnection implements PifaceConnection {
+
+    private final PifaceConnection device;
+    private final BoardState state;
+    private final Object lock;
+
+    /**
+     * @param lock Held for every write
+     */
+    TrackedConnection(PifaceConnection device, BoardState state, Object lock) {
+        this.device = device;
+        this.state = state;
+        this.lock = lock;
+    }
+
+    @Override
+    public boolean getInputState(int pin) throws IOException {
+        return device.getInputState(pin);
+    }
+
+    @Override
+    public void addListener(int pin, Consumer<Boolean> listener) throws IOException {
+        device.addListener(pin, listener);
+    }
+
+    @Override
+    public void setOutputState(int pin, boolean state) throws IOException {
+        synchronized (lock) {
+            device.setOutputState(pin, state);
+            outputWritten(pin, state ? PWM_RANGE : 0);
+        }
+    }
+
+    @Override
+    public void setOutputPWM(int pin, int value) throws IOException {
+        synchronized (lock) {
+            device.setOutputPWM(pin, value);
+            outputWritten(pin, value);
+        }
+    }
+
+    private void outputWritten(int pin, int value) {
+        int[] values = new int[PIN_COUNT];
+        values[pin] = value;
+        state.outputsWritten(1 << pin, values);
+    }
+
+    @Override
+    public int getOutputState(int pin) throws IOException {
+        return device.getOutputState(pin);
+    }
+
+    @Override
+    public int getInputPort() throws IOException {
+        return device.getInputPort();
+    }
+
+    @Override
+    public void setOutputPort(int mask, int[] values) throws IOException {
+        synchronized (lock) {
+            device.setOutputPort(mask, values);
+            state.outputsWritten(mask, values);
+        }
+    }
+
+    @Override
+    public List<InputEdge> getInputEdges(int pin, int count) throws IOException {
+        return device.getInputEdges(pin, count);
+    }
+
+    @Override
+    public List<InputEdge> getInputEdgesSince(int pin, long sequence) throws IOException {
+        return device.getInputEdgesSince(pin, sequence);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return device.isConnected();
+    }
+
+    /**
+     * Hands out the device's own view, so calls keep whatever ordering it
+     * gives them. Writes made through it neither hold the lock nor are
+     * recorded; BoardState finds them when it next checks the outputs.
+     */
+    @Override
+    public AsyncPifaceConnection async() {
+        return device.async();
+    }
+}
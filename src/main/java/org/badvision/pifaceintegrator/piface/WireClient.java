@@ -0,0 +1,198 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client side of the binary WireProtocol. Requests are written as soon as
+ * they are made and matched to their responses by tag, so any number of
+ * callers can have requests in flight on the one connection at once.
+ *
+ * @author blurry
+ */
+class WireClient implements Closeable {
+
+    static final Logger log = Logger.getLogger(WireClient.class.getName());
+    public static final int TIMEOUT = 2000;
+    static final int TAGS = 256;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    // Responses awaited, by tag; also the lock for sending and tag allocation
+    private final AtomicReferenceArray<CompletableFuture<byte[]>> pending = new AtomicReferenceArray<>(TAGS);
+    private int nextTag = 0;
+    private final Consumer<byte[]> notificationHandler;
+    private final Thread reader;
+    private volatile boolean open = true;
+
+    /**
+     * Connects and performs the HELLO exchange.
+     *
+     * @param host Server host
+     * @param port Wire protocol port
+     * @param notificationHandler Receives INPUT_CHANGE frames on the reader
+     * thread, so it must hand them off rather than block
+     * @throws IOException If the server could not be reached or does not
+     * speak the protocol
+     */
+    WireClient(String host, int port, Consumer<byte[]> notificationHandler) throws IOException {
+        this.notificationHandler = notificationHandler;
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), TIMEOUT);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(TIMEOUT);
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+        out.write(WireProtocol.hello(0));
+        out.flush();
+        byte[] hello = new byte[WireProtocol.FRAME_SIZE];
+        in.readFully(hello);
+        if (!WireProtocol.isHello(hello)) {
+            socket.close();
+            throw new IOException("Server did not answer HELLO");
+        }
+        // The server pings an idle connection, so silence means it is gone
+        socket.setSoTimeout(WireProtocol.KEEPALIVE_INTERVAL * 3);
+        reader = new Thread(this::readFrames, "Wire client " + host + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Blocks until the connection is closed from either end.
+     */
+    void awaitClose() throws InterruptedException {
+        reader.join();
+    }
+
+    /**
+     * Sends a request without waiting for the response.
+     *
+     * @param request Request frame, its tag is assigned here
+     * @return The response, completed exceptionally with an IOException if
+     * the server reports an error or the connection is lost
+     */
+    CompletableFuture<byte[]> send(byte[] request) {
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        try {
+            synchronized (pending) {
+                int tag = nextFreeTag();
+                pending.set(tag, response);
+                request[WireProtocol.TAG] = (byte) tag;
+                // Written under the same lock so frames never interleave
+                out.write(request);
+                out.flush();
+            }
+        } catch (IOException | InterruptedException ex) {
+            response.completeExceptionally(ex instanceof IOException ? ex : new IOException(ex));
+            if (ex instanceof IOException) {
+                close();
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     */
+    byte[] call(byte[] request) throws IOException {
+        try {
+            return send(request).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted waiting for response", ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        } catch (TimeoutException ex) {
+            close();
+            throw new IOException("Timed out waiting for response", ex);
+        }
+    }
+
+    private int nextFreeTag() throws InterruptedException, IOException {
+        while (true) {
+            for (int i = 0; i < TAGS; i++) {
+                int tag = (nextTag + i) % TAGS;
+                if (pending.get(tag) == null) {
+                    nextTag = (tag + 1) % TAGS;
+                    return tag;
+                }
+            }
+            if (!open) {
+                throw new IOException("Connection closed");
+            }
+            // Every tag is in flight, wait for a response to free one up
+            pending.wait(TIMEOUT);
+        }
+    }
+
+    private void readFrames() {
+        byte[] frame = new byte[WireProtocol.FRAME_SIZE];
+        try {
+            while (open) {
+                in.readFully(frame);
+                if (frame[WireProtocol.OPCODE] == WireProtocol.PING) {
+                    continue;
+                }
+                if (frame[WireProtocol.OPCODE] == WireProtocol.INPUT_CHANGE) {
+                    notificationHandler.accept(frame.clone());
+                    continue;
+                }
+                CompletableFuture<byte[]> response;
+                synchronized (pending) {
+                    int tag = frame[WireProtocol.TAG] & 0x0ff;
+                    response = pending.getAndSet(tag, null);
+                    pending.notifyAll();
+                }
+                if (response == null) {
+                    log.log(Level.WARNING, "Unexpected wire response, opcode {0}", frame[WireProtocol.OPCODE]);
+                } else if (frame[WireProtocol.OPCODE] == WireProtocol.ERROR) {
+                    response.completeExceptionally(new IOException("Server failed request, opcode " + frame[WireProtocol.ARG]));
+                } else {
+                    response.complete(frame.clone());
+                }
+            }
+        } catch (IOException ex) {
+            if (open) {
+                log.log(Level.WARNING, "Wire connection lost: {0}", ex.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Already closed
+        }
+        synchronized (pending) {
+            for (int i = 0; i < TAGS; i++) {
+                CompletableFuture<byte[]> response = pending.getAndSet(i, null);
+                if (response != null) {
+                    response.completeExceptionally(new IOException("Connection closed"));
+                }
+            }
+            pending.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.badvision.pifaceintegrator.piface;
+
+/**
+ * Compact binary protocol spoken between RestClient and RestServer over one
+ * long-lived TCP connection, as an alternative to one HTTP request per
+ * operation. Every frame, in either direction, is FRAME_SIZE bytes:
+ *
+ * <pre>
+ *  0  opcode
+ *  1  tag, echoed in the response so requests can be pipelined
+ *  2  argument: pin, port mask or protocol version depending on opcode
+ *  3  input port (responses and notifications) or status
+ *  4-11  one PWM value per pin (0-PWM_RANGE)
+ * </pre>
+ *
+ * The client opens with HELLO (version in the argument, magic in the first two
+ * value bytes) and the server answers in kind. Requests are answered in the
+ * order they were sent; INPUT_CHANGE frames are sent unprompted to clients
+ * that asked to SUBSCRIBE. A server with nothing else to send sends PING
+ * every KEEPALIVE_INTERVAL, so a client that hears nothing for a few intervals
+ * can tell the link is gone.
+ *
+ * @author blurry
+ */
+final class WireProtocol {
+
+    public static final int FRAME_SIZE = 12;
+    public static final int VERSION = 1;
+    public static final int MAGIC_0 = 'P';
+    public static final int MAGIC_1 = 'F';
+    // Milliseconds a server lets a connection go quiet before sending PING
+    public static final int KEEPALIVE_INTERVAL = 1000;
+
+    // Opcodes
+    public static final byte HELLO = 0x01;
+    public static final byte READ_PORT = 0x02;
+    public static final byte WRITE_PORT = 0x03;
+    public static final byte SET_PWM = 0x04;
+    public static final byte SUBSCRIBE = 0x05;
+    public static final byte INPUT_CHANGE = 0x06;
+    public static final byte PING = 0x07;
+    public static final byte ERROR = 0x7f;
+
+    // Frame layout
+    public static final int OPCODE = 0;
+    public static final int TAG = 1;
+    public static final int ARG = 2;
+    public static final int INPUTS = 3;
+    public static final int VALUES = 4;
+
+    private WireProtocol() {
+    }
+
+    static byte[] frame(byte opcode, int tag, int arg, int inputs) {
+        byte[] frame = new byte[FRAME_SIZE];
+        frame[OPCODE] = opcode;
+        frame[TAG] = (byte) tag;
+        frame[ARG] = (byte) arg;
+        frame[INPUTS] = (byte) inputs;
+        return frame;
+    }
+
+    static byte[] hello(int tag) {
+        byte[] frame = frame(HELLO, tag, VERSION, 0);
+        frame[VALUES] = MAGIC_0;
+        frame[VALUES + 1] = MAGIC_1;
+        return frame;
+    }
+
+    static boolean isHello(byte[] frame) {
+        return frame[OPCODE] == HELLO && frame[VALUES] == MAGIC_0 && frame[VALUES + 1] == MAGIC_1;
+    }
+
+    static int getArg(byte[] frame) {
+        return frame[ARG] & 0x0ff;
+    }
+
+    static int getInputs(byte[] frame) {
+        return frame[INPUTS] & 0x0ff;
+    }
+
+    static int getValue(byte[] frame, int pin) {
+        return frame[VALUES + pin] & 0x0ff;
+    }
+
+    static void setValue(byte[] frame, int pin, int value) {
+        frame[VALUES + pin] = (byte) Math.max(0, Math.min(PifaceConnection.PWM_RANGE, value));
+    }
+}
@@ -0,0 +1,272 @@
+package org.badvision.pifaceintegrator.piface;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves a PifaceConnection over the binary WireProtocol. Each client gets a
+ * reader thread, which answers requests strictly in order, and a writer thread
+ * which sends responses and input notifications from a bounded queue so that
+ * a stalled client can never hold up the device, and keeps an idle connection
+ * alive with PING. Given an AdmissionControl, every request waits its turn at
+ * the device like a REST request from the same address would, and one that is
+ * turned away is answered with ERROR.
+ *
+ * @author blurry
+ */
+public class WireServer {
+
+    static final Logger log = Logger.getLogger(WireServer.class.getName());
+    public static final int QUEUE_SIZE = 256;
+
+    private final PifaceConnection device;
+    private final AdmissionControl admission;
+    private final ServerSocket serverSocket;
+    private final Set<Session> sessions = new CopyOnWriteArraySet<>();
+    private final Thread acceptThread;
+    private boolean listening = false;
+    private volatile boolean running = true;
+
+    public WireServer(int port, PifaceConnection device) throws IOException {
+        this(port, device, null);
+    }
+
+    /**
+     * @param admission Admits each request to the device, or null to let
+     * every request straight through
+     */
+    public WireServer(int port, PifaceConnection device, AdmissionControl admission) throws IOException {
+        this.device = device;
+        this.admission = admission;
+        serverSocket = new ServerSocket(port);
+        acceptThread = new Thread(this::acceptConnections, "Wire listener " + port);
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            log.log(Level.WARNING, null, ex);
+        }
+        sessions.forEach(Session::close);
+    }
+
+    private void acceptConnections() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Session session = new Session(socket);
+                sessions.add(session);
+                session.start();
+            } catch (IOException ex) {
+                if (running) {
+                    log.log(Level.WARNING, "Error accepting wire connection", ex);
+                }
+            }
+        }
+    }
+
+    private synchronized void startListening() throws IOException {
+        if (listening) {
+            return;
+        }
+        for (int i = 0; i < PifaceConnection.PIN_COUNT; i++) {
+            final int pin = i;
+            device.addListener(pin, state -> publish(pin, state));
+        }
+        listening = true;
+    }
+
+    private void publish(int pin, boolean state) {
+        byte[] frame = WireProtocol.frame(WireProtocol.INPUT_CHANGE, 0, pin, state ? 1 : 0);
+        sessions.stream().filter(s -> s.subscribed).forEach(s -> s.send(frame));
+    }
+
+    /**
+     * Carries out one request once admission lets it through to the device.
+     *
+     * @return Response frame
+     * @throws AdmissionControl.RejectedException If it was turned away
+     */
+    private byte[] admit(Session session, byte[] request) throws IOException {
+        if (admission == null) {
+            return handle(session, request);
+        }
+        admission.enter(session.address);
+        try {
+            return handle(session, request);
+        } finally {
+            admission.leave();
+        }
+    }
+
+    /**
+     * Carries out one request.
+     *
+     * @return Response frame
+     */
+    private byte[] handle(Session session, byte[] request) throws IOException {
+        int tag = request[WireProtocol.TAG];
+        byte[] response;
+        switch (request[WireProtocol.OPCODE]) {
+            case WireProtocol.HELLO:
+                return WireProtocol.hello(tag);
+            case WireProtocol.READ_PORT:
+                response = WireProtocol.frame(WireProtocol.READ_PORT, tag, 0, device.getInputPort());
+                for (int pin = 0; pin < PifaceConnection.PIN_COUNT; pin++) {
+                    WireProtocol.setValue(response, pin, device.getOutputState(pin));
+                }
+                return response;
+            case WireProtocol.WRITE_PORT: {
+                int mask = WireProtocol.getArg(request);
+                int[] values = new int[PifaceConnection.PIN_COUNT];
+                for (int pin = 0; pin < PifaceConnection.PIN_COUNT; pin++) {
+                    values[pin] = WireProtocol.getValue(request, pin);
+                }
+                device.setOutputPort(mask, values);
+                return WireProtocol.frame(WireProtocol.WRITE_PORT, tag, mask, 0);
+            }
+            case WireProtocol.SET_PWM: {
+                int pin = WireProtocol.getArg(request);
+                device.setOutputPWM(pin, WireProtocol.getValue(request, 0));
+                return WireProtocol.frame(WireProtocol.SET_PWM, tag, pin, 0);
+            }
+            case WireProtocol.SUBSCRIBE:
+                startListening();
+                session.subscribed = true;
+                // Send the current state so the client starts in sync
+                int inputs = device.getInputPort();
+                response = WireProtocol.frame(WireProtocol.SUBSCRIBE, tag, 0, inputs);
+                return response;
+            default:
+                throw new IOException("Unknown opcode " + request[WireProtocol.OPCODE]);
+        }
+    }
+
+    private class Session {
+
+        final Socket socket;
+        final String address;
+        final BlockingQueue<byte[]> outbound = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        volatile boolean subscribed = false;
+        volatile boolean open = true;
+        Thread reader;
+        Thread writer;
+
+        Session(Socket socket) {
+            this.socket = socket;
+            address = socket.getInetAddress().getHostAddress();
+        }
+
+        void start() {
+            String name = "Wire " + socket.getRemoteSocketAddress();
+            reader = new Thread(this::readRequests, name + " reader");
+            writer = new Thread(this::writeResponses, name + " writer");
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        void send(byte[] frame) {
+            if (!outbound.offer(frame)) {
+                log.log(Level.WARNING, "Wire client {0} fell behind, disconnecting", socket.getRemoteSocketAddress());
+                close();
+            }
+        }
+
+        void readRequests() {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                byte[] request = new byte[WireProtocol.FRAME_SIZE];
+                in.readFully(request);
+                if (!WireProtocol.isHello(request)) {
+                    throw new IOException("Client did not open with HELLO");
+                }
+                send(WireProtocol.hello(request[WireProtocol.TAG]));
+                while (open) {
+                    in.readFully(request);
+                    byte[] response;
+                    try {
+                        response = admit(this, request);
+                    } catch (AdmissionControl.RejectedException ex) {
+                        log.log(Level.FINE, "Wire request from {0} turned away: {1}", new Object[]{address, ex.getMessage()});
+                        response = WireProtocol.frame(WireProtocol.ERROR, request[WireProtocol.TAG], request[WireProtocol.OPCODE], 0);
+                    } catch (IOException | RuntimeException ex) {
+                        log.log(Level.WARNING, "Error handling wire request", ex);
+                        response = WireProtocol.frame(WireProtocol.ERROR, request[WireProtocol.TAG], request[WireProtocol.OPCODE], 0);
+                    }
+                    send(response);
+                }
+            } catch (EOFException | SocketException ex) {
+                // Client went away
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Error reading from wire client", ex);
+            } finally {
+                close();
+            }
+        }
+
+        void writeResponses() {
+            try {
+                OutputStream out = socket.getOutputStream();
+                while (open) {
+                    byte[] frame = outbound.poll(WireProtocol.KEEPALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (frame == null) {
+                        frame = WireProtocol.frame(WireProtocol.PING, 0, 0, 0);
+                    }
+                    out.write(frame);
+                    // Send everything else that is ready in the same packet
+                    while ((frame = outbound.poll()) != null) {
+                        out.write(frame);
+                    }
+                    out.flush();
+                }
+            } catch (InterruptedException | IOException ex) {
+                // Session closed
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            sessions.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Already closed
+            }
+            if (writer != null) {
+                writer.interrupt();
+            }
+        }
+    }
+}
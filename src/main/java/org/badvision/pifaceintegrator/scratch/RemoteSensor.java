@@ -6,6 +6,9 @@ import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.badvision.pifaceintegrator.metrics.Counter;
+import org.badvision.pifaceintegrator.metrics.Histogram;
+import org.badvision.pifaceintegrator.metrics.Metrics;
 
 /**
  * Represents a remote sensor of the Scratch 1.4 programming environment which
@@ -23,6 +26,12 @@ public abstract class RemoteSensor implements Runnable {
 
     private static final Logger LOG = Logger.getLogger(RemoteSensor.class.getName());
 
+    /**
+     * Messages received from Scratch and the time taken to handle each one.
+     */
+    private static final Counter MESSAGES = Metrics.counter("piface_mesh_messages_received_total", "Messages received from Scratch");
+    private static final Histogram HANDLING_TIME = Metrics.histogram("piface_mesh_message_seconds", "Time taken to handle messages received from Scratch");
+
     /**
      * Possible states of the internal state machine
      */
@@ -115,8 +124,11 @@ public abstract class RemoteSensor implements Runnable {
                 if (readCount != messageSize) {
                     throw new IOException("Expectes message of size " + messageSize + " bytes but got " + readCount + " instead.");
                 }
+                long start = System.nanoTime();
                 String message = new String(messageBuf, "UTF-8");
                 parseMessage(message);
+                HANDLING_TIME.recordSince(start);
+                MESSAGES.increment();
             }
             connectionStateChange(false, null);
         } catch (IOException e) {
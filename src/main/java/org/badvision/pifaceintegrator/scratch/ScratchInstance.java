@@ -8,6 +8,9 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.badvision.pifaceintegrator.metrics.Counter;
+import org.badvision.pifaceintegrator.metrics.Histogram;
+import org.badvision.pifaceintegrator.metrics.Metrics;
 
 
 /**
@@ -22,6 +25,12 @@ public class ScratchInstance {
 
     private static final Logger LOG = Logger.getLogger(ScratchInstance.class.getName());
 
+    /**
+     * Messages sent to Scratch and the time taken to write each one.
+     */
+    private static final Counter MESSAGES = Metrics.counter("piface_scratch_messages_sent_total", "Messages sent to Scratch");
+    private static final Histogram SEND_TIME = Metrics.histogram("piface_scratch_send_seconds", "Time taken to send messages to Scratch");
+
     /**
      * The host Scratch is listening on for remote sensor connections.
      */
@@ -97,10 +106,13 @@ public class ScratchInstance {
      * @throws IOException - if an I/O error occurs.
      */
     public void broadcast(String message) throws IOException {
+        long start = System.nanoTime();
         String broadcastMessage = Constants.BROADCAST_MESSAGE_TYPE + " \"" + message + "\"";
         byte[] messageSize = ByteBuffer.allocate(4).putInt(broadcastMessage.length()).array();
         outputStream.write(messageSize);
         outputStream.write(broadcastMessage.getBytes(Charset.forName("UTF-8")));
+        SEND_TIME.recordSince(start);
+        MESSAGES.increment();
         LOG.log(Level.INFO, "Sent broadcast message '{0}' to Scratch.", message);
     }
 
@@ -142,9 +154,12 @@ public class ScratchInstance {
 
     private void sendSensorUpdateMessage(String sensorUpdateMessage)
             throws IOException {
+        long start = System.nanoTime();
         byte[] messageSize = ByteBuffer.allocate(4).putInt(sensorUpdateMessage.length()).array();
         outputStream.write(messageSize);
         outputStream.write(sensorUpdateMessage.getBytes(Charset.forName("UTF-8")));
+        SEND_TIME.recordSince(start);
+        MESSAGES.increment();
         LOG.log(Level.INFO, "Sent sensor update '{0}' to Scratch.", sensorUpdateMessage);
     }
 